@@ -0,0 +1,90 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.UriInfo;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JAX-RS request and response contexts for the benchmarks, answering only what the filter and the resource
+ * extractor use, without the overhead of a mocking framework
+ */
+final class BenchmarkRequests {
+
+    static final List<String> TOKEN_ENDPOINT = List.of(
+        "realms/master/protocol/openid-connect/token",
+        "realms/master/protocol/openid-connect",
+        "realms");
+
+    static final List<String> ADMIN_USER = List.of(
+        "admin/realms/master/users/171753bc-8184-4989-929b-288fdc661b90",
+        "admin/realms/master/users",
+        "admin/realms/master",
+        "admin/realms",
+        "admin");
+
+    private BenchmarkRequests() {
+    }
+
+    static UriInfo uriInfo(List<String> matchedURIs) {
+        return (UriInfo) Proxy.newProxyInstance(UriInfo.class.getClassLoader(),
+            new Class<?>[]{UriInfo.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getMatchedURIs":
+                        return matchedURIs;
+                    case "getPath":
+                        return matchedURIs.get(0);
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    static ContainerRequestContext request(String httpMethod, List<String> matchedURIs) {
+        final UriInfo uriInfo = uriInfo(matchedURIs);
+        final Map<String, Object> properties = new HashMap<>();
+        return (ContainerRequestContext) Proxy.newProxyInstance(ContainerRequestContext.class.getClassLoader(),
+            new Class<?>[]{ContainerRequestContext.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getMethod":
+                        return httpMethod;
+                    case "getUriInfo":
+                        return uriInfo;
+                    case "getProperty":
+                        return properties.get((String) args[0]);
+                    case "setProperty":
+                        properties.put((String) args[0], args[1]);
+                        return null;
+                    case "removeProperty":
+                        properties.remove((String) args[0]);
+                        return null;
+                    case "getHeaderString":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    static ContainerResponseContext response(int status, MediaType mediaType) {
+        return (ContainerResponseContext) Proxy.newProxyInstance(ContainerResponseContext.class.getClassLoader(),
+            new Class<?>[]{ContainerResponseContext.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getStatus":
+                        return status;
+                    case "getMediaType":
+                        return mediaType;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+}
@@ -0,0 +1,123 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Counter;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares recording events through the bound children of {@link PrometheusExporter} with
+ * resolving the children through {@code Counter#labels} for every event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventRecordingBenchmark {
+
+    private static final String REALM_ID = "2af8c4d4-4d58-4d74-9ad7-eef9aac06a90";
+    private static final String REALM_NAME = "myrealm";
+
+    private PrometheusExporter exporter;
+    private RealmProvider realmProvider;
+    private Event login;
+    private Event loginError;
+    private Event genericEvent;
+
+    @Setup
+    public void setup() {
+        exporter = PrometheusExporter.instance();
+        realmProvider = realmProvider(REALM_ID, REALM_NAME);
+        login = event(EventType.LOGIN);
+        loginError = event(EventType.LOGIN_ERROR);
+        loginError.setError("invalid_user_credentials");
+        genericEvent = event(EventType.UPDATE_EMAIL);
+        // creates the generic counter, which the lookup by name expects
+        exporter.recordGenericEvent(genericEvent, realmProvider);
+    }
+
+    @Benchmark
+    public void recordLogin() {
+        exporter.recordLogin(login, realmProvider);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordLoginContended() {
+        exporter.recordLogin(login, realmProvider);
+    }
+
+    @Benchmark
+    public void recordLoginError() {
+        exporter.recordLoginError(loginError, realmProvider);
+    }
+
+    @Benchmark
+    public void recordLoginWithLabels() {
+        // the way the login counters were updated before the children were bound
+        final String provider = "keycloak";
+        final SimpleclientBackend backend = (SimpleclientBackend) exporter.backend;
+        backend.collector("keycloak_login_attempts").labels(REALM_NAME, provider, login.getClientId()).inc();
+        backend.collector("keycloak_logins").labels(REALM_NAME, provider, login.getClientId()).inc();
+    }
+
+    @Benchmark
+    public void recordGenericEvent() {
+        exporter.recordGenericEvent(genericEvent, realmProvider);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordGenericEventContended() {
+        exporter.recordGenericEvent(genericEvent, realmProvider);
+    }
+
+    @Benchmark
+    public void recordGenericEventWithLabels() {
+        // the way generic counters were looked up before the children were bound
+        final String counterName = "keycloak_user_event_" + genericEvent.getType().name();
+        final Counter counter = ((SimpleclientBackend) exporter.backend).collector(counterName);
+        if (counter != null) {
+            counter.labels(REALM_NAME).inc();
+        }
+    }
+
+    static Event event(EventType type) {
+        final Event event = new Event();
+        event.setType(type);
+        event.setRealmId(REALM_ID);
+        event.setClientId("THE_CLIENT_ID");
+        event.setDetails(new HashMap<>());
+        return event;
+    }
+
+    /**
+     * A RealmProvider knowing a single realm, without the overhead of a mocking framework
+     */
+    static RealmProvider realmProvider(String realmId, String realmName) {
+        final RealmModel realm = (RealmModel) Proxy.newProxyInstance(RealmModel.class.getClassLoader(),
+            new Class<?>[]{RealmModel.class},
+            (proxy, method, args) -> "getName".equals(method.getName()) ? realmName : null);
+        return (RealmProvider) Proxy.newProxyInstance(RealmProvider.class.getClassLoader(),
+            new Class<?>[]{RealmProvider.class},
+            (proxy, method, args) -> "getRealm".equals(method.getName()) && realmId.equals(args[0]) ? realm : null);
+    }
+}
@@ -0,0 +1,66 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a scrape with a growing number of series on top of the series registered by the exporter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int series;
+
+    private PrometheusExporter exporter;
+    private final OutputStream output = OutputStream.nullOutputStream();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        exporter = PrometheusExporter.instance();
+        final Counter counter = Counter.build()
+            .name("keycloak_benchmark_series")
+            .help("Series generated by the benchmark")
+            .labelNames("realm", "client_id")
+            .register();
+        for (int i = 0; i < series; i++) {
+            counter.labels("realm-" + (i % 100), "client-" + i).inc(i);
+        }
+    }
+
+    @Benchmark
+    public void export() throws IOException {
+        exporter.export(output);
+    }
+
+    @Benchmark
+    public void exportOpenMetrics() throws IOException {
+        exporter.export(output, TextFormat.CONTENT_TYPE_OPENMETRICS_100, false);
+    }
+
+    @Benchmark
+    public void exportGzip() throws IOException {
+        exporter.export(output, TextFormat.CONTENT_TYPE_004, true);
+    }
+}
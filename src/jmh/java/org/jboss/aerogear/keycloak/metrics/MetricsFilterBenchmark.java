@@ -0,0 +1,69 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.core.MediaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the request and response filter for a token request and an admin API request,
+ * in every URI mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsFilterBenchmark {
+
+    @Param
+    public UriMode uriMode;
+
+    private MetricsFilter filter;
+    private ContainerRequestContext tokenRequest;
+    private ContainerRequestContext adminUserRequest;
+    private ContainerResponseContext response;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        uriMode.apply();
+        filter = MetricsFilter.instance();
+        tokenRequest = BenchmarkRequests.request("POST", BenchmarkRequests.TOKEN_ENDPOINT);
+        adminUserRequest = BenchmarkRequests.request("GET", BenchmarkRequests.ADMIN_USER);
+        response = BenchmarkRequests.response(200, MediaType.APPLICATION_JSON_TYPE);
+    }
+
+    @Benchmark
+    public void tokenRequest() {
+        filter.filter(tokenRequest);
+        filter.filter(tokenRequest, response);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void tokenRequestContended() {
+        filter.filter(tokenRequest);
+        filter.filter(tokenRequest, response);
+    }
+
+    @Benchmark
+    public void adminUserRequest() {
+        filter.filter(adminUserRequest);
+        filter.filter(adminUserRequest, response);
+    }
+}
@@ -0,0 +1,57 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import jakarta.ws.rs.core.UriInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of extracting the resource and URI labels of a request, in every URI mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceExtractorBenchmark {
+
+    @Param
+    public UriMode uriMode;
+
+    private UriInfo tokenEndpoint;
+    private UriInfo adminUser;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        uriMode.apply();
+        tokenEndpoint = BenchmarkRequests.uriInfo(BenchmarkRequests.TOKEN_ENDPOINT);
+        adminUser = BenchmarkRequests.uriInfo(BenchmarkRequests.ADMIN_USER);
+    }
+
+    @Benchmark
+    public String tokenEndpointResource() {
+        return ResourceExtractor.getResource(tokenEndpoint);
+    }
+
+    @Benchmark
+    public String tokenEndpointUri() {
+        return ResourceExtractor.getURI(tokenEndpoint);
+    }
+
+    @Benchmark
+    public String adminUserUri() {
+        return ResourceExtractor.getURI(adminUser);
+    }
+}
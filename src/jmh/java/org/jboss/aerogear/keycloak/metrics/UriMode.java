@@ -0,0 +1,31 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+/**
+ * The URI label modes of the SPI. The settings are read once per JVM, so a mode has to be
+ * applied as system properties before the metrics classes are initialized in a forked benchmark JVM.
+ */
+public enum UriMode {
+    DISABLED,
+    CONSOLIDATED("URI_METRICS_ENABLED"),
+    DETAILED("URI_METRICS_ENABLED", "URI_METRICS_DETAILED"),
+    DETAILED_UUID_HIDDEN("URI_METRICS_ENABLED", "URI_METRICS_DETAILED", "URI_METRICS_UUID_HIDDEN"),
+    FILTERED("URI_METRICS_ENABLED") {
+        @Override
+        void apply() {
+            super.apply();
+            System.setProperty("URI_METRICS_FILTER", "token,users");
+        }
+    };
+
+    private final String[] enabledSettings;
+
+    UriMode(String... enabledSettings) {
+        this.enabledSettings = enabledSettings;
+    }
+
+    void apply() {
+        for (String setting : enabledSettings) {
+            System.setProperty(setting, "true");
+        }
+    }
+}
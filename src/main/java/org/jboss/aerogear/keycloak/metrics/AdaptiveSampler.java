@@ -0,0 +1,97 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Chooses the requests whose duration is observed, so that about a target number of requests per second is
+ * observed whatever the request rate.
+ * <p>
+ * One request in n is chosen at random and observed with weight n, so that the counts and sums of the histograms
+ * remain unbiased estimates of those of all requests. n is adapted once a second to the request rate, smoothed
+ * over the previous seconds, by the first request of the second. The fraction of the requests that is observed
+ * is exported as a gauge.
+ */
+final class AdaptiveSampler extends Collector implements Collector.Describable {
+
+    static final String NAME = "keycloak_request_duration_sample_rate";
+    private static final String HELP = "Fraction of the requests whose duration is observed, weighted by its inverse";
+
+    private static final long INTERVAL_NANOS = 1_000_000_000L;
+    // weight of the last second in the smoothed request rate
+    private static final double SMOOTHING = 0.5;
+
+    private final double target;
+    private final LongSupplier clock;
+    private final LongAdder requests = new LongAdder();
+    private final AtomicLong intervalStart;
+    private volatile double rate;
+    private volatile long every = 1;
+
+    /**
+     * @param target Number of requests to observe per second
+     */
+    AdaptiveSampler(double target) {
+        this(target, System::nanoTime);
+    }
+
+    /**
+     * @param clock Monotonic clock in nanoseconds, for tests
+     */
+    AdaptiveSampler(double target, LongSupplier clock) {
+        if (!(target > 0)) {
+            throw new IllegalArgumentException("The number of requests to observe per second needs to be positive");
+        }
+        this.target = target;
+        this.clock = clock;
+        this.intervalStart = new AtomicLong(clock.getAsLong());
+    }
+
+    /**
+     * Count a request and choose whether to observe it
+     *
+     * @return Weight of the observation of the request, 0 if it is not observed
+     */
+    long sample() {
+        final long now = clock.getAsLong();
+        final long start = intervalStart.get();
+        if (now - start >= INTERVAL_NANOS && intervalStart.compareAndSet(start, now)) {
+            adapt(now - start);
+        }
+        // counted in the interval that starts with it
+        requests.increment();
+        final long n = every;
+        return n == 1 || ThreadLocalRandom.current().nextLong(n) == 0 ? n : 0;
+    }
+
+    private void adapt(long elapsedNanos) {
+        final double measured = requests.sumThenReset() * 1e9 / elapsedNanos;
+        final double smoothed = rate == 0 ? measured : SMOOTHING * measured + (1 - SMOOTHING) * rate;
+        rate = smoothed;
+        every = Math.max(1, (long) Math.ceil(smoothed / target));
+    }
+
+    /**
+     * Fraction of the requests that is observed
+     */
+    double rate() {
+        return 1.0 / every;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        return Collections.singletonList(new MetricFamilySamples(NAME, Type.GAUGE, HELP, Collections.singletonList(
+            new MetricFamilySamples.Sample(NAME, Collections.emptyList(), Collections.emptyList(), rate()))));
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Collections.singletonList(new MetricFamilySamples(NAME, Type.GAUGE, HELP, Collections.emptyList()));
+    }
+}
@@ -0,0 +1,89 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Cache of a bounded number of entries, which evicts the oldest entries once full.
+ * <p>
+ * Lookups are plain reads of a concurrent map. The keys are queued in the order they were added, and adding an entry
+ * to a full cache evicts the entries at the head of the queue, so that a cache filled by keys seen once, e.g. by a
+ * scanner, still takes new keys. An entry loaded while its key was invalidated is not kept, so that a stale value
+ * loaded before the invalidation is not added after it.
+ *
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+final class BoundedCache<K, V> {
+
+    private final ConcurrentMap<K, V> entries = new ConcurrentHashMap<>();
+    private final Queue<K> order = new ConcurrentLinkedQueue<>();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final int maxSize;
+
+    /**
+     * @param maxSize Number of entries, 0 to cache nothing
+     */
+    BoundedCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return The cached value, null if there is none
+     */
+    V get(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Load the value of a key that was not found and cache it
+     *
+     * @param loader Loads the value, which is not cached if it is null
+     * @return The loaded value
+     */
+    V load(K key, Function<? super K, ? extends V> loader) {
+        final long version = invalidations.get();
+        final V value = loader.apply(key);
+        if (value == null || maxSize <= 0) {
+            return value;
+        }
+        if (entries.putIfAbsent(key, value) == null) {
+            if (invalidations.get() != version) {
+                // invalidated while loading, the value may have been loaded before
+                entries.remove(key, value);
+                return value;
+            }
+            order.add(key);
+            evict();
+        }
+        return value;
+    }
+
+    private void evict() {
+        while (entries.size() > maxSize) {
+            final K oldest = order.poll();
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldest);
+        }
+    }
+
+    /**
+     * Forget the value of a key, also if it is being loaded
+     */
+    void invalidate(K key) {
+        invalidations.incrementAndGet();
+        if (entries.remove(key) != null) {
+            order.remove(key);
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,219 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Counter;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Cache of labeled children of a collector, resolved once per distinct tuple of label values.
+ * <p>
+ * {@code Collector#labels(String...)} allocates the label array and a list key for every call. This cache
+ * stores the children in nested maps, one level per label, so that a lookup of an already known
+ * tuple of label values only performs plain map reads and does not allocate.
+ * <p>
+ * Label values can be bounded by a {@link LabelLimiter} per label, applied before the lookup. The number of
+ * children can be bounded as well: once it is reached, a new tuple has the values of all limited labels replaced
+ * by {@value LabelLimiter#OVERFLOW}, and is counted once by the given overflow counter: it is cached with the child of
+ * the collapsed values, up to as many collapsed tuples as children, after which collapsed tuples are counted by lookup.
+ *
+ * @param <C> Type of the collector children
+ */
+final class ChildCache<C> {
+
+    private final Function<String[], C> factory;
+    private final LabelLimiter[] limiters;
+    private final int maxChildren;
+    private final Counter.Child overflows;
+    private final AtomicInteger children = new AtomicInteger();
+    private final AtomicInteger collapsedChildren = new AtomicInteger();
+    private final ConcurrentMap<String, Object> root = new ConcurrentHashMap<>();
+
+    /**
+     * @param factory  Creates the child for the given label values, usually {@code collector::labels}
+     * @param limiters Limiters of the labels by position, null for unbounded labels
+     */
+    ChildCache(Function<String[], C> factory, LabelLimiter... limiters) {
+        this(factory, 0, null, limiters);
+    }
+
+    /**
+     * @param factory     Creates the child for the given label values, usually {@code collector::labels}
+     * @param maxChildren Number of tuples of label values, 0 for unbounded
+     * @param overflows   Counts the tuples collapsed because the number of children was reached
+     * @param limiters    Limiters of the labels by position, null for unbounded labels. Only the values of the
+     *                    labels with a limiter are collapsed.
+     */
+    ChildCache(Function<String[], C> factory, int maxChildren, Counter.Child overflows, LabelLimiter... limiters) {
+        this.factory = factory;
+        this.limiters = limiters;
+        this.maxChildren = maxChildren;
+        this.overflows = overflows;
+    }
+
+    C get(String l1) {
+        l1 = limit(0, l1);
+        return child(root, l1, l1);
+    }
+
+    C get(String l1, String l2) {
+        l1 = limit(0, l1);
+        l2 = limit(1, l2);
+        return child(level(root, l1), l2, l1, l2);
+    }
+
+    C get(String l1, String l2, String l3) {
+        l1 = limit(0, l1);
+        l2 = limit(1, l2);
+        l3 = limit(2, l3);
+        return child(level(level(root, l1), l2), l3, l1, l2, l3);
+    }
+
+    C get(String l1, String l2, String l3, String l4) {
+        l1 = limit(0, l1);
+        l2 = limit(1, l2);
+        l3 = limit(2, l3);
+        l4 = limit(3, l4);
+        return child(level(level(level(root, l1), l2), l3), l4, l1, l2, l3, l4);
+    }
+
+    /**
+     * Get the child of one to four label values given as a list, e.g. read back from a snapshot
+     */
+    C get(List<String> labelValues) {
+        switch (labelValues.size()) {
+            case 1:
+                return get(labelValues.get(0));
+            case 2:
+                return get(labelValues.get(0), labelValues.get(1));
+            case 3:
+                return get(labelValues.get(0), labelValues.get(1), labelValues.get(2));
+            case 4:
+                return get(labelValues.get(0), labelValues.get(1), labelValues.get(2), labelValues.get(3));
+            default:
+                throw new IllegalArgumentException("Unsupported number of label values: " + labelValues.size());
+        }
+    }
+
+    private String limit(int label, String value) {
+        if (value == null) {
+            // as Collector#labels, rather than failing in the lookup
+            throw new IllegalArgumentException("Label value cannot be null");
+        }
+        if (label < limiters.length && limiters[label] != null) {
+            return limiters[label].limit(value);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentMap<String, Object> level(ConcurrentMap<String, Object> parent, String key) {
+        Object next = parent.get(key);
+        if (next == null) {
+            next = parent.computeIfAbsent(key, k -> new ConcurrentHashMap<String, Object>());
+        }
+        return (ConcurrentMap<String, Object>) next;
+    }
+
+    @SuppressWarnings("unchecked")
+    private C child(ConcurrentMap<String, Object> parent, String key, String l1) {
+        Object child = parent.get(key);
+        return child != null ? (C) child : create(parent, key, l1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private C child(ConcurrentMap<String, Object> parent, String key, String l1, String l2) {
+        Object child = parent.get(key);
+        return child != null ? (C) child : create(parent, key, l1, l2);
+    }
+
+    @SuppressWarnings("unchecked")
+    private C child(ConcurrentMap<String, Object> parent, String key, String l1, String l2, String l3) {
+        Object child = parent.get(key);
+        return child != null ? (C) child : create(parent, key, l1, l2, l3);
+    }
+
+    @SuppressWarnings("unchecked")
+    private C child(ConcurrentMap<String, Object> parent, String key, String l1, String l2, String l3, String l4) {
+        Object child = parent.get(key);
+        return child != null ? (C) child : create(parent, key, l1, l2, l3, l4);
+    }
+
+    @SuppressWarnings("unchecked")
+    private C create(ConcurrentMap<String, Object> parent, String key, String... labelValues) {
+        final String[] collapsed = maxChildren > 0 ? collapse(labelValues) : null;
+        if (collapsed == null) {
+            return (C) parent.computeIfAbsent(key, k -> factory.apply(labelValues));
+        }
+        if (!reserve(children)) {
+            final C overflow = overflow(collapsed);
+            if (!reserve(collapsedChildren)) {
+                overflows.inc();
+                return overflow;
+            }
+            final Object cached = parent.putIfAbsent(key, overflow);
+            if (cached != null) {
+                // cached concurrently by another thread, which counted it
+                collapsedChildren.decrementAndGet();
+                return (C) cached;
+            }
+            overflows.inc();
+            return overflow;
+        }
+        final Object[] created = new Object[1];
+        final C child = (C) parent.computeIfAbsent(key, k -> created[0] = factory.apply(labelValues));
+        if (created[0] == null) {
+            // created concurrently by another thread, which reserved it
+            children.decrementAndGet();
+        }
+        return child;
+    }
+
+    /**
+     * Reserve a child of the given count, unless the number of children was reached
+     */
+    private boolean reserve(AtomicInteger count) {
+        int n;
+        while ((n = count.get()) < maxChildren) {
+            if (count.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The label values with those of the limited labels replaced by the overflow value
+     *
+     * @return The replaced label values, null if there is nothing to replace
+     */
+    private String[] collapse(String[] labelValues) {
+        String[] collapsed = null;
+        for (int i = 0; i < labelValues.length && i < limiters.length; i++) {
+            if (limiters[i] != null && !LabelLimiter.OVERFLOW.equals(labelValues[i])) {
+                if (collapsed == null) {
+                    collapsed = labelValues.clone();
+                }
+                collapsed[i] = LabelLimiter.OVERFLOW;
+            }
+        }
+        return collapsed;
+    }
+
+    /**
+     * The child of collapsed label values, which are not counted as they are bounded by the other labels
+     */
+    @SuppressWarnings("unchecked")
+    private C overflow(String[] labelValues) {
+        ConcurrentMap<String, Object> parent = root;
+        for (int i = 0; i < labelValues.length - 1; i++) {
+            parent = level(parent, labelValues[i]);
+        }
+        final Object child = parent.get(labelValues[labelValues.length - 1]);
+        return child != null ? (C) child
+            : (C) parent.computeIfAbsent(labelValues[labelValues.length - 1], k -> factory.apply(labelValues));
+    }
+}
@@ -0,0 +1,226 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Counter values of one node, as exchanged between the nodes of the cluster view.
+ * <p>
+ * A snapshot either holds all counters of the node, or only the counters that changed since the previous
+ * snapshot. Values are always the cumulative values of the node, so that a lost or repeated snapshot does
+ * not skew the totals. The strings of a snapshot, which mostly are the same few realm and client names,
+ * are written once to a string table and referred to by index.
+ * <p>
+ * Since version 2, a snapshot also carries the {@link HyperLogLog} sketches of the distinct users of the node, which
+ * are merged rather than added. Since version 3, a snapshot carries the epoch of the node, a random number that
+ * changes when the node starts over with its counters at zero. Snapshots of versions 1 and 2 are still read, with
+ * an unknown epoch of 0.
+ */
+final class ClusterSnapshot {
+
+    private static final int VERSION = 3;
+    private static final int VERSION_WITHOUT_EPOCH = 2;
+    private static final int VERSION_WITHOUT_SKETCHES = 1;
+
+    final String node;
+    // 0 if unknown
+    final long epoch;
+    final long sequence;
+    final boolean full;
+    final List<Family> families;
+    final List<Sketch> sketches;
+
+    ClusterSnapshot(String node, long sequence, boolean full, List<Family> families) {
+        this(node, 0, sequence, full, families, Collections.emptyList());
+    }
+
+    ClusterSnapshot(String node, long epoch, long sequence, boolean full, List<Family> families) {
+        this(node, epoch, sequence, full, families, Collections.emptyList());
+    }
+
+    ClusterSnapshot(String node, long epoch, long sequence, boolean full, List<Family> families, List<Sketch> sketches) {
+        this.node = node;
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.full = full;
+        this.families = families;
+        this.sketches = sketches;
+    }
+
+    /**
+     * New random epoch, never 0
+     */
+    static long newEpoch() {
+        long epoch;
+        do {
+            epoch = ThreadLocalRandom.current().nextLong();
+        } while (epoch == 0);
+        return epoch;
+    }
+
+    /**
+     * Counter family with the values of its series
+     */
+    static final class Family {
+        final String name;
+        final String help;
+        final List<String> labelNames;
+        final Map<List<String>, Double> values;
+
+        Family(String name, String help, List<String> labelNames, Map<List<String>, Double> values) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = labelNames;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Sketch of the distinct users of a realm, or of a client of a realm, in a window
+     */
+    static final class Sketch {
+        // realm, or realm and client id
+        final List<String> labelValues;
+        // index of the window since the epoch
+        final long window;
+        final HyperLogLog users;
+
+        Sketch(List<String> labelValues, long window, HyperLogLog users) {
+            this.labelValues = labelValues;
+            this.window = window;
+            this.users = users;
+        }
+    }
+
+    byte[] encode() {
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        for (Family family : families) {
+            index(strings, family.name);
+            index(strings, family.help);
+            family.labelNames.forEach(name -> index(strings, name));
+            family.values.keySet().forEach(labelValues -> labelValues.forEach(value -> index(strings, value)));
+        }
+        for (Sketch sketch : sketches) {
+            sketch.labelValues.forEach(value -> index(strings, value));
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeUTF(node);
+            out.writeLong(epoch);
+            out.writeLong(sequence);
+            out.writeBoolean(full);
+            out.writeInt(strings.size());
+            for (String string : strings.keySet()) {
+                out.writeUTF(string);
+            }
+            out.writeInt(families.size());
+            for (Family family : families) {
+                out.writeInt(strings.get(family.name));
+                out.writeInt(strings.get(family.help));
+                out.writeByte(family.labelNames.size());
+                for (String name : family.labelNames) {
+                    out.writeInt(strings.get(name));
+                }
+                out.writeInt(family.values.size());
+                for (Map.Entry<List<String>, Double> series : family.values.entrySet()) {
+                    for (String value : series.getKey()) {
+                        out.writeInt(strings.get(value));
+                    }
+                    out.writeDouble(series.getValue());
+                }
+            }
+            out.writeInt(sketches.size());
+            for (Sketch sketch : sketches) {
+                out.writeByte(sketch.labelValues.size());
+                for (String value : sketch.labelValues) {
+                    out.writeInt(strings.get(value));
+                }
+                out.writeLong(sketch.window);
+                final byte[] users = sketch.users.encode();
+                out.writeInt(users.length);
+                out.write(users);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void index(Map<String, Integer> strings, String string) {
+        strings.putIfAbsent(string, strings.size());
+    }
+
+    /**
+     * @throws IOException if the message is not a snapshot of a known version
+     */
+    static ClusterSnapshot decode(byte[] message) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+        final int version = in.readUnsignedByte();
+        if (version != VERSION && version != VERSION_WITHOUT_EPOCH && version != VERSION_WITHOUT_SKETCHES) {
+            throw new IOException("Unsupported cluster snapshot version " + version);
+        }
+        final String node = in.readUTF();
+        final long epoch = version == VERSION ? in.readLong() : 0;
+        final long sequence = in.readLong();
+        final boolean full = in.readBoolean();
+        final String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        final int familyCount = in.readInt();
+        final List<Family> families = new ArrayList<>(familyCount);
+        for (int f = 0; f < familyCount; f++) {
+            final String name = strings[in.readInt()];
+            final String help = strings[in.readInt()];
+            final String[] labelNames = new String[in.readUnsignedByte()];
+            for (int i = 0; i < labelNames.length; i++) {
+                labelNames[i] = strings[in.readInt()];
+            }
+            final int seriesCount = in.readInt();
+            final Map<List<String>, Double> values = new HashMap<>(seriesCount * 2);
+            for (int s = 0; s < seriesCount; s++) {
+                final String[] labelValues = new String[labelNames.length];
+                for (int i = 0; i < labelValues.length; i++) {
+                    labelValues[i] = strings[in.readInt()];
+                }
+                values.put(List.of(labelValues), in.readDouble());
+            }
+            families.add(new Family(name, help, List.of(labelNames), values));
+        }
+        if (version == VERSION_WITHOUT_SKETCHES) {
+            return new ClusterSnapshot(node, epoch, sequence, full, Collections.unmodifiableList(families));
+        }
+        final int sketchCount = in.readInt();
+        final List<Sketch> sketches = new ArrayList<>(sketchCount);
+        for (int k = 0; k < sketchCount; k++) {
+            final String[] labelValues = new String[in.readUnsignedByte()];
+            for (int i = 0; i < labelValues.length; i++) {
+                labelValues[i] = strings[in.readInt()];
+            }
+            final long window = in.readLong();
+            final int length = in.readInt();
+            if (length < 0 || length > 2 + (1 << HyperLogLog.MAX_PRECISION)) {
+                throw new IOException("Invalid sketch of " + length + " bytes");
+            }
+            final byte[] users = new byte[length];
+            in.readFully(users);
+            sketches.add(new Sketch(List.of(labelValues), window, HyperLogLog.decode(users)));
+        }
+        return new ClusterSnapshot(node, epoch, sequence, full, Collections.unmodifiableList(families),
+            Collections.unmodifiableList(sketches));
+    }
+}
@@ -0,0 +1,34 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries the counter snapshots of the cluster view between the Keycloak nodes.
+ * <p>
+ * Implementations are selected with the {@code METRICS_CLUSTER_TRANSPORT} setting, by class name, and need a public
+ * constructor without arguments. Messages are opaque byte arrays; a transport may lose or reorder them, the cluster
+ * view only relies on every node eventually receiving the periodic full snapshots of the others.
+ */
+public interface ClusterTransport extends AutoCloseable {
+
+    /**
+     * Send a message to the other nodes. Called from the publishing thread of the cluster view, should not block
+     * for long.
+     *
+     * @param message Encoded snapshot
+     */
+    void publish(byte[] message);
+
+    /**
+     * Register the receiver of the messages sent by the nodes, possibly including this one
+     *
+     * @param receiver Receiver of the encoded snapshots
+     */
+    void subscribe(Consumer<byte[]> receiver);
+
+    /**
+     * Stop sending and receiving messages
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,344 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Totals of the event counters over all nodes of a cluster.
+ * <p>
+ * Every node periodically publishes the counters that changed since its previous publication, and every
+ * few publications all of its counters, through a {@link ClusterTransport}. Each node keeps the last known
+ * values of the other nodes and adds them to its own values when the cluster view is scraped.
+ * <p>
+ * The totals never decrease, so that a rollout is not taken for a counter reset: when another node restarts
+ * with a new epoch, its values before the restart are kept as a base that its new values add to, and when a node
+ * was not heard from for a while, its last values are retained in the totals. A node that restores its counters
+ * from a snapshot keeps its epoch, its restored values only count once they exceed its last published ones.
+ * <p>
+ * Full publications also carry the sketches of the distinct users of the node, if they are counted. The sketches of
+ * each node are merged by window, also across its restarts, and the sketches of the two last windows are kept.
+ */
+final class ClusterView {
+
+    private final static Logger logger = Logger.getLogger(ClusterView.class);
+
+    private final String node;
+    private final long epoch;
+    private final ClusterTransport transport;
+    private final Supplier<List<MetricFamilySamples>> localCounters;
+    private final Supplier<List<ClusterSnapshot.Sketch>> localSketches;
+    private final int fullSnapshotEvery;
+    private final long nodeTtlMillis;
+    private final ConcurrentMap<String, NodeCounters> nodes = new ConcurrentHashMap<>();
+    // last values of the nodes that left
+    private final Map<String, Total> retained = new HashMap<>();
+    // values of the last publication, only accessed by the publishing thread
+    private final Map<String, Map<List<String>, Double>> published = new HashMap<>();
+    private final ScheduledExecutorService executor;
+    private long sequence;
+
+    /**
+     * @param node              Unique name of this node
+     * @param transport         Transport to the other nodes
+     * @param localCounters     Current values of the counters of this node
+     * @param intervalMillis    Interval between two publications, 0 to only publish on demand
+     * @param fullSnapshotEvery Number of publications after which all counters are published again
+     * @param nodeTtlMillis     Time after which the counters of a silent node are left out
+     */
+    ClusterView(String node, ClusterTransport transport, Supplier<List<MetricFamilySamples>> localCounters,
+                long intervalMillis, int fullSnapshotEvery, long nodeTtlMillis) {
+        this(node, transport, localCounters, Collections::emptyList, intervalMillis, fullSnapshotEvery, nodeTtlMillis);
+    }
+
+    /**
+     * @param localSketches Current sketches of the distinct users of this node, published with all counters
+     */
+    ClusterView(String node, ClusterTransport transport, Supplier<List<MetricFamilySamples>> localCounters,
+                Supplier<List<ClusterSnapshot.Sketch>> localSketches, long intervalMillis, int fullSnapshotEvery,
+                long nodeTtlMillis) {
+        this(node, ClusterSnapshot.newEpoch(), transport, localCounters, localSketches, intervalMillis, fullSnapshotEvery,
+            nodeTtlMillis);
+    }
+
+    /**
+     * @param epoch Epoch of the counters of this node, kept by a restart that restores them
+     */
+    ClusterView(String node, long epoch, ClusterTransport transport, Supplier<List<MetricFamilySamples>> localCounters,
+                Supplier<List<ClusterSnapshot.Sketch>> localSketches, long intervalMillis, int fullSnapshotEvery,
+                long nodeTtlMillis) {
+        this.node = node;
+        this.epoch = epoch;
+        this.transport = transport;
+        this.localCounters = localCounters;
+        this.localSketches = localSketches;
+        this.fullSnapshotEvery = Math.max(1, fullSnapshotEvery);
+        this.nodeTtlMillis = nodeTtlMillis;
+        transport.subscribe(this::receive);
+        if (intervalMillis > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "keycloak-metrics-cluster");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::publishSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            logger.infof("Cluster view of node %s publishes its counters every %d ms.", node, intervalMillis);
+        } else {
+            executor = null;
+        }
+    }
+
+    private void publishSafely() {
+        try {
+            publish();
+        } catch (RuntimeException e) {
+            logger.error("Unable to publish the counters to the cluster", e);
+        }
+    }
+
+    /**
+     * Publish the counters changed since the previous publication, or all of them every few publications.
+     * Published even if nothing changed, so that the other nodes know this node is alive.
+     */
+    synchronized void publish() {
+        final boolean full = sequence % fullSnapshotEvery == 0;
+        final List<ClusterSnapshot.Family> families = new ArrayList<>();
+        for (MetricFamilySamples family : localCounters.get()) {
+            if (family.samples.isEmpty()) {
+                continue;
+            }
+            final Map<List<String>, Double> previous = published.computeIfAbsent(family.name, f -> new HashMap<>());
+            final Map<List<String>, Double> values = new HashMap<>();
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                final Double last = previous.put(sample.labelValues, sample.value);
+                if (full || last == null || last != sample.value) {
+                    values.put(sample.labelValues, sample.value);
+                }
+            }
+            if (!values.isEmpty()) {
+                families.add(new ClusterSnapshot.Family(family.name, family.help,
+                    family.samples.get(0).labelNames, values));
+            }
+        }
+        transport.publish(new ClusterSnapshot(node, epoch, sequence++, full, families,
+            full ? localSketches.get() : Collections.emptyList()).encode());
+    }
+
+    void receive(byte[] message) {
+        final ClusterSnapshot snapshot;
+        try {
+            snapshot = ClusterSnapshot.decode(message);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring invalid cluster snapshot", e);
+            return;
+        }
+        if (!node.equals(snapshot.node)) {
+            nodes.computeIfAbsent(snapshot.node, n -> new NodeCounters()).apply(snapshot);
+        }
+    }
+
+    /**
+     * Collect the totals of this node and of the nodes heard from recently, by counter family name
+     */
+    List<MetricFamilySamples> collect() {
+        final Map<String, Total> totals = new TreeMap<>();
+        for (MetricFamilySamples family : localCounters.get()) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                totals.computeIfAbsent(family.name, f -> new Total(family.help, sample.labelNames))
+                    .add(sample.labelValues, sample.value);
+            }
+        }
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, NodeCounters> n : nodes.entrySet()) {
+            // removed at most once by concurrent scrapes
+            if (now - n.getValue().lastSeen > nodeTtlMillis && nodes.remove(n.getKey(), n.getValue())) {
+                synchronized (retained) {
+                    n.getValue().addTo(retained);
+                }
+            }
+        }
+        for (NodeCounters counters : nodes.values()) {
+            counters.addTo(totals);
+        }
+        synchronized (retained) {
+            for (Map.Entry<String, Total> family : retained.entrySet()) {
+                final Total total = totals.computeIfAbsent(family.getKey(), f -> new Total(family.getValue().help, family.getValue().labelNames));
+                if (total.labelNames.equals(family.getValue().labelNames)) {
+                    family.getValue().values.forEach(total::add);
+                }
+            }
+        }
+        final List<MetricFamilySamples> result = new ArrayList<>(totals.size());
+        for (Map.Entry<String, Total> total : totals.entrySet()) {
+            final List<MetricFamilySamples.Sample> samples = new ArrayList<>(total.getValue().values.size());
+            for (Map.Entry<List<String>, Double> series : total.getValue().values.entrySet()) {
+                samples.add(new MetricFamilySamples.Sample(total.getKey() + "_total", total.getValue().labelNames,
+                    series.getKey(), series.getValue()));
+            }
+            result.add(new MetricFamilySamples(total.getKey(), Type.COUNTER, total.getValue().help, samples));
+        }
+        return result;
+    }
+
+    /**
+     * Sketches of the distinct users of the other nodes heard from recently, of their two last windows
+     */
+    List<ClusterSnapshot.Sketch> sketches() {
+        final List<ClusterSnapshot.Sketch> sketches = new ArrayList<>();
+        for (NodeCounters counters : nodes.values()) {
+            counters.addSketchesTo(sketches);
+        }
+        return sketches;
+    }
+
+    /**
+     * Number of other nodes heard from
+     */
+    int nodes() {
+        return nodes.size();
+    }
+
+    /**
+     * Publish all counters one last time and stop
+     */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            sequence = 0;
+            publishSafely();
+        }
+        transport.close();
+    }
+
+    /**
+     * Last known counter values of another node, and the values it had before it restarted
+     */
+    private static final class NodeCounters {
+        private final Map<String, NodeFamily> families = new HashMap<>();
+        // sketches by window and by label values
+        private final TreeMap<Long, Map<List<String>, HyperLogLog>> sketches = new TreeMap<>();
+        private long epoch;
+        private long sequence = -1;
+        private volatile long lastSeen;
+
+        private synchronized void apply(ClusterSnapshot snapshot) {
+            // a restarted node starts over with sequence 0 and a full snapshot, nodes of older versions have no epoch
+            final boolean restarted = snapshot.full && snapshot.sequence == 0 && sequence >= 0;
+            final boolean newEpoch = sequence >= 0 && (snapshot.epoch != epoch || snapshot.epoch == 0 && restarted);
+            if (snapshot.sequence <= sequence && !restarted && !newEpoch) {
+                return;
+            }
+            epoch = snapshot.epoch;
+            sequence = snapshot.sequence;
+            if (newEpoch) {
+                // the counters of the node start over at zero
+                for (NodeFamily family : families.values()) {
+                    family.last.forEach((labelValues, value) -> family.base.merge(labelValues, value, Double::sum));
+                    family.last.clear();
+                }
+            }
+            for (ClusterSnapshot.Family family : snapshot.families) {
+                final NodeFamily known = families.computeIfAbsent(family.name,
+                    f -> new NodeFamily(family.name, family.help, family.labelNames));
+                if (!known.labelNames.equals(family.labelNames)) {
+                    // another version of the counter, not comparable
+                    continue;
+                }
+                for (Map.Entry<List<String>, Double> series : family.values.entrySet()) {
+                    // restored values may be older than the last published ones
+                    known.last.merge(series.getKey(), series.getValue(), Math::max);
+                }
+            }
+            for (ClusterSnapshot.Sketch sketch : snapshot.sketches) {
+                final Map<List<String>, HyperLogLog> window = sketches.computeIfAbsent(sketch.window, w -> new HashMap<>());
+                final HyperLogLog users = window.putIfAbsent(sketch.labelValues, sketch.users);
+                if (users != null) {
+                    try {
+                        users.merge(sketch.users);
+                    } catch (IllegalArgumentException e) {
+                        // the precision was changed by a restart
+                        window.put(sketch.labelValues, sketch.users);
+                    }
+                }
+            }
+            while (sketches.size() > 2) {
+                sketches.pollFirstEntry();
+            }
+            lastSeen = System.currentTimeMillis();
+        }
+
+        private synchronized void addSketchesTo(List<ClusterSnapshot.Sketch> result) {
+            for (Map.Entry<Long, Map<List<String>, HyperLogLog>> window : sketches.entrySet()) {
+                for (Map.Entry<List<String>, HyperLogLog> sketch : window.getValue().entrySet()) {
+                    result.add(new ClusterSnapshot.Sketch(sketch.getKey(), window.getKey(), sketch.getValue()));
+                }
+            }
+        }
+
+        private synchronized void addTo(Map<String, Total> totals) {
+            for (NodeFamily family : families.values()) {
+                final Total total = totals.computeIfAbsent(family.name, f -> new Total(family.help, family.labelNames));
+                if (!total.labelNames.equals(family.labelNames)) {
+                    // another version of the counter, not comparable
+                    continue;
+                }
+                family.last.forEach(total::add);
+                family.base.forEach(total::add);
+            }
+        }
+    }
+
+    /**
+     * Counter family of another node: the last values of its series, and the sum of their values before the
+     * restarts of the node
+     */
+    private static final class NodeFamily {
+        private final String name;
+        private final String help;
+        private final List<String> labelNames;
+        private final Map<List<String>, Double> last = new HashMap<>();
+        private final Map<List<String>, Double> base = new HashMap<>();
+
+        private NodeFamily(String name, String help, List<String> labelNames) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = labelNames;
+        }
+    }
+
+    private static final class Total {
+        private final String help;
+        private final List<String> labelNames;
+        private final Map<List<String>, Double> values = new HashMap<>();
+
+        private Total(String help, List<String> labelNames) {
+            this.help = help;
+            this.labelNames = labelNames;
+        }
+
+        private void add(List<String> labelValues, double value) {
+            values.merge(labelValues, value, Double::sum);
+        }
+    }
+}
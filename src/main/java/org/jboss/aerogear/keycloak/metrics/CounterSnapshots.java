@@ -0,0 +1,250 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Periodic snapshots of the counter values in a memory-mapped file, so that the totals survive a restart.
+ * <p>
+ * The file holds a header and two slots of a fixed size. Each snapshot is written to the slot that does not
+ * hold the latest snapshot, with a sequence number and a checksum of its content, so that a crash while writing
+ * leaves the previous snapshot intact. On startup, the valid snapshot with the highest sequence number is read.
+ * Snapshots are taken by a daemon thread at a fixed interval, their cost depends on the number of series only.
+ * <p>
+ * The values are encoded as a full {@link ClusterSnapshot}. If the file does not exist yet, or its slots are
+ * smaller than configured, it is written anew to a temporary file that replaces it atomically. The snapshots carry
+ * the epoch of the counters, which is kept when they are restored, so that the cluster view does not take the restored
+ * counters for new ones.
+ */
+final class CounterSnapshots {
+
+    private final static Logger logger = Logger.getLogger(CounterSnapshots.class);
+
+    private static final int MAGIC = 0x4b4d4353;
+    private static final int VERSION = 1;
+    // magic, version, slot size, reserved
+    private static final int HEADER_BYTES = 16;
+    // sequence, length, checksum
+    private static final int SLOT_HEADER_BYTES = 16;
+
+    private final Path file;
+    private final Supplier<List<MetricFamilySamples>> counters;
+    private final ClusterSnapshot restored;
+    private final long epoch;
+    private final MappedByteBuffer buffer;
+    private final int slotBytes;
+    private long sequence;
+    private boolean warnedTooLarge;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Open the file, creating it if needed, and read its latest snapshot
+     *
+     * @param file      Snapshot file
+     * @param slotBytes Size of a slot, the largest snapshot that fits in the file
+     * @param counters  Current values of the counters
+     */
+    CounterSnapshots(Path file, int slotBytes, Supplier<List<MetricFamilySamples>> counters) throws IOException {
+        this.file = file;
+        this.counters = counters;
+        Slot latest = null;
+        int fileSlotBytes = 0;
+        if (Files.isRegularFile(file) && Files.size(file) >= HEADER_BYTES) {
+            final MappedByteBuffer existing = map(file, Files.size(file));
+            if (existing.getInt(0) == MAGIC && existing.getInt(4) == VERSION
+                && Files.size(file) == HEADER_BYTES + 2L * existing.getInt(8)) {
+                fileSlotBytes = existing.getInt(8);
+                latest = latest(existing, fileSlotBytes);
+            } else {
+                logger.warnf("Ignoring the invalid counter snapshot file %s", file);
+            }
+        }
+        if (fileSlotBytes < slotBytes) {
+            create(file, slotBytes, latest);
+            fileSlotBytes = slotBytes;
+        }
+        this.slotBytes = fileSlotBytes;
+        this.buffer = map(file, HEADER_BYTES + 2L * fileSlotBytes);
+        this.sequence = latest != null ? latest.sequence : 0;
+        this.restored = latest != null ? ClusterSnapshot.decode(latest.payload) : null;
+        this.epoch = restored != null && restored.epoch != 0 ? restored.epoch : ClusterSnapshot.newEpoch();
+    }
+
+    /**
+     * Latest snapshot read from the file when it was opened, null if it held none
+     */
+    ClusterSnapshot restored() {
+        return restored;
+    }
+
+    /**
+     * Epoch of the counters, the one of the restored snapshot if it had one
+     */
+    long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Take a snapshot now and then periodically
+     */
+    synchronized void start(long intervalMillis) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "keycloak-metrics-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::writeSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.infof("Counters are saved to %s every %d ms.", file, intervalMillis);
+    }
+
+    private void writeSafely() {
+        try {
+            write();
+        } catch (RuntimeException e) {
+            logger.error("Unable to save the counters", e);
+        }
+    }
+
+    /**
+     * Write the current counter values to the slot that does not hold the latest snapshot
+     */
+    synchronized void write() {
+        final List<ClusterSnapshot.Family> families = new ArrayList<>();
+        for (MetricFamilySamples family : counters.get()) {
+            if (family.samples.isEmpty()) {
+                continue;
+            }
+            final Map<List<String>, Double> values = new HashMap<>(family.samples.size() * 2);
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                values.put(sample.labelValues, sample.value);
+            }
+            families.add(new ClusterSnapshot.Family(family.name, family.help, family.samples.get(0).labelNames, values));
+        }
+        final long next = sequence + 1;
+        final byte[] payload = new ClusterSnapshot("", epoch, next, true, families).encode();
+        if (payload.length > slotBytes - SLOT_HEADER_BYTES) {
+            if (!warnedTooLarge) {
+                logger.warnf("The counters need %d bytes, more than the %d bytes of a slot of %s, they are not saved",
+                    payload.length, slotBytes - SLOT_HEADER_BYTES, file);
+                warnedTooLarge = true;
+            }
+            return;
+        }
+        final int offset = offset(next);
+        // the checksum covers the sequence number and the length, a torn write leaves an invalid slot
+        buffer.put(offset + SLOT_HEADER_BYTES, payload);
+        buffer.putInt(offset + 8, payload.length);
+        buffer.putInt(offset + 12, checksum(next, payload));
+        buffer.putLong(offset, next);
+        buffer.force(offset, SLOT_HEADER_BYTES + payload.length);
+        sequence = next;
+    }
+
+    /**
+     * Take a last snapshot and stop
+     */
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        writeSafely();
+    }
+
+    private int offset(long sequence) {
+        return HEADER_BYTES + (int) (sequence & 1) * slotBytes;
+    }
+
+    private static Slot latest(ByteBuffer buffer, int slotBytes) {
+        Slot latest = null;
+        for (int i = 0; i < 2; i++) {
+            final int offset = HEADER_BYTES + i * slotBytes;
+            final long sequence = buffer.getLong(offset);
+            final int length = buffer.getInt(offset + 8);
+            if (sequence <= 0 || length < 0 || length > slotBytes - SLOT_HEADER_BYTES) {
+                continue;
+            }
+            final byte[] payload = new byte[length];
+            buffer.get(offset + SLOT_HEADER_BYTES, payload);
+            if (buffer.getInt(offset + 12) == checksum(sequence, payload) && (latest == null || sequence > latest.sequence)) {
+                latest = new Slot(sequence, payload);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Write a new file with the given slot size and the given snapshot, then move it in place
+     */
+    private static void create(Path file, int slotBytes, Slot latest) throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        final Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            final MappedByteBuffer buffer = map(temporary, HEADER_BYTES + 2L * slotBytes);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, slotBytes);
+            if (latest != null && latest.payload.length <= slotBytes - SLOT_HEADER_BYTES) {
+                final int offset = HEADER_BYTES + (int) (latest.sequence & 1) * slotBytes;
+                buffer.put(offset + SLOT_HEADER_BYTES, latest.payload);
+                buffer.putLong(offset, latest.sequence);
+                buffer.putInt(offset + 8, latest.payload.length);
+                buffer.putInt(offset + 12, checksum(latest.sequence, latest.payload));
+            }
+            buffer.force();
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int checksum(long sequence, byte[] payload) {
+        final CRC32C crc = new CRC32C();
+        final ByteBuffer header = ByteBuffer.allocate(12).putLong(sequence).putInt(payload.length);
+        crc.update(header.flip());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Valid snapshot of a slot
+     */
+    private static final class Slot {
+        private final long sequence;
+        private final byte[] payload;
+
+        private Slot(long sequence, byte[] payload) {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Estimated number of distinct users with events per realm, and optionally per client, as gauges.
+ * <p>
+ * The users of each realm are counted in a {@link HyperLogLog} sketch per window of fixed length, e.g. an hour, so
+ * the memory does not depend on the number of users. The gauges report the users of the current window, which only
+ * grow until it ends, and of the previous window. Windows start at multiples of their length since the epoch, so that
+ * they are the same for all realms and on all nodes, and the sketches of the nodes of a cluster can be merged into
+ * those of the cluster (see {@link #sketches()} and {@link #collect(Collection)}). Sketches per client are limited to a
+ * number of clients per realm, the users of the other clients are only counted for the realm.
+ */
+final class DistinctUsers extends Collector implements Collector.Describable {
+
+    static final String USERS = "keycloak_distinct_users";
+    static final String CLIENT_USERS = "keycloak_client_distinct_users";
+    private static final String USERS_HELP = "Estimated number of distinct users with events in the window";
+    private static final String CLIENT_USERS_HELP = "Estimated number of distinct users with events of the client in the window";
+    private static final List<String> LABEL_NAMES = Arrays.asList("realm", "window");
+    private static final List<String> CLIENT_LABEL_NAMES = Arrays.asList("realm", "client_id", "window");
+    private static final String CURRENT = "current";
+    private static final String PREVIOUS = "previous";
+
+    private final static Logger logger = Logger.getLogger(DistinctUsers.class);
+
+    private final int precision;
+    private final int clientPrecision;
+    private final int maxClients;
+    private final long windowMillis;
+    private final LongSupplier clock;
+    private final Map<String, Realm> realms = new ConcurrentHashMap<>();
+
+    /**
+     * @param precision       Precision of the sketches of the realms
+     * @param clientPrecision Precision of the sketches of the clients
+     * @param maxClients      Number of clients per realm with a sketch of their own, 0 for none
+     * @param windowMillis    Length of a window
+     */
+    DistinctUsers(int precision, int clientPrecision, int maxClients, long windowMillis) {
+        this(precision, clientPrecision, maxClients, windowMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Wall clock in milliseconds, for tests
+     */
+    DistinctUsers(int precision, int clientPrecision, int maxClients, long windowMillis, LongSupplier clock) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("The window of the distinct users needs to be positive");
+        }
+        // fail on startup rather than on the first event
+        new HyperLogLog(precision);
+        if (maxClients > 0) {
+            new HyperLogLog(clientPrecision);
+        }
+        this.precision = precision;
+        this.clientPrecision = clientPrecision;
+        this.maxClients = maxClients;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Count a user with an event
+     *
+     * @param realm    Name of the realm
+     * @param clientId ID of the client, empty if unknown
+     * @param userId   ID of the user
+     */
+    void record(String realm, String clientId, String userId) {
+        final long index = window();
+        final Window window = realms.computeIfAbsent(realm, r -> new Realm(index)).current(index);
+        window.users.offer(userId);
+        if (maxClients > 0 && !clientId.isEmpty()) {
+            HyperLogLog clientUsers = window.clients.get(clientId);
+            if (clientUsers == null) {
+                if (!window.reserveClient()) {
+                    return;
+                }
+                final HyperLogLog created = new HyperLogLog(clientPrecision);
+                clientUsers = window.clients.putIfAbsent(clientId, created);
+                if (clientUsers != null) {
+                    // added concurrently by another thread, which reserved it
+                    window.clientCount.decrementAndGet();
+                } else {
+                    clientUsers = created;
+                }
+            }
+            clientUsers.offer(userId);
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final long index = window();
+        final List<MetricFamilySamples.Sample> users = new ArrayList<>();
+        final List<MetricFamilySamples.Sample> clientUsers = new ArrayList<>();
+        for (Map.Entry<String, Realm> realm : realms.entrySet()) {
+            final Window current = realm.getValue().current(index);
+            add(users, clientUsers, realm.getKey(), CURRENT, current);
+            add(users, clientUsers, realm.getKey(), PREVIOUS, realm.getValue().previous);
+        }
+        final List<MetricFamilySamples> families = new ArrayList<>(2);
+        families.add(new MetricFamilySamples(USERS, Type.GAUGE, USERS_HELP, users));
+        if (maxClients > 0) {
+            families.add(new MetricFamilySamples(CLIENT_USERS, Type.GAUGE, CLIENT_USERS_HELP, clientUsers));
+        }
+        return families;
+    }
+
+    /**
+     * The gauges of the sketches of this node merged with those of other nodes, which count users seen by any of them
+     *
+     * @param others Sketches of the other nodes, of any window
+     */
+    List<MetricFamilySamples> collect(Collection<ClusterSnapshot.Sketch> others) {
+        final long index = window();
+        // by the label values of the samples
+        final Map<List<String>, HyperLogLog> merged = new HashMap<>();
+        for (Map.Entry<String, Realm> realm : realms.entrySet()) {
+            final Window current = realm.getValue().current(index);
+            for (ClusterSnapshot.Sketch sketch : sketches(realm.getKey(), current)) {
+                merge(merged, sketch, index);
+            }
+            for (ClusterSnapshot.Sketch sketch : sketches(realm.getKey(), realm.getValue().previous)) {
+                merge(merged, sketch, index);
+            }
+        }
+        for (ClusterSnapshot.Sketch sketch : others) {
+            merge(merged, sketch, index);
+        }
+        final List<MetricFamilySamples.Sample> users = new ArrayList<>();
+        final List<MetricFamilySamples.Sample> clientUsers = new ArrayList<>();
+        for (Map.Entry<List<String>, HyperLogLog> sketch : merged.entrySet()) {
+            if (sketch.getKey().size() == LABEL_NAMES.size()) {
+                users.add(new MetricFamilySamples.Sample(USERS, LABEL_NAMES, sketch.getKey(), sketch.getValue().estimate()));
+            } else if (maxClients > 0) {
+                clientUsers.add(new MetricFamilySamples.Sample(CLIENT_USERS, CLIENT_LABEL_NAMES, sketch.getKey(), sketch.getValue().estimate()));
+            }
+        }
+        final List<MetricFamilySamples> families = new ArrayList<>(2);
+        families.add(new MetricFamilySamples(USERS, Type.GAUGE, USERS_HELP, users));
+        if (maxClients > 0) {
+            families.add(new MetricFamilySamples(CLIENT_USERS, Type.GAUGE, CLIENT_USERS_HELP, clientUsers));
+        }
+        return families;
+    }
+
+    private static void merge(Map<List<String>, HyperLogLog> merged, ClusterSnapshot.Sketch sketch, long index) {
+        final String name = sketch.window == index ? CURRENT : sketch.window == index - 1 ? PREVIOUS : null;
+        if (name == null) {
+            // of a window that ended, or of a node whose clock is ahead
+            return;
+        }
+        final List<String> labelValues = new ArrayList<>(sketch.labelValues);
+        labelValues.add(name);
+        final HyperLogLog users = merged.get(labelValues);
+        try {
+            if (users == null) {
+                final HyperLogLog copy = new HyperLogLog(sketch.users.precision());
+                copy.merge(sketch.users);
+                merged.put(labelValues, copy);
+            } else {
+                users.merge(sketch.users);
+            }
+        } catch (IllegalArgumentException e) {
+            logger.debugf("Ignoring a sketch of another precision for %s", labelValues);
+        }
+    }
+
+    /**
+     * Sketches of the current and the previous window of all realms, and of their clients, for the other nodes
+     */
+    List<ClusterSnapshot.Sketch> sketches() {
+        final long index = window();
+        final List<ClusterSnapshot.Sketch> sketches = new ArrayList<>();
+        for (Map.Entry<String, Realm> realm : realms.entrySet()) {
+            sketches.addAll(sketches(realm.getKey(), realm.getValue().current(index)));
+            sketches.addAll(sketches(realm.getKey(), realm.getValue().previous));
+        }
+        return sketches;
+    }
+
+    private static List<ClusterSnapshot.Sketch> sketches(String realm, Window window) {
+        if (window == null) {
+            return Collections.emptyList();
+        }
+        final List<ClusterSnapshot.Sketch> sketches = new ArrayList<>(1 + window.clients.size());
+        sketches.add(new ClusterSnapshot.Sketch(Collections.singletonList(realm), window.index, window.users));
+        for (Map.Entry<String, HyperLogLog> client : window.clients.entrySet()) {
+            sketches.add(new ClusterSnapshot.Sketch(Arrays.asList(realm, client.getKey()), window.index, client.getValue()));
+        }
+        return sketches;
+    }
+
+    private static void add(List<MetricFamilySamples.Sample> users, List<MetricFamilySamples.Sample> clientUsers,
+                            String realm, String name, Window window) {
+        if (window == null) {
+            return;
+        }
+        users.add(new MetricFamilySamples.Sample(USERS, LABEL_NAMES, Arrays.asList(realm, name), window.users.estimate()));
+        for (Map.Entry<String, HyperLogLog> client : window.clients.entrySet()) {
+            clientUsers.add(new MetricFamilySamples.Sample(CLIENT_USERS, CLIENT_LABEL_NAMES,
+                Arrays.asList(realm, client.getKey(), name), client.getValue().estimate()));
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        final List<MetricFamilySamples> families = new ArrayList<>(2);
+        families.add(new MetricFamilySamples(USERS, Type.GAUGE, USERS_HELP, Collections.emptyList()));
+        if (maxClients > 0) {
+            families.add(new MetricFamilySamples(CLIENT_USERS, Type.GAUGE, CLIENT_USERS_HELP, Collections.emptyList()));
+        }
+        return families;
+    }
+
+    /**
+     * Index of the current window since the epoch, the same for all realms and nodes
+     */
+    private long window() {
+        return clock.getAsLong() / windowMillis;
+    }
+
+    /**
+     * Sketches of a realm in the current and in the previous window
+     */
+    private final class Realm {
+        private volatile Window current;
+        private volatile Window previous;
+
+        private Realm(long index) {
+            current = new Window(index);
+        }
+
+        /**
+         * The window of the given index, which replaces the current one once it ended
+         */
+        Window current(long index) {
+            Window window = current;
+            if (window.index >= index) {
+                return window;
+            }
+            synchronized (this) {
+                window = current;
+                if (window.index < index) {
+                    // users still offered to the ended window by concurrent events are counted in the previous one
+                    previous = window.index == index - 1 ? window : null;
+                    window = new Window(index);
+                    current = window;
+                }
+                return window;
+            }
+        }
+    }
+
+    private final class Window {
+        private final long index;
+        private final HyperLogLog users = new HyperLogLog(precision);
+        private final Map<String, HyperLogLog> clients = new ConcurrentHashMap<>();
+        private final AtomicInteger clientCount = new AtomicInteger();
+
+        private Window(long index) {
+            this.index = index;
+        }
+
+        /**
+         * Reserve a sketch for a client, unless the window has sketches for the largest number of clients
+         */
+        private boolean reserveClient() {
+            int n;
+            while ((n = clientCount.get()) < maxClients) {
+                if (clientCount.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.jboss.logging.Logger;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.OperationType;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the recording of events off the threads handling the requests.
+ * <p>
+ * Event listeners only copy the labels of an event into a pre-allocated slot of a bounded ring buffer,
+ * a single daemon thread takes the events from the buffer and applies them to the collectors.
+ * Producers claim slots with a CAS on the tail, each slot carries a sequence number telling whether it is
+ * free or published (see Dmitry Vyukov's bounded MPMC queue, with a single consumer here).
+ * <p>
+ * When the buffer is full, events are either dropped and counted, or the producer waits for a free slot.
+ * The aggregator parks while the buffer is empty and is unparked by the next producer. On shutdown, it
+ * waits for the producers that saw it running before its last drain, later events are applied directly.
+ */
+final class EventIngest {
+
+    private final static Logger logger = Logger.getLogger(EventIngest.class);
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    /**
+     * Applies the events taken from the buffer
+     */
+    interface Sink {
+        void event(EventType type, String realm, String provider, String clientId, String error,
+                   String user, String ipAddress, String[] exemplar);
+
+        void adminEvent(OperationType operation, String resourceType, String realm, String[] exemplar);
+    }
+
+    private final Sink sink;
+    private final boolean block;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    // producers between their check of running and the publication of their event
+    private final AtomicInteger producers = new AtomicInteger();
+    private final Counter.Child dropped;
+    private final Thread aggregator;
+    private volatile boolean running = true;
+    private volatile boolean idle;
+
+    /**
+     * @param sink     Applies the events
+     * @param capacity Number of slots, rounded up to a power of two
+     * @param block    Whether producers wait for a free slot instead of dropping the event when the buffer is full
+     */
+    EventIngest(Sink sink, int capacity, boolean block) {
+        this.sink = sink;
+        this.block = block;
+        final int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+        this.mask = size - 1;
+
+        dropped = Counter.build()
+            .name("keycloak_event_queue_dropped")
+            .help("Total number of events dropped because the event queue was full")
+            .register()
+            .labels();
+
+        Gauge.build()
+            .name("keycloak_event_queue_depth")
+            .help("Number of events waiting to be recorded")
+            .register()
+            .setChild(new Gauge.Child() {
+                @Override
+                public double get() {
+                    return depth();
+                }
+            });
+
+        aggregator = new Thread(this::run, "keycloak-metrics-events");
+        aggregator.setDaemon(true);
+        logger.infof("Events are recorded asynchronously, queue capacity is %d.", size);
+    }
+
+    void start() {
+        aggregator.start();
+    }
+
+    /**
+     * Queue a user event
+     *
+     * @param user      Username of a failed login for the top-K, null otherwise
+     * @param ipAddress IP address of a failed login for the top-K, null otherwise
+     */
+    void offer(EventType type, String realm, String provider, String clientId, String error,
+               String user, String ipAddress, String[] exemplar) {
+        producers.incrementAndGet();
+        try {
+            final Slot slot = running ? claim() : null;
+            if (slot == null) {
+                if (running) {
+                    dropped.inc();
+                } else {
+                    // no one is taking events anymore
+                    sink.event(type, realm, provider, clientId, error, user, ipAddress, exemplar);
+                }
+                return;
+            }
+            slot.type = type;
+            slot.realm = realm;
+            slot.provider = provider;
+            slot.clientId = clientId;
+            slot.error = error;
+            slot.user = user;
+            slot.ipAddress = ipAddress;
+            slot.exemplar = exemplar;
+            publish(slot);
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Queue an admin event
+     */
+    void offer(OperationType operation, String resourceType, String realm, String[] exemplar) {
+        producers.incrementAndGet();
+        try {
+            final Slot slot = running ? claim() : null;
+            if (slot == null) {
+                if (running) {
+                    dropped.inc();
+                } else {
+                    sink.adminEvent(operation, resourceType, realm, exemplar);
+                }
+                return;
+            }
+            slot.operation = operation;
+            slot.resourceType = resourceType;
+            slot.realm = realm;
+            slot.exemplar = exemplar;
+            publish(slot);
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    private void publish(Slot slot) {
+        slot.publish();
+        if (idle) {
+            LockSupport.unpark(aggregator);
+        }
+    }
+
+    private Slot claim() {
+        Slot slot;
+        while ((slot = tryClaim()) == null && block && running) {
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        return slot;
+    }
+
+    /**
+     * Claim the slot at the tail, if it was released by the aggregator
+     *
+     * @return The claimed slot or null if the buffer is full
+     */
+    private Slot tryClaim() {
+        long position = tail.get();
+        while (true) {
+            final Slot slot = slots[(int) (position & mask)];
+            final long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.position = position;
+                    return slot;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                // claimed by another producer in the meantime
+                position = tail.get();
+            }
+        }
+    }
+
+    long depth() {
+        return Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Apply all published events
+     *
+     * @return Number of applied events
+     */
+    int drain() {
+        int drained = 0;
+        long position = head.get();
+        while (true) {
+            final Slot slot = slots[(int) (position & mask)];
+            if (slot.sequence != position + 1) {
+                return drained;
+            }
+            try {
+                if (slot.operation != null) {
+                    sink.adminEvent(slot.operation, slot.resourceType, slot.realm, slot.exemplar);
+                } else {
+                    sink.event(slot.type, slot.realm, slot.provider, slot.clientId, slot.error, slot.user, slot.ipAddress, slot.exemplar);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Unable to record event", e);
+            }
+            slot.release(position + slots.length);
+            position++;
+            head.lazySet(position);
+            drained++;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            if (drain() == 0) {
+                idle = true;
+                // checked again after announcing it, so that the unpark of a producer that just published is not missed
+                if (running && !published()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+        }
+        // producers that saw the aggregator running publish their events, the others record them directly
+        while (producers.get() > 0) {
+            if (drain() == 0) {
+                Thread.onSpinWait();
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Whether the event at the head was published
+     */
+    private boolean published() {
+        final long position = head.get();
+        return slots[(int) (position & mask)].sequence == position + 1;
+    }
+
+    /**
+     * Stop the aggregator once it recorded the queued events
+     */
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(aggregator);
+        try {
+            aggregator.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Slot {
+        // equal to the position when free, position + 1 when published
+        private volatile long sequence;
+        private long position;
+
+        private EventType type;
+        private OperationType operation;
+        private String resourceType;
+        private String realm;
+        private String provider;
+        private String clientId;
+        private String error;
+        private String user;
+        private String ipAddress;
+        private String[] exemplar;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        private void publish() {
+            sequence = position + 1;
+        }
+
+        private void release(long nextSequence) {
+            type = null;
+            operation = null;
+            resourceType = null;
+            realm = null;
+            provider = null;
+            clientId = null;
+            error = null;
+            user = null;
+            ipAddress = null;
+            exemplar = null;
+            sequence = nextSequence;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Chooses the requests and events that leave an exemplar on the series they update, and their exemplar labels.
+ * <p>
+ * An exemplar points from a sample to the request that caused it: the trace ID of the request, taken from the
+ * W3C {@code traceparent} or the B3 headers, otherwise the {@code X-Request-ID} header or the ID of the event.
+ * Only a fraction of the requests and events is sampled, so that the headers are not parsed on every request.
+ * Prometheus keeps a single exemplar per series anyway.
+ */
+final class Exemplars {
+
+    static final String TRACE_ID = "trace_id";
+    static final String REQUEST_ID = "request_id";
+    static final String EVENT_ID = "event_id";
+
+    // the labels of an exemplar may not be longer than 128 characters in total
+    private static final int MAX_ID_LENGTH = 64;
+
+    private final double sampleRate;
+
+    /**
+     * @param sampleRate Fraction of the requests and events that get an exemplar, between 0 and 1
+     */
+    Exemplars(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Whether the current request or event gets an exemplar
+     */
+    boolean sample() {
+        return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Labels of the exemplar of a request
+     *
+     * @param headers Request headers by name, may be null
+     * @return Label names and values, null if the request carries no ID
+     */
+    static String[] labels(Function<String, String> headers) {
+        return labels(headers, null);
+    }
+
+    /**
+     * Labels of the exemplar of an event
+     *
+     * @param headers Headers of the request that caused the event by name, may be null
+     * @param eventId ID of the event, used if the request carries no ID
+     * @return Label names and values, null if neither the request nor the event carry an ID
+     */
+    static String[] labels(Function<String, String> headers, String eventId) {
+        if (headers != null) {
+            String traceId = traceParent(headers.apply("traceparent"));
+            if (traceId == null) {
+                traceId = b3(headers.apply("b3"));
+            }
+            if (traceId == null) {
+                traceId = traceId(headers.apply("X-B3-TraceId"));
+            }
+            if (traceId != null) {
+                return new String[]{TRACE_ID, traceId};
+            }
+            final String requestId = headers.apply("X-Request-ID");
+            if (requestId != null && !requestId.isBlank()) {
+                return new String[]{REQUEST_ID, truncate(requestId.trim())};
+            }
+        }
+        if (eventId != null && !eventId.isEmpty()) {
+            return new String[]{EVENT_ID, truncate(eventId)};
+        }
+        return null;
+    }
+
+    /**
+     * Trace ID of a W3C trace context header, {@code version-traceid-parentid-flags}
+     */
+    static String traceParent(String header) {
+        if (header == null || header.length() < 55 || header.charAt(2) != '-' || header.charAt(35) != '-') {
+            return null;
+        }
+        return traceId(header.substring(3, 35));
+    }
+
+    /**
+     * Trace ID of a single B3 header, {@code traceid-spanid[-sampled[-parentspanid]]}
+     */
+    static String b3(String header) {
+        if (header == null) {
+            return null;
+        }
+        final int end = header.indexOf('-');
+        return end > 0 ? traceId(header.substring(0, end)) : null;
+    }
+
+    /**
+     * The trace ID if it has 16 or 32 lower or upper case hex digits and is not zero, otherwise null
+     */
+    private static String traceId(String id) {
+        if (id == null || (id.length() != 16 && id.length() != 32)) {
+            return null;
+        }
+        boolean zero = true;
+        for (int i = 0; i < id.length(); i++) {
+            final char c = id.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F')) {
+                return null;
+            }
+            zero &= c == '0';
+        }
+        return zero ? null : id;
+    }
+
+    private static String truncate(String id) {
+        return id.length() > MAX_ID_LENGTH ? id.substring(0, MAX_ID_LENGTH) : id;
+    }
+}
@@ -0,0 +1,303 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writer of the Prometheus text format 0.0.4, producing the same output as {@code TextFormat.write004}
+ * straight into a byte buffer.
+ * <p>
+ * The series tracked by a {@link SeriesIndex} carry their name and labels already encoded to UTF-8,
+ * so that writing them only formats their values. Integral values, which are most of the values
+ * of counters and buckets, are formatted without allocating. Families of other collectors are
+ * escaped and encoded on the fly, without going through a {@link java.io.Writer}.
+ */
+final class ExpositionWriter {
+
+    private static final int NO_ESCAPE = 0;
+    private static final int HELP_ESCAPE = 1;
+    private static final int LABEL_VALUE_ESCAPE = 2;
+
+    // Double.toString switches to the computerized scientific notation from 10^7 on
+    private static final double PLAIN_NOTATION_LIMIT = 1e7;
+
+    private final OutputStream stream;
+    private final byte[] buffer;
+    private int position;
+    // created samples are written at the end as gauge families, in name order like write004 does
+    private final Map<String, CreatedFamily> createdFamilies = new TreeMap<>();
+
+    /**
+     * @param stream     Stream the buffer is flushed to
+     * @param bufferSize Size of the buffer, at least 32 bytes
+     */
+    ExpositionWriter(OutputStream stream, int bufferSize) {
+        this.stream = stream;
+        this.buffer = new byte[Math.max(32, bufferSize)];
+    }
+
+    /**
+     * Write the families of collectors not tracked by an index
+     */
+    void write(Enumeration<MetricFamilySamples> families) throws IOException {
+        while (families.hasMoreElements()) {
+            write(families.nextElement());
+        }
+    }
+
+    private void write(MetricFamilySamples family) throws IOException {
+        final String suffix = family.type == Collector.Type.COUNTER ? "_total"
+            : family.type == Collector.Type.INFO ? "_info" : "";
+        writeHeader(family.name + suffix, family.help, family.type);
+        final String createdName = family.name + "_created";
+        final String gcountName = family.name + "_gcount";
+        final String gsumName = family.name + "_gsum";
+        for (MetricFamilySamples.Sample sample : family.samples) {
+            if (sample.name.equals(createdName) || sample.name.equals(gcountName) || sample.name.equals(gsumName)) {
+                createdFamily(sample.name, family.help).samples.add(sample);
+                continue;
+            }
+            writeSample(sample);
+        }
+    }
+
+    private void writeHeader(String name, String help, Collector.Type type) throws IOException {
+        writeUtf8("# HELP ", NO_ESCAPE);
+        writeUtf8(name, NO_ESCAPE);
+        writeByte(' ');
+        writeUtf8(help, HELP_ESCAPE);
+        writeUtf8("\n# TYPE ", NO_ESCAPE);
+        writeUtf8(name, NO_ESCAPE);
+        writeByte(' ');
+        writeUtf8(typeString(type), NO_ESCAPE);
+        writeByte('\n');
+    }
+
+    private void writeSample(MetricFamilySamples.Sample sample) throws IOException {
+        writeUtf8(sample.name, NO_ESCAPE);
+        if (!sample.labelNames.isEmpty()) {
+            writeByte('{');
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                writeUtf8(sample.labelNames.get(i), NO_ESCAPE);
+                writeByte('=');
+                writeByte('"');
+                writeUtf8(sample.labelValues.get(i), LABEL_VALUE_ESCAPE);
+                writeByte('"');
+                writeByte(',');
+            }
+            writeByte('}');
+        }
+        writeByte(' ');
+        writeDouble(sample.value);
+        if (sample.timestampMs != null) {
+            writeByte(' ');
+            writeLong(sample.timestampMs);
+        }
+        writeByte('\n');
+    }
+
+    /**
+     * Queue a pre-encoded created sample, written with the other created samples at the end
+     */
+    void created(String name, String help, byte[] line) {
+        createdFamily(name, help).lines.add(line);
+    }
+
+    private CreatedFamily createdFamily(String name, String help) {
+        return createdFamilies.computeIfAbsent(name, n -> new CreatedFamily(help));
+    }
+
+    /**
+     * Write the created samples and flush the buffer to the stream
+     */
+    void finish() throws IOException {
+        for (Map.Entry<String, CreatedFamily> family : createdFamilies.entrySet()) {
+            writeHeader(family.getKey(), family.getValue().help, Collector.Type.GAUGE);
+            for (byte[] line : family.getValue().lines) {
+                writeBytes(line);
+            }
+            for (MetricFamilySamples.Sample sample : family.getValue().samples) {
+                writeSample(sample);
+            }
+        }
+        createdFamilies.clear();
+        flush();
+        stream.flush();
+    }
+
+    void writeBytes(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flush();
+            if (bytes.length > buffer.length) {
+                stream.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    void writeByte(int b) throws IOException {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    /**
+     * Write a value the way {@link Collector#doubleToGoString} formats it
+     */
+    void writeDouble(double value) throws IOException {
+        if (value == (long) value && Math.abs(value) < PLAIN_NOTATION_LIMIT
+            && (value != 0 || 1 / value > 0)) {
+            writeLong((long) value);
+            writeByte('.');
+            writeByte('0');
+        } else {
+            writeUtf8(Collector.doubleToGoString(value), NO_ESCAPE);
+        }
+    }
+
+    void writeLong(long value) throws IOException {
+        if (buffer.length - position < 20) {
+            flush();
+        }
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                writeUtf8(Long.toString(value), NO_ESCAPE);
+                return;
+            }
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    /**
+     * Encode a string to UTF-8, escaped as help text or label value if asked to
+     */
+    private void writeUtf8(String value, int escape) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                if (escape != NO_ESCAPE && (c == '\\' || c == '\n' || (c == '"' && escape == LABEL_VALUE_ESCAPE))) {
+                    writeByte('\\');
+                    writeByte(c == '\n' ? 'n' : c);
+                } else {
+                    writeByte(c);
+                }
+            } else if (c < 0x800) {
+                writeByte(0xc0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeByte(0xf0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, replaced like the JDK encoder does
+                writeByte('?');
+            } else {
+                writeByte(0xe0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3f));
+                writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        if (position > 0) {
+            stream.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /**
+     * Encode the HELP and TYPE lines of a family
+     */
+    static byte[] header(String name, String help, Collector.Type type) {
+        return ("# HELP " + name + ' ' + escapeHelp(help) + "\n# TYPE " + name + ' ' + typeString(type) + '\n')
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode the name and labels of a sample, up to the space before the value
+     */
+    static byte[] prefix(String name, List<String> labelNames, List<String> labelValues) {
+        final StringBuilder prefix = new StringBuilder(name);
+        if (!labelNames.isEmpty()) {
+            prefix.append('{');
+            for (int i = 0; i < labelNames.size(); i++) {
+                prefix.append(labelNames.get(i)).append("=\"").append(escapeLabelValue(labelValues.get(i))).append("\",");
+            }
+            prefix.append('}');
+        }
+        return prefix.append(' ').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode a complete sample line
+     */
+    static byte[] line(String name, List<String> labelNames, List<String> labelValues, double value) {
+        final byte[] prefix = prefix(name, labelNames, labelValues);
+        final byte[] formatted = (Collector.doubleToGoString(value) + '\n').getBytes(StandardCharsets.UTF_8);
+        final byte[] line = new byte[prefix.length + formatted.length];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        System.arraycopy(formatted, 0, line, prefix.length, formatted.length);
+        return line;
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String typeString(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return "counter";
+            case GAUGE:
+            case STATE_SET:
+            case INFO:
+                return "gauge";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+            case GAUGE_HISTOGRAM:
+                return "histogram";
+            default:
+                return "untyped";
+        }
+    }
+
+    private static final class CreatedFamily {
+        private final String help;
+        private final List<byte[]> lines = new ArrayList<>();
+        private final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+
+        private CreatedFamily(String help) {
+            this.help = help;
+        }
+    }
+}
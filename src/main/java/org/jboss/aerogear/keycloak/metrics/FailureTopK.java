@@ -0,0 +1,183 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Users, IP addresses and clients with the most failed logins per realm, as gauges.
+ * <p>
+ * Labels for users or IP addresses would create a series for every value ever seen. Instead, the failures of each
+ * realm are counted in a {@link SpaceSaving} summary per dimension, whose memory is fixed, and only its top values
+ * are exported. The summaries count the failures of a window of fixed length, starting at multiples of its length
+ * since the epoch so that the windows of all nodes match, the gauges are those of the last complete window, so that an attack shows up one window after it started and disappears one window after it
+ * stopped.
+ * <p>
+ * The exported values identify users and clients, so the top-K is disabled unless configured.
+ */
+final class FailureTopK extends Collector implements Collector.Describable {
+
+    static final String COUNT = "keycloak_login_failures_top";
+    static final String ERROR = "keycloak_login_failures_top_error";
+    private static final String COUNT_HELP = "Estimated number of failed logins of the most failing values in the last window";
+    private static final String ERROR_HELP = "Largest overestimation of the number of failed logins of the most failing values";
+    private static final List<String> LABEL_NAMES = Arrays.asList("realm", "dimension", "value");
+
+    /**
+     * What the failures are counted by
+     */
+    enum Dimension {
+        USER("user"),
+        IP_ADDRESS("ip_address"),
+        CLIENT_ID("client_id");
+
+        final String label;
+
+        Dimension(String label) {
+            this.label = label;
+        }
+    }
+
+    private final int k;
+    private final int capacity;
+    private final long windowMillis;
+    private final LongSupplier clock;
+    private final Map<String, Realm> realms = new ConcurrentHashMap<>();
+
+    /**
+     * @param k            Number of values exported per realm and dimension
+     * @param capacity     Number of counters per realm and dimension, at least k
+     * @param windowMillis Length of a window
+     */
+    FailureTopK(int k, int capacity, long windowMillis) {
+        this(k, capacity, windowMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Wall clock in milliseconds, for tests
+     */
+    FailureTopK(int k, int capacity, long windowMillis, LongSupplier clock) {
+        if (k <= 0 || capacity < k || windowMillis <= 0) {
+            throw new IllegalArgumentException("The top-K needs 0 < k <= capacity and a positive window");
+        }
+        this.k = k;
+        this.capacity = capacity;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Count a failed login
+     *
+     * @param realm     Name of the realm
+     * @param user      Username, null if unknown
+     * @param ipAddress IP address of the client, null if unknown
+     * @param clientId  ID of the client, null if unknown
+     */
+    void record(String realm, String user, String ipAddress, String clientId) {
+        final long window = window();
+        realms.computeIfAbsent(realm, r -> new Realm(window)).record(window, user, ipAddress, clientId);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final long window = window();
+        final List<MetricFamilySamples.Sample> counts = new ArrayList<>();
+        final List<MetricFamilySamples.Sample> errors = new ArrayList<>();
+        for (Map.Entry<String, Realm> realm : realms.entrySet()) {
+            final List<List<SpaceSaving.Entry>> top = realm.getValue().top(window, k);
+            for (Dimension dimension : Dimension.values()) {
+                for (SpaceSaving.Entry entry : top.get(dimension.ordinal())) {
+                    final List<String> labelValues = Arrays.asList(realm.getKey(), dimension.label, entry.value);
+                    counts.add(new MetricFamilySamples.Sample(COUNT, LABEL_NAMES, labelValues, entry.count));
+                    errors.add(new MetricFamilySamples.Sample(ERROR, LABEL_NAMES, labelValues, entry.error));
+                }
+            }
+        }
+        return Arrays.asList(
+            new MetricFamilySamples(COUNT, Type.GAUGE, COUNT_HELP, counts),
+            new MetricFamilySamples(ERROR, Type.GAUGE, ERROR_HELP, errors));
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Arrays.asList(
+            new MetricFamilySamples(COUNT, Type.GAUGE, COUNT_HELP, Collections.emptyList()),
+            new MetricFamilySamples(ERROR, Type.GAUGE, ERROR_HELP, Collections.emptyList()));
+    }
+
+    /**
+     * Index of the current window since the epoch, the same for all realms and nodes
+     */
+    private long window() {
+        return clock.getAsLong() / windowMillis;
+    }
+
+    /**
+     * Summaries of a realm, of the current and of the last complete window
+     */
+    private final class Realm {
+        private SpaceSaving[] current = summaries();
+        private SpaceSaving[] last = summaries();
+        private boolean lastEmpty = true;
+        private long window;
+
+        private Realm(long window) {
+            this.window = window;
+        }
+
+        synchronized void record(long window, String user, String ipAddress, String clientId) {
+            rotate(window);
+            offer(Dimension.USER, user);
+            offer(Dimension.IP_ADDRESS, ipAddress);
+            offer(Dimension.CLIENT_ID, clientId);
+        }
+
+        synchronized List<List<SpaceSaving.Entry>> top(long window, int k) {
+            rotate(window);
+            final List<List<SpaceSaving.Entry>> top = new ArrayList<>(last.length);
+            for (SpaceSaving summary : last) {
+                top.add(lastEmpty ? Collections.emptyList() : summary.top(k));
+            }
+            return top;
+        }
+
+        private void offer(Dimension dimension, String value) {
+            if (value != null && !value.isEmpty()) {
+                current[dimension.ordinal()].offer(value);
+            }
+        }
+
+        /**
+         * Make the current window the last one once it is complete, reusing the summaries of the last one
+         */
+        private void rotate(long window) {
+            if (window <= this.window) {
+                return;
+            }
+            final SpaceSaving[] previous = last;
+            last = current;
+            // the current window is not the last complete one if a whole window passed without failures
+            lastEmpty = window > this.window + 1;
+            for (SpaceSaving summary : previous) {
+                summary.clear();
+            }
+            current = previous;
+            this.window = window;
+        }
+
+        private SpaceSaving[] summaries() {
+            final SpaceSaving[] summaries = new SpaceSaving[Dimension.values().length];
+            for (int i = 0; i < summaries.length; i++) {
+                summaries[i] = new SpaceSaving(capacity);
+            }
+            return summaries;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Counters of the generic user or admin events, one per event type, created on the first event of their type.
+ * <p>
+ * Most event types never occur in a deployment, so their counters are neither registered at startup nor
+ * written on every scrape. A counter is created at most once: lookups of existing counters are plain reads
+ * of an array slot, and the rare creations are serialized so that two threads never register the same
+ * counter name twice.
+ *
+ * @param <E> Type of the events
+ */
+final class GenericCounters<E extends Enum<E>> {
+
+    private final Set<E> enabled;
+    private final Function<E, ChildCache<MetricsBackend.Counter>> factory;
+    private final AtomicReferenceArray<ChildCache<MetricsBackend.Counter>> children;
+
+    /**
+     * @param enabled Event types whose counters may be created
+     * @param factory Creates and registers the counter of an event type
+     */
+    GenericCounters(Class<E> type, Set<E> enabled, Function<E, ChildCache<MetricsBackend.Counter>> factory) {
+        this.enabled = enabled.isEmpty() ? EnumSet.noneOf(type) : EnumSet.copyOf(enabled);
+        this.factory = factory;
+        this.children = new AtomicReferenceArray<>(type.getEnumConstants().length);
+    }
+
+    /**
+     * Get the counter of the event type, creating it on first use
+     *
+     * @return Children of the counter, null if the counter of the event type is disabled
+     */
+    ChildCache<MetricsBackend.Counter> get(E type) {
+        final ChildCache<MetricsBackend.Counter> counter = children.get(type.ordinal());
+        if (counter != null || !enabled.contains(type)) {
+            return counter;
+        }
+        return create(type);
+    }
+
+    private synchronized ChildCache<MetricsBackend.Counter> create(E type) {
+        ChildCache<MetricsBackend.Counter> counter = children.get(type.ordinal());
+        if (counter == null) {
+            counter = factory.apply(type);
+            children.set(type.ordinal(), counter);
+        }
+        return counter;
+    }
+}
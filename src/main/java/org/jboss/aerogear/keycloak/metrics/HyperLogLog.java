@@ -0,0 +1,151 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Estimated number of distinct values of a stream, in a fixed number of one byte registers.
+ * <p>
+ * A value is hashed to 64 bits: the first bits choose a register, which keeps the largest position of the first
+ * one bit of the others. The estimate is the harmonic mean of the registers, with the usual correction for small
+ * counts, and its relative standard error is 1.04 / sqrt(number of registers). The memory is the same whatever the
+ * number of values, and two sketches of the same precision merge by keeping the larger of each register, which is
+ * the sketch of the union of their values, e.g. of several nodes.
+ * <p>
+ * Registers are raised with compare-and-set, so values can be offered by concurrent threads without locking.
+ */
+final class HyperLogLog {
+
+    private static final VarHandle REGISTERS = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final int VERSION = 1;
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 18;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * @param precision Number of bits that choose a register, between 4 and 18, for 2^precision registers
+     */
+    HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("The precision needs to be between " + MIN_PRECISION + " and " + MAX_PRECISION);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    int precision() {
+        return precision;
+    }
+
+    /**
+     * Count a value
+     */
+    void offer(String value) {
+        final long hash = hash(value);
+        final int index = (int) (hash >>> (Long.SIZE - precision));
+        // the bit below the shifted hash bounds the rank when the remaining bits are all zero
+        final int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        raise(index, (byte) rank);
+    }
+
+    /**
+     * Estimated number of distinct values offered
+     */
+    long estimate() {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < m; i++) {
+            final byte register = (byte) REGISTERS.getOpaque(registers, i);
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is more accurate for small counts
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Add the values of another sketch of the same precision to this one
+     */
+    void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Unable to merge a sketch of precision " + other.precision + " into one of precision " + precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            raise(i, (byte) REGISTERS.getOpaque(other.registers, i));
+        }
+    }
+
+    /**
+     * Version, precision and registers, for another node to {@link #decode} and {@link #merge}
+     */
+    byte[] encode() {
+        final byte[] bytes = new byte[2 + registers.length];
+        bytes[0] = VERSION;
+        bytes[1] = (byte) precision;
+        for (int i = 0; i < registers.length; i++) {
+            bytes[2 + i] = (byte) REGISTERS.getOpaque(registers, i);
+        }
+        return bytes;
+    }
+
+    static HyperLogLog decode(byte[] bytes) {
+        if (bytes.length < 2 || bytes[0] != VERSION) {
+            throw new IllegalArgumentException("Unsupported sketch version");
+        }
+        final HyperLogLog sketch = new HyperLogLog(bytes[1]);
+        if (bytes.length != 2 + sketch.registers.length) {
+            throw new IllegalArgumentException("Invalid sketch of " + bytes.length + " bytes for precision " + bytes[1]);
+        }
+        System.arraycopy(bytes, 2, sketch.registers, 0, sketch.registers.length);
+        return sketch;
+    }
+
+    private void raise(int index, byte rank) {
+        byte current = (byte) REGISTERS.getOpaque(registers, index);
+        while (rank > current) {
+            if (REGISTERS.compareAndSet(registers, index, current, rank)) {
+                return;
+            }
+            current = (byte) REGISTERS.getOpaque(registers, index);
+        }
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * 64 bit hash of a string, FNV-1a over its characters with the finalizer of MurmurHash3, so that all bits
+     * depend on all characters
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
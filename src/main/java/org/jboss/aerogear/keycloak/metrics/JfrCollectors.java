@@ -0,0 +1,139 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Counter;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.jboss.logging.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * JVM metrics fed by a JFR event stream rather than by polling the MXBeans on every scrape.
+ * <p>
+ * The JVM records the events anyway when they are enabled, at a low and bounded cost: allocations are sampled
+ * with a throttle and weighted by the bytes allocated since the previous sample, GC pauses and pinned virtual
+ * threads are rare. The events are read in batches by the thread of the stream, about once a second, so the
+ * metrics lag behind by that much.
+ */
+final class JfrCollectors {
+
+    private final static Logger logger = Logger.getLogger(JfrCollectors.class);
+
+    static final String ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+    static final String GC_PHASE_PAUSE = "jdk.GCPhasePause";
+    static final String VIRTUAL_THREAD_PINNED = "jdk.VirtualThreadPinned";
+
+    // samples per second, the default of the JFR profiles is 150/s
+    private static final String ALLOCATION_THROTTLE = "100/s";
+    // the JDK default, shorter pins are not worth an event
+    private static final Duration PINNED_THRESHOLD = Duration.ofMillis(20);
+    // the stream keeps the chunks of its disk repository no longer than this
+    private static final Duration MAX_AGE = Duration.ofMinutes(1);
+    // exponential buckets from about 0.06 ms to 16 s
+    private static final double PAUSE_MINIMUM = 0.0001;
+    private static final double PAUSE_MAXIMUM = 16;
+
+    /**
+     * Collectors fed by the stream, by the name used in the settings
+     */
+    enum Stream {
+        ALLOCATION("jfr_allocation"),
+        GC_PAUSES("jfr_gc_pauses"),
+        VIRTUAL_THREAD_PINNING("jfr_virtual_thread_pinning");
+
+        final String name;
+
+        Stream(String name) {
+            this.name = name;
+        }
+
+        static Stream byName(String name) {
+            for (Stream stream : values()) {
+                if (stream.name.equals(name)) {
+                    return stream;
+                }
+            }
+            return null;
+        }
+
+        static List<String> names() {
+            final List<String> names = new ArrayList<>();
+            for (Stream stream : values()) {
+                names.add(stream.name);
+            }
+            return names;
+        }
+    }
+
+    private final RecordingStream recording;
+    private volatile boolean closed;
+
+    private JfrCollectors(RecordingStream recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Register the collectors and start streaming their events
+     *
+     * @return The started collectors, null if JFR is not available in this JVM
+     */
+    static JfrCollectors start(Set<Stream> streams) {
+        final RecordingStream recording;
+        try {
+            recording = new RecordingStream();
+        } catch (RuntimeException | LinkageError e) {
+            logger.warnf("JFR is not available, the collectors %s are disabled: %s", streams, e.toString());
+            return null;
+        }
+        recording.setMaxAge(MAX_AGE);
+        if (streams.contains(Stream.ALLOCATION)) {
+            final Counter allocated = Counter.build()
+                .name("jvm_jfr_allocated_bytes_total")
+                .help("Bytes allocated in the heap, estimated from the JFR allocation samples")
+                .register();
+            recording.enable(ALLOCATION_SAMPLE).with("throttle", ALLOCATION_THROTTLE);
+            recording.onEvent(ALLOCATION_SAMPLE, event -> allocated.inc(event.getLong("weight")));
+        }
+        if (streams.contains(Stream.GC_PAUSES)) {
+            final LatencyHistogram pauses = LatencyHistogram.build()
+                .name("jvm_jfr_gc_pause_seconds")
+                .help("Duration of the stop-the-world pauses of the garbage collector, by pause")
+                .labelNames("pause")
+                .exponentialBuckets(0, PAUSE_MINIMUM, PAUSE_MAXIMUM)
+                .register();
+            final ChildCache<LatencyHistogram.Child> children = new ChildCache<>(pauses::labels);
+            recording.enable(GC_PHASE_PAUSE).withoutThreshold();
+            recording.onEvent(GC_PHASE_PAUSE, event -> children.get(event.getString("name")).observe(seconds(event)));
+        }
+        if (streams.contains(Stream.VIRTUAL_THREAD_PINNING)) {
+            final LatencyHistogram pinned = LatencyHistogram.build()
+                .name("jvm_jfr_virtual_thread_pinned_seconds")
+                .help("Duration of the parks of virtual threads pinned to their carrier thread for at least "
+                    + PINNED_THRESHOLD.toMillis() + " ms")
+                .exponentialBuckets(0, PAUSE_MINIMUM, PAUSE_MAXIMUM)
+                .register();
+            recording.enable(VIRTUAL_THREAD_PINNED).withThreshold(PINNED_THRESHOLD);
+            recording.onEvent(VIRTUAL_THREAD_PINNED, event -> pinned.labels().observe(seconds(event)));
+        }
+        recording.onError(e -> logger.error("Unable to read the JFR events", e));
+        recording.startAsync();
+        logger.infof("JVM metrics are streamed from JFR for %s", streams);
+        return new JfrCollectors(recording);
+    }
+
+    private static double seconds(RecordedEvent event) {
+        return event.getDuration().toNanos() / 1e9;
+    }
+
+    void shutdown() {
+        closed = true;
+        recording.close();
+    }
+
+    boolean closed() {
+        return closed;
+    }
+}
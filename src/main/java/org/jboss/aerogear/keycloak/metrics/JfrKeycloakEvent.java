@@ -0,0 +1,44 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event of a user or admin event recorded by the {@link MetricsEventListener}, lasting as long as its metrics
+ * are recorded.
+ * <p>
+ * Disabled by default, enable it in the settings of the recording, e.g.
+ * {@code jfr configure org.jboss.aerogear.keycloak.metrics.Event#enabled=true}.
+ */
+@Name("org.jboss.aerogear.keycloak.metrics.Event")
+@Label("Keycloak Event")
+@Category({"Keycloak", "Metrics"})
+@Description("User or admin event recorded by the metrics SPI")
+@Enabled(false)
+@StackTrace(false)
+final class JfrKeycloakEvent extends jdk.jfr.Event {
+
+    @Label("Type")
+    @Description("Type of the user event or operation type of the admin event")
+    String type;
+
+    @Label("Admin")
+    boolean admin;
+
+    @Label("Resource Type")
+    @Description("Resource type of the admin event")
+    String resourceType;
+
+    @Label("Realm")
+    String realm;
+
+    @Label("Client ID")
+    String clientId;
+
+    @Label("Error")
+    String error;
+}
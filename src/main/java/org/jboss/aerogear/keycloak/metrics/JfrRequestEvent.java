@@ -0,0 +1,53 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event of a request measured by the {@link MetricsFilter}, lasting from the request to the response filter,
+ * to correlate the latency of Keycloak with the GC pauses and lock contention of the same recording.
+ * <p>
+ * Disabled by default, enable it in the settings of the recording, e.g.
+ * {@code jfr configure org.jboss.aerogear.keycloak.metrics.Request#enabled=true}.
+ */
+@Name("org.jboss.aerogear.keycloak.metrics.Request")
+@Label("Keycloak Request")
+@Category({"Keycloak", "Metrics"})
+@Description("HTTP request measured by the metrics SPI")
+@Enabled(false)
+@StackTrace(false)
+final class JfrRequestEvent extends jdk.jfr.Event {
+
+    private static final EventType TYPE = EventType.getEventType(JfrRequestEvent.class);
+
+    @Label("Method")
+    String method;
+
+    @Label("Resource")
+    String resource;
+
+    @Label("URI Template")
+    String uri;
+
+    @Label("Status")
+    int status;
+
+    /**
+     * Begin the event of a request, committed by the response filter
+     *
+     * @return The event, null if no recording enables it, so that requests allocate nothing when JFR is off
+     */
+    static JfrRequestEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        final JfrRequestEvent event = new JfrRequestEvent();
+        event.begin();
+        return event;
+    }
+}
@@ -0,0 +1,101 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.hotspot.BufferPoolsExports;
+import io.prometheus.client.hotspot.ClassLoadingExports;
+import io.prometheus.client.hotspot.GarbageCollectorExports;
+import io.prometheus.client.hotspot.MemoryAllocationExports;
+import io.prometheus.client.hotspot.MemoryPoolsExports;
+import io.prometheus.client.hotspot.StandardExports;
+import io.prometheus.client.hotspot.ThreadExports;
+import io.prometheus.client.hotspot.VersionInfoExports;
+import org.jboss.logging.Logger;
+
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Registers the JVM collectors chosen by name, instead of all the collectors of the hotspot module.
+ * <p>
+ * The hotspot collectors poll the MXBeans on every scrape. The JFR collectors are fed by a JFR event stream
+ * instead, see {@link JfrCollectors}, and are only registered when named.
+ */
+final class JvmCollectors {
+
+    private final static Logger logger = Logger.getLogger(JvmCollectors.class);
+
+    static final String ALL = "all";
+    static final String NONE = "none";
+
+    // the collectors of DefaultExports.initialize(), by name
+    private static final Map<String, Supplier<Collector>> HOTSPOT = new LinkedHashMap<>();
+
+    static {
+        HOTSPOT.put("standard", StandardExports::new);
+        HOTSPOT.put("memory_pools", MemoryPoolsExports::new);
+        HOTSPOT.put("memory_allocation", MemoryAllocationExports::new);
+        HOTSPOT.put("buffer_pools", BufferPoolsExports::new);
+        HOTSPOT.put("gc", GarbageCollectorExports::new);
+        HOTSPOT.put("threads", ThreadExports::new);
+        HOTSPOT.put("classloading", ClassLoadingExports::new);
+        HOTSPOT.put("version_info", VersionInfoExports::new);
+    }
+
+    // streaming since an earlier call, shared instead of streaming the events twice
+    private static JfrCollectors running;
+
+    private JvmCollectors() {
+    }
+
+    /**
+     * Register the named collectors. Like {@link io.prometheus.client.hotspot.DefaultExports#initialize()}, calling it
+     * again, e.g. for a second exporter, does not register the collectors twice.
+     *
+     * @param value Comma separated names of the collectors, {@value ALL} or null for all the hotspot collectors,
+     *              {@value NONE} for no collector
+     * @return The started JFR collectors, null if no JFR collector was named
+     */
+    static synchronized JfrCollectors register(String value) {
+        if (value == null || value.isBlank() || ALL.equalsIgnoreCase(value.trim())) {
+            HOTSPOT.forEach(JvmCollectors::register);
+            return null;
+        }
+        final Set<JfrCollectors.Stream> streams = EnumSet.noneOf(JfrCollectors.Stream.class);
+        for (String name : value.split(",")) {
+            name = name.trim().toLowerCase(Locale.ROOT);
+            if (name.isEmpty() || NONE.equals(name)) {
+                continue;
+            }
+            final Supplier<Collector> collector = HOTSPOT.get(name);
+            final JfrCollectors.Stream stream = JfrCollectors.Stream.byName(name);
+            if (collector != null) {
+                register(name, collector);
+            } else if (stream != null) {
+                streams.add(stream);
+            } else {
+                logger.warnf("Unknown JVM collector %s, expected one of %s or %s",
+                    name, HOTSPOT.keySet(), JfrCollectors.Stream.names());
+            }
+        }
+        if (streams.isEmpty()) {
+            return null;
+        }
+        if (running == null || running.closed()) {
+            running = JfrCollectors.start(streams);
+        }
+        return running;
+    }
+
+    private static void register(String name, Supplier<Collector> collector) {
+        try {
+            collector.get().register();
+        } catch (IllegalArgumentException e) {
+            // the registry refuses a collector whose metric names are taken
+            logger.debugf("The JVM collector %s is already registered", name);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Counter;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of distinct values of one label of a metric.
+ * <p>
+ * The first values seen are admitted up to the limit. Any other value is replaced by {@value #OVERFLOW},
+ * so that e.g. a client sending random client ids cannot create an unbounded number of series.
+ * Every replaced value is counted by the given overflow counter. A limiter without a limit admits every value, it
+ * only marks the label as one whose values are replaced once its metric reaches the limit of its series
+ * (see {@link ChildCache}).
+ */
+final class LabelLimiter {
+
+    static final String OVERFLOW = "__overflow__";
+
+    private final Set<String> values = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int limit;
+    private final Counter.Child overflows;
+
+    /**
+     * @param limit     Number of distinct values, 0 for unbounded
+     * @param overflows Counts the replaced values
+     */
+    LabelLimiter(int limit, Counter.Child overflows) {
+        this.limit = limit;
+        this.overflows = overflows;
+    }
+
+    /**
+     * Retrieve the value to use for the label
+     *
+     * @param value The actual label value
+     * @return The value itself if it is admitted, {@value #OVERFLOW} otherwise
+     */
+    String limit(String value) {
+        if (limit == 0 || values.contains(value) || OVERFLOW.equals(value)) {
+            // the overflow value is read back from snapshots, it does not take up a value of its own
+            return value;
+        }
+        int n;
+        while ((n = size.get()) < limit) {
+            if (size.compareAndSet(n, n + 1)) {
+                if (!values.add(value)) {
+                    // admitted concurrently by another thread
+                    size.decrementAndGet();
+                }
+                return value;
+            }
+        }
+        overflows.inc();
+        return OVERFLOW;
+    }
+}
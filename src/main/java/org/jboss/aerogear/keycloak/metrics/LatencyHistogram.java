@@ -0,0 +1,270 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.SimpleCollector;
+import io.prometheus.client.exemplars.Exemplar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Histogram with a fixed amount of memory per series, exported as Prometheus buckets.
+ * <p>
+ * The buckets are either given explicitly, like the buckets of a {@link io.prometheus.client.Histogram},
+ * or exponential: the upper bounds are the powers of {@code 2^(2^-schema)} between a minimum and a maximum,
+ * the bucket layout of Prometheus native histograms. Schema 1 for instance doubles the bound every two buckets.
+ * <p>
+ * Every series counts its observations in a single array of longs, one per bucket. The last exemplar of
+ * each bucket is kept in a second array, allocated with the first exemplar of the series.
+ */
+final class LatencyHistogram extends SimpleCollector<LatencyHistogram.Child> implements Collector.Describable {
+
+    // schemas of native histograms, from 16 times the value per bucket to 2^(1/8): each bucket is a series of its own,
+    // the higher schemas of native histograms would export thousands of series per histogram
+    static final int MIN_SCHEMA = -4;
+    static final int MAX_SCHEMA = 3;
+
+    private final double[] upperBounds;
+    private final String[] upperBoundLabels;
+
+    private LatencyHistogram(Builder b) {
+        super(b);
+        upperBounds = b.upperBounds();
+        upperBoundLabels = new String[upperBounds.length + 1];
+        for (int i = 0; i < upperBounds.length; i++) {
+            upperBoundLabels[i] = Collector.doubleToGoString(upperBounds[i]);
+        }
+        upperBoundLabels[upperBounds.length] = "+Inf";
+        initializeNoLabelsChild();
+    }
+
+    static Builder build() {
+        return new Builder();
+    }
+
+    static final class Builder extends SimpleCollector.Builder<Builder, LatencyHistogram> {
+
+        private double[] buckets = {};
+        private int schema;
+        private double minimum;
+        private double maximum;
+
+        /**
+         * Use the given upper bounds
+         */
+        Builder buckets(double... buckets) {
+            this.buckets = buckets.clone();
+            this.minimum = 0;
+            return this;
+        }
+
+        /**
+         * Use exponential buckets of the given schema, whose upper bounds cover the range between minimum and maximum
+         */
+        Builder exponentialBuckets(int schema, double minimum, double maximum) {
+            checkExponentialBuckets(schema, minimum, maximum);
+            this.schema = schema;
+            this.minimum = minimum;
+            this.maximum = maximum;
+            return this;
+        }
+
+        private double[] upperBounds() {
+            return minimum == 0 ? buckets : exponentialBounds(schema, minimum, maximum);
+        }
+
+        @Override
+        public LatencyHistogram create() {
+            return new LatencyHistogram(this);
+        }
+    }
+
+    /**
+     * Upper bounds of exponential buckets of the given schema, covering the range between minimum and maximum
+     */
+    static double[] exponentialBounds(int schema, double minimum, double maximum) {
+        checkExponentialBuckets(schema, minimum, maximum);
+        // bounds are 2^(index * 2^-schema), so that every 2^schema-th bound is a power of two
+        final double step = Math.pow(2, -schema);
+        final long first = (long) Math.floor(log2(minimum) / step + 1e-9);
+        final long last = (long) Math.ceil(log2(maximum) / step - 1e-9);
+        final double[] bounds = new double[(int) (last - first + 1)];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = Math.pow(2, (first + i) * step);
+        }
+        return bounds;
+    }
+
+    private static void checkExponentialBuckets(int schema, double minimum, double maximum) {
+        if (schema < MIN_SCHEMA || schema > MAX_SCHEMA) {
+            throw new IllegalArgumentException("The schema of exponential buckets needs to be between " + MIN_SCHEMA
+                + " and " + MAX_SCHEMA + " but was " + schema);
+        }
+        if (minimum <= 0 || maximum <= minimum) {
+            throw new IllegalArgumentException("Exponential buckets need 0 < minimum < maximum");
+        }
+    }
+
+    private static double log2(double value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    /**
+     * Labels of the upper bounds of the buckets, ending with +Inf
+     */
+    List<String> upperBoundLabels() {
+        return Collections.unmodifiableList(Arrays.asList(upperBoundLabels));
+    }
+
+    @Override
+    protected void initializeNoLabelsChild() {
+        // called by the super constructor too, before the bounds are known
+        if (upperBounds != null) {
+            super.initializeNoLabelsChild();
+        }
+    }
+
+    @Override
+    protected Child newChild() {
+        return new Child(upperBounds);
+    }
+
+    static final class Child {
+        private final double[] upperBounds;
+        private final AtomicLongArray counts;
+        private final DoubleAdder sum = new DoubleAdder();
+        private final long created = System.currentTimeMillis();
+        private volatile AtomicReferenceArray<Exemplar> exemplars;
+
+        private Child(double[] upperBounds) {
+            this.upperBounds = upperBounds;
+            this.counts = new AtomicLongArray(upperBounds.length + 1);
+        }
+
+        /**
+         * Observe the given amount
+         */
+        void observe(double amount) {
+            counts.incrementAndGet(bucket(amount));
+            sum.add(amount);
+        }
+
+        /**
+         * Observe the given amount as if it had been observed the given number of times, e.g. for a sample
+         * standing for that many observations
+         */
+        void observe(double amount, long weight) {
+            counts.addAndGet(bucket(amount), weight);
+            sum.add(amount * weight);
+        }
+
+        /**
+         * Observe the given amount and keep it as exemplar of its bucket
+         *
+         * @param exemplarLabels Names and values of the exemplar labels
+         */
+        void observeWithExemplar(double amount, String... exemplarLabels) {
+            observeWithExemplar(amount, 1, exemplarLabels);
+        }
+
+        /**
+         * Observe the given amount the given number of times and keep it as exemplar of its bucket
+         *
+         * @param exemplarLabels Names and values of the exemplar labels
+         */
+        void observeWithExemplar(double amount, long weight, String... exemplarLabels) {
+            final int bucket = bucket(amount);
+            counts.addAndGet(bucket, weight);
+            sum.add(amount * weight);
+            exemplars().set(bucket, new Exemplar(amount, System.currentTimeMillis(), exemplarLabels));
+        }
+
+        private AtomicReferenceArray<Exemplar> exemplars() {
+            AtomicReferenceArray<Exemplar> result = exemplars;
+            if (result == null) {
+                synchronized (this) {
+                    result = exemplars;
+                    if (result == null) {
+                        exemplars = result = new AtomicReferenceArray<>(counts.length());
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Last exemplar of the given bucket, null if there is none
+         */
+        Exemplar exemplar(int bucket) {
+            final AtomicReferenceArray<Exemplar> result = exemplars;
+            return result != null ? result.get(bucket) : null;
+        }
+
+        /**
+         * Number of observations in the given bucket, not cumulative
+         */
+        long count(int bucket) {
+            return counts.get(bucket);
+        }
+
+        double sum() {
+            return sum.sum();
+        }
+
+        long created() {
+            return created;
+        }
+
+        /**
+         * Find the first bucket whose upper bound is not below the amount
+         */
+        private int bucket(double amount) {
+            int low = 0;
+            int high = upperBounds.length;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (amount <= upperBounds[middle]) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        final List<String> bucketLabelNames = new ArrayList<>(labelNames);
+        bucketLabelNames.add("le");
+        for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+            final Child child = c.getValue();
+            long count = 0;
+            for (int i = 0; i < upperBoundLabels.length; i++) {
+                count += child.counts.get(i);
+                final List<String> bucketLabelValues = new ArrayList<>(c.getKey());
+                bucketLabelValues.add(upperBoundLabels[i]);
+                samples.add(new MetricFamilySamples.Sample(fullname + "_bucket", bucketLabelNames, bucketLabelValues, count,
+                    child.exemplar(i)));
+            }
+            samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, c.getKey(), count));
+            samples.add(new MetricFamilySamples.Sample(fullname + "_sum", labelNames, c.getKey(), child.sum.sum()));
+            if (SeriesIndex.CREATED_SERIES) {
+                samples.add(new MetricFamilySamples.Sample(fullname + "_created", labelNames, c.getKey(), child.created / 1000.0));
+            }
+        }
+        return familySamplesList(Type.HISTOGRAM, samples);
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Collections.singletonList(new MetricFamilySamples(fullname, Type.HISTOGRAM, help, Collections.emptyList()));
+    }
+}
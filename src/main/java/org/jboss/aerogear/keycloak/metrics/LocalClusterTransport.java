@@ -0,0 +1,51 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Transport between the cluster views of a single JVM, for tests and single node setups.
+ * <p>
+ * Messages are handed to the receivers of the same channel on the publishing thread.
+ */
+public final class LocalClusterTransport implements ClusterTransport {
+
+    private static final String DEFAULT_CHANNEL = "default";
+    private static final ConcurrentMap<String, List<Consumer<byte[]>>> CHANNELS = new ConcurrentHashMap<>();
+
+    private final List<Consumer<byte[]>> receivers;
+    private final List<Consumer<byte[]>> subscribed = new CopyOnWriteArrayList<>();
+
+    public LocalClusterTransport() {
+        this(DEFAULT_CHANNEL);
+    }
+
+    /**
+     * @param channel Name of the channel, only transports of the same channel exchange messages
+     */
+    public LocalClusterTransport(String channel) {
+        this.receivers = CHANNELS.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>());
+    }
+
+    @Override
+    public void publish(byte[] message) {
+        for (Consumer<byte[]> receiver : receivers) {
+            receiver.accept(message.clone());
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<byte[]> receiver) {
+        subscribed.add(receiver);
+        receivers.add(receiver);
+    }
+
+    @Override
+    public void close() {
+        receivers.removeAll(subscribed);
+        subscribed.clear();
+    }
+}
@@ -0,0 +1,70 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.function.Function;
+
+/**
+ * Metrics library that the counters and histograms of the events and requests are recorded with.
+ * <p>
+ * Implementations are selected with the {@code METRICS_BACKEND} setting: {@code simpleclient}, the default, records
+ * to the Prometheus client library and is exported by the metrics endpoint of the SPI; {@code micrometer} records to
+ * the global Micrometer registry, e.g. the one Keycloak exports on its management port. Other implementations are
+ * selected by class name and need a public constructor without arguments.
+ * <p>
+ * The handle of each series is created once per tuple of label values and cached by the exporter, so recording
+ * only calls the handle.
+ */
+public interface MetricsBackend {
+
+    /**
+     * Create a counter
+     *
+     * @param name       Name of the counter, without the _total suffix
+     * @param help       Description of the counter
+     * @param labelNames Names of its labels
+     * @return Factory of the series of the counter for the given label values
+     */
+    Function<String[], Counter> counter(String name, String help, String... labelNames);
+
+    /**
+     * Create a histogram
+     *
+     * @param name        Name of the histogram
+     * @param help        Description of the histogram
+     * @param upperBounds Upper bounds of its buckets, in increasing order
+     * @param labelNames  Names of its labels
+     * @return Factory of the series of the histogram for the given label values
+     */
+    Function<String[], Histogram> histogram(String name, String help, double[] upperBounds, String... labelNames);
+
+    /**
+     * Series of a counter
+     */
+    interface Counter {
+
+        /**
+         * Increment the counter by one
+         *
+         * @param exemplar Names and values of the labels of an exemplar, null for none. May be ignored.
+         */
+        void inc(String[] exemplar);
+
+        /**
+         * Increment the counter by an amount, to restore it from a snapshot
+         */
+        void inc(double amount);
+    }
+
+    /**
+     * Series of a histogram
+     */
+    interface Histogram {
+
+        /**
+         * Observe an amount as if it had been observed the given number of times. The weight is only above one
+         * with the default backend, which the adaptive sampling of the request durations needs.
+         *
+         * @param exemplar Names and values of the labels of an exemplar, null for none. May be ignored.
+         */
+        void observe(double amount, long weight, String[] exemplar);
+    }
+}
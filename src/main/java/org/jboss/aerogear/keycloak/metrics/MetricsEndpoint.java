@@ -1,6 +1,8 @@
 package org.jboss.aerogear.keycloak.metrics;
 
+import io.prometheus.client.exporter.common.TextFormat;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.HttpHeaders;
@@ -8,14 +10,32 @@ import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
 import org.keycloak.services.resource.RealmResourceProvider;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 public class MetricsEndpoint implements RealmResourceProvider {
 
     // The ID of the provider is also used as the name of the endpoint
     public final static String ID = "metrics";
 
-    private static final boolean DISABLE_EXTERNAL_ACCESS = Boolean.parseBoolean(System.getenv("DISABLE_EXTERNAL_ACCESS"));
+    private static final String OPENMETRICS_TEXT = "application/openmetrics-text";
+    private static final String GZIP = "gzip";
+
+    private static final boolean DISABLE_EXTERNAL_ACCESS = Settings.getBoolean("DISABLE_EXTERNAL_ACCESS");
+
+    // if set, every realm only exports its own metrics, except the global realm which exports all of them
+    private static final boolean REALM_SCOPED = Settings.getBoolean("METRICS_REALM_SCOPED");
+    private static final String GLOBAL_REALM = Settings.get("METRICS_GLOBAL_REALM", "master");
+
+    private final KeycloakSession session;
+
+    public MetricsEndpoint(KeycloakSession session) {
+        this.session = session;
+    }
 
     @Override
     public Object getResource() {
@@ -23,8 +43,28 @@ public class MetricsEndpoint implements RealmResourceProvider {
     }
 
     @GET
-    @Produces(MediaType.TEXT_PLAIN)
+    @Produces({MediaType.TEXT_PLAIN, OPENMETRICS_TEXT, ProtobufFormat.CONTENT_TYPE})
     public Response get(@Context HttpHeaders headers) {
+        final String realm = scopedRealm();
+        return export(headers, (output, contentType, gzip) -> PrometheusExporter.instance().export(output, contentType, gzip, realm));
+    }
+
+    /**
+     * Totals of the event counters over all nodes of the cluster, if the cluster view is enabled, restricted to the
+     * series of the realm like the metrics of this node
+     */
+    @GET
+    @Path("cluster")
+    @Produces({MediaType.TEXT_PLAIN, OPENMETRICS_TEXT, ProtobufFormat.CONTENT_TYPE})
+    public Response getCluster(@Context HttpHeaders headers) {
+        if (!PrometheusExporter.instance().isClusterViewEnabled()) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        final String realm = scopedRealm();
+        return export(headers, (output, contentType, gzip) -> PrometheusExporter.instance().exportCluster(output, contentType, gzip, realm));
+    }
+
+    private Response export(HttpHeaders headers, Export export) {
         if (DISABLE_EXTERNAL_ACCESS) {
             if (!headers.getRequestHeader("x-forwarded-host").isEmpty()) {
                 // Request is being forwarded by HA Proxy on Openshift
@@ -32,8 +72,73 @@ public class MetricsEndpoint implements RealmResourceProvider {
             }
         }
 
-        final StreamingOutput stream = output -> PrometheusExporter.instance().export(output);
-        return Response.ok(stream).build();
+        final String accept = headers.getHeaderString(HttpHeaders.ACCEPT);
+        final String contentType = ProtobufFormat.accepted(accept) ? ProtobufFormat.CONTENT_TYPE : TextFormat.chooseContentType(accept);
+        final boolean gzip = acceptsGzip(headers.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+
+        final StreamingOutput stream = output -> export.write(output, contentType, gzip);
+        final Response.ResponseBuilder response = Response.ok(stream).type(contentType);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, GZIP);
+        }
+        return response.build();
+    }
+
+    private interface Export {
+        void write(OutputStream output, String contentType, boolean gzip) throws IOException;
+    }
+
+    /**
+     * Retrieve the realm the metrics are restricted to
+     *
+     * @return Name of the realm of the request, or null if all metrics are exported
+     */
+    private String scopedRealm() {
+        if (!REALM_SCOPED || session == null) {
+            return null;
+        }
+        final RealmModel realm = session.getContext().getRealm();
+        if (realm == null || GLOBAL_REALM.equals(realm.getName())) {
+            return null;
+        }
+        return realm.getName();
+    }
+
+    /**
+     * Check whether the Accept-Encoding header allows a gzip compressed response
+     *
+     * @param acceptEncoding Value of the Accept-Encoding header, may be null
+     * @return true if gzip is accepted
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            if (GZIP.equalsIgnoreCase(parts[0].trim())) {
+                // gzip;q=0 explicitly refuses the encoding
+                for (int i = 1; i < parts.length; i++) {
+                    final String param = parts[i].trim();
+                    if (param.startsWith("q=") && isZero(param.substring(2))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the quality value of an Accept or Accept-Encoding header refuses the value
+     */
+    static boolean isZero(String qvalue) {
+        try {
+            return Double.parseDouble(qvalue) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
     @Override
@@ -4,56 +4,45 @@ import org.jboss.logging.Logger;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
 import org.keycloak.models.RealmProvider;
 
+import java.util.function.Function;
+
 public class MetricsEventListener implements EventListenerProvider {
 
     public final static String ID = "metrics-listener";
 
     private final static Logger logger = Logger.getLogger(MetricsEventListener.class);
     private final RealmProvider realmProvider;
+    private final Function<String, String> headers;
 
     public MetricsEventListener(RealmProvider realmProvider) {
+        this(realmProvider, null);
+    }
+
+    /**
+     * @param realmProvider
+     * @param headers       Headers of the current request by name, for the exemplars of the events, may be null
+     */
+    public MetricsEventListener(RealmProvider realmProvider, Function<String, String> headers) {
         this.realmProvider = realmProvider;
+        this.headers = headers;
     }
 
     @Override
     public void onEvent(Event event) {
         logEventDetails(event);
 
-        switch (event.getType()) {
-            case LOGIN:
-                PrometheusExporter.instance().recordLogin(event, realmProvider);
-                break;
-            case CLIENT_LOGIN:
-                PrometheusExporter.instance().recordClientLogin(event, realmProvider);
-                break;
-            case REGISTER:
-                PrometheusExporter.instance().recordRegistration(event, realmProvider);
-                break;
-            case REFRESH_TOKEN:
-                PrometheusExporter.instance().recordRefreshToken(event, realmProvider);
-                break;
-            case CODE_TO_TOKEN:
-                PrometheusExporter.instance().recordCodeToToken(event, realmProvider);
-                break;
-            case REGISTER_ERROR:
-                PrometheusExporter.instance().recordRegistrationError(event, realmProvider);
-                break;
-            case LOGIN_ERROR:
-                PrometheusExporter.instance().recordLoginError(event, realmProvider);
-                break;
-            case CLIENT_LOGIN_ERROR:
-                PrometheusExporter.instance().recordClientLoginError(event, realmProvider);
-                break;
-            case REFRESH_TOKEN_ERROR:
-                PrometheusExporter.instance().recordRefreshTokenError(event, realmProvider);
-                break;
-            case CODE_TO_TOKEN_ERROR:
-                PrometheusExporter.instance().recordCodeToTokenError(event, realmProvider);
-                break;
-            default:
-                PrometheusExporter.instance().recordGenericEvent(event, realmProvider);
+        final JfrKeycloakEvent jfrEvent = new JfrKeycloakEvent();
+        jfrEvent.begin();
+        PrometheusExporter.instance().recordEvent(event, realmProvider, headers);
+        if (jfrEvent.shouldCommit()) {
+            jfrEvent.type = event.getType().name();
+            jfrEvent.realm = PrometheusExporter.instance().getRealmName(event.getRealmId(), realmProvider);
+            jfrEvent.clientId = event.getClientId();
+            jfrEvent.error = event.getError();
+            jfrEvent.commit();
         }
     }
 
@@ -61,7 +50,22 @@ public class MetricsEventListener implements EventListenerProvider {
     public void onEvent(AdminEvent event, boolean includeRepresentation) {
         logAdminEventDetails(event);
 
-        PrometheusExporter.instance().recordGenericAdminEvent(event, realmProvider);
+        if (event.getResourceType() == ResourceType.REALM) {
+            // the realm may have been renamed
+            PrometheusExporter.instance().invalidateRealm(event.getRealmId());
+        }
+        final JfrKeycloakEvent jfrEvent = new JfrKeycloakEvent();
+        jfrEvent.begin();
+        PrometheusExporter.instance().recordAdminEvent(event, realmProvider, headers);
+        if (jfrEvent.shouldCommit()) {
+            jfrEvent.type = event.getOperationType().name();
+            jfrEvent.admin = true;
+            jfrEvent.resourceType = event.getResourceType().name();
+            jfrEvent.realm = PrometheusExporter.instance().getRealmName(event.getRealmId(), realmProvider);
+            jfrEvent.clientId = event.getAuthDetails() != null ? event.getAuthDetails().getClientId() : null;
+            jfrEvent.error = event.getError();
+            jfrEvent.commit();
+        }
     }
 
     private void logEventDetails(Event event) {
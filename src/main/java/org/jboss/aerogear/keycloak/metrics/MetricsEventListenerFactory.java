@@ -1,5 +1,6 @@
 package org.jboss.aerogear.keycloak.metrics;
 
+import jakarta.ws.rs.core.HttpHeaders;
 import org.keycloak.Config;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
@@ -10,7 +11,17 @@ public class MetricsEventListenerFactory implements EventListenerProviderFactory
 
     @Override
     public EventListenerProvider create(KeycloakSession session) {
-        return new MetricsEventListener(session.realms());
+        return new MetricsEventListener(session.realms(), name -> requestHeader(session, name));
+    }
+
+    private static String requestHeader(KeycloakSession session, String name) {
+        // events may be fired outside of a request, e.g. by scheduled tasks
+        try {
+            final HttpHeaders headers = session.getContext().getRequestHeaders();
+            return headers != null ? headers.getHeaderString(name) : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
     }
 
     @Override
@@ -20,12 +31,12 @@ public class MetricsEventListenerFactory implements EventListenerProviderFactory
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // nothing to do
+        PrometheusExporter.instance().startSessionSampling(factory);
     }
 
     @Override
     public void close() {
-        // nothing to do
+        PrometheusExporter.shutdown();
     }
 
     @Override
@@ -18,7 +18,8 @@ public final class MetricsFilter implements ContainerRequestFilter, ContainerRes
     private static final String METRICS_REQUEST_TIMESTAMP = "metrics.requestTimestamp";
     private static final MetricsFilter INSTANCE = new MetricsFilter();
 
-    private static final boolean URI_METRICS_ENABLED = Boolean.parseBoolean(System.getenv("URI_METRICS_ENABLED"));
+    private static final boolean URI_METRICS_ENABLED = Settings.getBoolean("URI_METRICS_ENABLED");
+    private static final double NANOS_PER_MILLI = 1_000_000d;
 
     // relevant response content types to be measured
     private static final Set<MediaType> contentTypes = new HashSet<>();
@@ -42,7 +43,11 @@ public final class MetricsFilter implements ContainerRequestFilter, ContainerRes
 
     @Override
     public void filter(ContainerRequestContext req) {
-        req.setProperty(METRICS_REQUEST_TIMESTAMP, System.currentTimeMillis());
+        final long weight = PrometheusExporter.instance().sampleRequestDuration();
+        final JfrRequestEvent event = JfrRequestEvent.start();
+        if (weight > 0 || event != null) {
+            req.setProperty(METRICS_REQUEST_TIMESTAMP, new RequestStart(System.nanoTime(), weight, event));
+        }
     }
 
     @Override
@@ -50,37 +55,55 @@ public final class MetricsFilter implements ContainerRequestFilter, ContainerRes
         int status = res.getStatus();
 
         String resource = ResourceExtractor.getResource(req.getUriInfo());
-        String uri = ResourceExtractor.getURI(req.getUriInfo());
+        // the template of the matched URI is only looked up when it is not replaced
+        final String uri;
         if (status >= 300 && status < 400) {
             uri = REDIRECTION_URI;
         } else if (status == 404) {
             uri = NOT_FOUND_URI;
+        } else {
+            uri = ResourceExtractor.getURI(req.getUriInfo());
         }
 
+        final PrometheusExporter exporter = PrometheusExporter.instance();
+        // sampled once, so that the response counters and the duration point to the same request
+        final String[] exemplar = exporter.exemplar(req::getHeaderString);
         if (URI_METRICS_ENABLED) {
-            PrometheusExporter.instance().recordResponseTotal(status, req.getMethod(), resource, uri);
+            exporter.recordResponseTotalWithExemplar(status, req.getMethod(), resource, uri, exemplar);
             if (status >= 400) {
-                PrometheusExporter.instance().recordResponseError(status, req.getMethod(), resource, uri);
+                exporter.recordResponseErrorWithExemplar(status, req.getMethod(), resource, uri, exemplar);
             }
         } else {
-            PrometheusExporter.instance().recordResponseTotal(status, req.getMethod(), resource);
+            exporter.recordResponseTotalWithExemplar(status, req.getMethod(), resource, exemplar);
             if (status >= 400) {
-                PrometheusExporter.instance().recordResponseError(status, req.getMethod(), resource);
+                exporter.recordResponseErrorWithExemplar(status, req.getMethod(), resource, exemplar);
             }
         }
         // Record request duration if timestamp property is present
         // and only if it is relevant (skip pictures)
-        if (req.getProperty(METRICS_REQUEST_TIMESTAMP) != null &&
-            contentTypeIsRelevant(res)) {
-            long time = (long) req.getProperty(METRICS_REQUEST_TIMESTAMP);
-            long dur = System.currentTimeMillis() - time;
-            LOG.trace("Duration is calculated as " + dur + " ms.");
+        final Object start = req.getProperty(METRICS_REQUEST_TIMESTAMP);
+        // and only if it is sampled, with the weight of the requests that are not
+        if (start instanceof RequestStart && ((RequestStart) start).weight > 0 && contentTypeIsRelevant(res)) {
+            final long weight = ((RequestStart) start).weight;
+            // monotonic clock, in milliseconds with sub-millisecond resolution
+            double dur = (System.nanoTime() - ((RequestStart) start).nanos) / NANOS_PER_MILLI;
+            if (LOG.isTraceEnabled()) {
+                LOG.tracef("Duration is calculated as %f ms.", dur);
+            }
             if (URI_METRICS_ENABLED) {
-                PrometheusExporter.instance().recordRequestDuration(status, dur, req.getMethod(), resource, uri);
+                exporter.recordRequestDurationWithExemplar(status, dur, weight, req.getMethod(), resource, uri, exemplar);
             } else {
-                PrometheusExporter.instance().recordRequestDuration(status, dur, req.getMethod(), resource);
+                exporter.recordRequestDurationWithExemplar(status, dur, weight, req.getMethod(), resource, exemplar);
             }
         }
+        if (start instanceof RequestStart && ((RequestStart) start).event != null) {
+            final JfrRequestEvent event = ((RequestStart) start).event;
+            event.method = req.getMethod();
+            event.resource = resource;
+            event.uri = uri;
+            event.status = status;
+            event.commit();
+        }
     }
 
     private boolean contentTypeIsRelevant(ContainerResponseContext responseContext) {
@@ -90,4 +113,20 @@ public final class MetricsFilter implements ContainerRequestFilter, ContainerRes
         LOG.trace("Result is " + ret);
         return ret;
     }
+
+    /**
+     * Start of a request on the monotonic clock, the weight of its duration and its JFR event if enabled,
+     * stored as request property
+     */
+    private static final class RequestStart {
+        private final long nanos;
+        private final long weight;
+        private final JfrRequestEvent event;
+
+        private RequestStart(long nanos, long weight, JfrRequestEvent event) {
+            this.nanos = nanos;
+            this.weight = weight;
+            this.event = event;
+        }
+    }
 }
@@ -0,0 +1,131 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Records to a Micrometer registry, by default the global registry that Keycloak on Quarkus exports on its
+ * management port, so that the metrics of the SPI are scraped along with those of Keycloak.
+ * <p>
+ * Meters are registered once per tuple of label values, as tags, and cached by the exporter. Exemplars are left
+ * to the registry, which takes them from the current span if tracing is enabled. Micrometer has no weighted
+ * observations, so the exporter does not sample the request durations with this backend and weights are ignored.
+ * <p>
+ * The counters are also kept by name, so that their values can be saved to and restored from snapshots.
+ */
+final class MicrometerBackend implements MetricsBackend {
+
+    private final MeterRegistry registry;
+    private final Map<String, CounterFamily> counters = new ConcurrentHashMap<>();
+
+    MicrometerBackend() {
+        this(Metrics.globalRegistry);
+    }
+
+    MicrometerBackend(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Function<String[], Counter> counter(String name, String help, String... labelNames) {
+        final String[] names = labelNames.clone();
+        final CounterFamily family = new CounterFamily(help, names);
+        counters.put(name, family);
+        return labelValues -> {
+            final List<Tag> tags = tags(names, labelValues);
+            final io.micrometer.core.instrument.Counter counter = io.micrometer.core.instrument.Counter.builder(name)
+                .description(help)
+                .tags(tags)
+                .register(registry);
+            final List<String> values = new ArrayList<>(tags.size());
+            tags.forEach(tag -> values.add(tag.getValue()));
+            family.series.put(Collections.unmodifiableList(values), counter);
+            return new Counter() {
+                @Override
+                public void inc(String[] exemplar) {
+                    counter.increment();
+                }
+
+                @Override
+                public void inc(double amount) {
+                    counter.increment(amount);
+                }
+            };
+        };
+    }
+
+    /**
+     * Label names of a counter, e.g. to check those of a restored series
+     *
+     * @param name Name of the counter
+     * @return The label names, null if there is no counter of that name
+     */
+    List<String> counterLabelNames(String name) {
+        final CounterFamily family = counters.get(name);
+        return family != null ? family.labelNames : null;
+    }
+
+    /**
+     * Collect the current values of all counters, as {@link SeriesIndex#collectCounters()} does
+     */
+    List<MetricFamilySamples> collectCounters() {
+        final List<MetricFamilySamples> result = new ArrayList<>(counters.size());
+        for (Map.Entry<String, CounterFamily> family : counters.entrySet()) {
+            final List<MetricFamilySamples.Sample> samples = new ArrayList<>(family.getValue().series.size());
+            for (Map.Entry<List<String>, io.micrometer.core.instrument.Counter> series : family.getValue().series.entrySet()) {
+                samples.add(new MetricFamilySamples.Sample(family.getKey() + "_total", family.getValue().labelNames,
+                    series.getKey(), series.getValue().count()));
+            }
+            result.add(new MetricFamilySamples(family.getKey(), Type.COUNTER, family.getValue().help, samples));
+        }
+        return result;
+    }
+
+    @Override
+    public Function<String[], Histogram> histogram(String name, String help, double[] upperBounds, String... labelNames) {
+        final String[] names = labelNames.clone();
+        final double[] bounds = upperBounds.clone();
+        return labelValues -> {
+            final DistributionSummary summary = DistributionSummary.builder(name)
+                .description(help)
+                .serviceLevelObjectives(bounds)
+                .tags(tags(names, labelValues))
+                .register(registry);
+            return (amount, weight, exemplar) -> summary.record(amount);
+        };
+    }
+
+    private static List<Tag> tags(String[] names, String[] values) {
+        final List<Tag> tags = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            tags.add(Tag.of(names[i], values[i] != null ? values[i] : ""));
+        }
+        return tags;
+    }
+
+    /**
+     * Counter of a name and its series by tag values
+     */
+    private static final class CounterFamily {
+        private final String help;
+        private final List<String> labelNames;
+        private final Map<List<String>, io.micrometer.core.instrument.Counter> series = new ConcurrentHashMap<>();
+
+        private CounterFamily(String help, String[] labelNames) {
+            this.help = help;
+            this.labelNames = Collections.unmodifiableList(Arrays.asList(labelNames));
+        }
+    }
+}
@@ -1,18 +1,18 @@
 package org.jboss.aerogear.keycloak.metrics;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
-import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.BasicAuthHttpConnectionFactory;
 import io.prometheus.client.exporter.PushGateway;
 import io.prometheus.client.exporter.common.TextFormat;
-import io.prometheus.client.hotspot.DefaultExports;
 import org.jboss.logging.Logger;
+import org.keycloak.events.Details;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.events.admin.OperationType;
-import org.keycloak.models.RealmModel;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmProvider;
 
 import java.io.BufferedWriter;
@@ -24,13 +24,28 @@ import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 public final class PrometheusExporter {
 
@@ -38,34 +53,162 @@ public final class PrometheusExporter {
     private final static String ADMIN_EVENT_PREFIX = "keycloak_admin_event_";
     private final static String PROVIDER_KEYCLOAK_OPENID = "keycloak";
 
+    private final static String[] EVENT_LABELS = {"realm", "provider", "client_id"};
+    private final static String[] ERROR_EVENT_LABELS = {"realm", "provider", "error", "client_id"};
+    private final static String[] USER_EVENT_LABELS = {"realm"};
+    private final static String[] ADMIN_EVENT_LABELS = {"realm", "resource"};
+    private final static String[] RESPONSE_LABELS = {"code", "method", "resource"};
+    private final static String[] RESPONSE_URI_LABELS = {"code", "method", "resource", "uri"};
+
     private final static String PROMETHEUS_PUSHGATEWAY_GROUPINGKEY_INSTANCE = "PROMETHEUS_GROUPING_KEY_INSTANCE";
     private final static Pattern PROMETHEUS_PUSHGATEWAY_GROUPINGKEY_INSTANCE_ENVVALUE_PATTERN = Pattern.compile("ENVVALUE:(.+?)");
 
     private final static String PROMETHEUS_PUSHGATEWAY_JOB = "PROMETHEUS_PUSHGATEWAY_JOB";
+    private final static String PROMETHEUS_PUSHGATEWAY_PUSH_INTERVAL_MS = "PROMETHEUS_PUSHGATEWAY_PUSH_INTERVAL_MS";
+    private final static long DEFAULT_PUSH_INTERVAL_MS = 1000;
+
+    private final static String REALM_NAME_CACHE_SIZE = "REALM_NAME_CACHE_SIZE";
+    private final static int DEFAULT_REALM_NAME_CACHE_SIZE = 1000;
+
+    private final static String LABEL_LIMIT_CLIENT_ID = "LABEL_LIMIT_CLIENT_ID";
+    private final static String LABEL_LIMIT_ERROR = "LABEL_LIMIT_ERROR";
+    private final static String LABEL_LIMIT_URI = "LABEL_LIMIT_URI";
+    private final static String LABEL_LIMIT_SERIES = "LABEL_LIMIT_SERIES";
+
+    private final static String METRICS_ASYNC_EVENTS = "METRICS_ASYNC_EVENTS";
+    private final static String METRICS_ASYNC_EVENTS_QUEUE_SIZE = "METRICS_ASYNC_EVENTS_QUEUE_SIZE";
+    private final static String METRICS_ASYNC_EVENTS_WHEN_FULL = "METRICS_ASYNC_EVENTS_WHEN_FULL";
+    private final static int DEFAULT_ASYNC_EVENTS_QUEUE_SIZE = 8192;
+
+    private final static String REQUEST_DURATION_HISTOGRAM = "REQUEST_DURATION_HISTOGRAM";
+    private final static String REQUEST_DURATION_HISTOGRAM_SCHEMA = "REQUEST_DURATION_HISTOGRAM_SCHEMA";
+    private final static int DEFAULT_REQUEST_DURATION_SCHEMA = 1;
+    private final static double[] REQUEST_DURATION_BUCKETS = {50, 100, 250, 500, 1000, 2000, 10000, 30000};
+    // exponential buckets from 0.25 ms to about 65 s
+    private final static double REQUEST_DURATION_MINIMUM = 0.25;
+    private final static double REQUEST_DURATION_MAXIMUM = 65536;
+
+    private final static String REQUEST_DURATION_QUANTILES = "REQUEST_DURATION_QUANTILES";
+    private final static String REQUEST_DURATION_QUANTILES_WINDOW_MS = "REQUEST_DURATION_QUANTILES_WINDOW_MS";
+    private final static String REQUEST_DURATION_QUANTILES_WINDOW_SLICES = "REQUEST_DURATION_QUANTILES_WINDOW_SLICES";
+    private final static long DEFAULT_QUANTILES_WINDOW_MS = 60000;
+    private final static int DEFAULT_QUANTILES_WINDOW_SLICES = 6;
+
+    private final static String REQUEST_DURATION_SAMPLES_PER_SECOND = "REQUEST_DURATION_SAMPLES_PER_SECOND";
+
+    private final static String METRICS_CLUSTER_TRANSPORT = "METRICS_CLUSTER_TRANSPORT";
+    private final static String METRICS_CLUSTER_NODE = "METRICS_CLUSTER_NODE";
+    private final static String METRICS_CLUSTER_PUBLISH_INTERVAL_MS = "METRICS_CLUSTER_PUBLISH_INTERVAL_MS";
+    private final static String METRICS_CLUSTER_FULL_SNAPSHOT_EVERY = "METRICS_CLUSTER_FULL_SNAPSHOT_EVERY";
+    private final static String METRICS_CLUSTER_NODE_TTL_MS = "METRICS_CLUSTER_NODE_TTL_MS";
+    private final static long DEFAULT_CLUSTER_PUBLISH_INTERVAL_MS = 5000;
+    private final static int DEFAULT_CLUSTER_FULL_SNAPSHOT_EVERY = 12;
+    private final static long DEFAULT_CLUSTER_NODE_TTL_MS = 60000;
+
+    private final static String METRICS_GENERIC_EVENTS_INCLUDE = "METRICS_GENERIC_EVENTS_INCLUDE";
+    private final static String METRICS_GENERIC_EVENTS_EXCLUDE = "METRICS_GENERIC_EVENTS_EXCLUDE";
+    // events with their own counters
+    private final static EnumSet<EventType> FEATURED_EVENTS = EnumSet.of(EventType.LOGIN, EventType.LOGIN_ERROR, EventType.REGISTER);
+
+    private final static String METRICS_EXEMPLARS_SAMPLE_RATE = "METRICS_EXEMPLARS_SAMPLE_RATE";
+
+    private final static String SESSION_METRICS_ENABLED = "SESSION_METRICS_ENABLED";
+    private final static String SESSION_METRICS_INTERVAL_MS = "SESSION_METRICS_INTERVAL_MS";
+    private final static String SESSION_METRICS_REALMS = "SESSION_METRICS_REALMS";
+    private final static long DEFAULT_SESSION_METRICS_INTERVAL_MS = 60000;
+
+    private final static String METRICS_JVM_COLLECTORS = "METRICS_JVM_COLLECTORS";
+
+    private final static String METRICS_SNAPSHOT_FILE = "METRICS_SNAPSHOT_FILE";
+    private final static String METRICS_SNAPSHOT_INTERVAL_MS = "METRICS_SNAPSHOT_INTERVAL_MS";
+    private final static String METRICS_SNAPSHOT_SLOT_BYTES = "METRICS_SNAPSHOT_SLOT_BYTES";
+    private final static long DEFAULT_SNAPSHOT_INTERVAL_MS = 10000;
+    private final static int DEFAULT_SNAPSHOT_SLOT_BYTES = 1024 * 1024;
+
+    private final static String METRICS_BACKEND = "METRICS_BACKEND";
+
+    private final static String LOGIN_FAILURES_TOP_K = "LOGIN_FAILURES_TOP_K";
+    private final static String LOGIN_FAILURES_TOP_K_CAPACITY = "LOGIN_FAILURES_TOP_K_CAPACITY";
+    private final static String LOGIN_FAILURES_TOP_K_WINDOW_MS = "LOGIN_FAILURES_TOP_K_WINDOW_MS";
+    private final static long DEFAULT_LOGIN_FAILURES_TOP_K_WINDOW_MS = 300000;
+
+    private final static String DISTINCT_USERS_ENABLED = "DISTINCT_USERS_ENABLED";
+    private final static String DISTINCT_USERS_WINDOW_MS = "DISTINCT_USERS_WINDOW_MS";
+    private final static String DISTINCT_USERS_PRECISION = "DISTINCT_USERS_PRECISION";
+    private final static String DISTINCT_USERS_PER_CLIENT = "DISTINCT_USERS_PER_CLIENT";
+    private final static String DISTINCT_USERS_CLIENT_PRECISION = "DISTINCT_USERS_CLIENT_PRECISION";
+    private final static String DISTINCT_USERS_MAX_CLIENTS = "DISTINCT_USERS_MAX_CLIENTS";
+    private final static long DEFAULT_DISTINCT_USERS_WINDOW_MS = 3600000;
+    private final static int DEFAULT_DISTINCT_USERS_PRECISION = 14;
+    private final static int DEFAULT_DISTINCT_USERS_CLIENT_PRECISION = 10;
+    private final static int DEFAULT_DISTINCT_USERS_MAX_CLIENTS = 100;
+
+    private final static String METRICS_SCRAPE_CACHE_TTL_MS = "METRICS_SCRAPE_CACHE_TTL_MS";
+    private final static int WRITE_BUFFER_SIZE = 32 * 1024;
+
+    // string representations of the HTTP status codes, to avoid formatting them for every response
+    private final static String[] STATUS_CODES = new String[600];
+
+    static {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            STATUS_CODES[i] = Integer.toString(i);
+        }
+    }
 
     private static PrometheusExporter INSTANCE;
 
     private final static Logger logger = Logger.getLogger(PrometheusExporter.class);
 
     // these fields are package private on purpose
-    final Map<String, Counter> counters = new HashMap<>();
-    final Counter totalLogins;
-    final Counter totalLoginAttempts;
-    final Counter totalFailedLoginAttempts;
-    final Counter totalRegistrations;
-    final Counter totalRegistrationsErrors;
-    final Counter totalRefreshTokens;
-    final Counter totalRefreshTokensErrors;
-    final Counter totalClientLogins;
-    final Counter totalFailedClientLoginAttempts;
-    final Counter totalCodeToTokens;
-    final Counter totalCodeToTokensErrors;
-    final Counter responseTotal;
-    final Counter responseErrors;
-    final Histogram requestDuration;
+    final Map<String, ChildCache<MetricsBackend.Counter>> counters = new ConcurrentHashMap<>();
+    final SeriesIndex seriesIndex = new SeriesIndex();
+    final MetricsBackend backend;
+    final SlidingQuantiles requestDurationQuantiles;
+    final AdaptiveSampler requestDurationSampler;
+    final FailureTopK loginFailuresTopK;
+    final DistinctUsers distinctUsers;
+    final Counter labelOverflows;
+    final RealmNameCache realmNames;
+    final ScrapeCache scrapeCache;
     final PushGateway PUSH_GATEWAY;
+    final PushScheduler pushScheduler;
+    final EventIngest eventIngest;
+    final ClusterView clusterView;
+    final Exemplars exemplars;
+    final JfrCollectors jfrCollectors;
+    final CounterSnapshots counterSnapshots;
+    volatile SessionGauges sessionGauges;
+
+    // series of the event and request metrics, bound once per tuple of label values
+    private final Map<String, ChildCache<MetricsBackend.Counter>> featuredCounters = new HashMap<>();
+    private final GenericCounters<EventType> userEventCounters;
+    private final GenericCounters<OperationType> adminEventCounters;
+    private final ChildCache<MetricsBackend.Counter> loginChildren;
+    private final ChildCache<MetricsBackend.Counter> loginAttemptChildren;
+    private final ChildCache<MetricsBackend.Counter> failedLoginAttemptChildren;
+    private final ChildCache<MetricsBackend.Counter> registrationChildren;
+    private final ChildCache<MetricsBackend.Counter> registrationErrorChildren;
+    private final ChildCache<MetricsBackend.Counter> refreshTokenChildren;
+    private final ChildCache<MetricsBackend.Counter> refreshTokenErrorChildren;
+    private final ChildCache<MetricsBackend.Counter> clientLoginChildren;
+    private final ChildCache<MetricsBackend.Counter> failedClientLoginAttemptChildren;
+    private final ChildCache<MetricsBackend.Counter> codeToTokenChildren;
+    private final ChildCache<MetricsBackend.Counter> codeToTokenErrorChildren;
+    private final ChildCache<MetricsBackend.Counter> responseTotalChildren;
+    private final ChildCache<MetricsBackend.Counter> responseErrorChildren;
+    private final ChildCache<MetricsBackend.Histogram> requestDurationChildren;
+    private final ChildCache<SlidingQuantiles.Child> requestDurationQuantileChildren;
+    // number of series per metric with a limited label, 0 for unbounded
+    private final int seriesLimit;
 
     private PrometheusExporter() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Wall clock in milliseconds of the windows of the top-K and of the distinct users, for tests
+     */
+    PrometheusExporter(LongSupplier clock) {
         // The metrics collector needs to be a singleton because requiring a
         // provider from the KeyCloak session (session#getProvider) will always
         // create a new instance. Not sure if this is a bug in the SPI implementation
@@ -74,164 +217,535 @@ public final class PrometheusExporter {
         // sense to record the same metric in multiple places)
 
         PUSH_GATEWAY = buildPushGateWay();
-
-        // package private on purpose
-        totalLoginAttempts = Counter.build()
-            .name("keycloak_login_attempts")
-            .help("Total number of login attempts")
-            .labelNames("realm", "provider", "client_id")
+        pushScheduler = PUSH_GATEWAY != null ? new PushScheduler(this::push, pushInterval()) : null;
+
+        backend = buildBackend();
+
+        realmNames = new RealmNameCache(realmNameCacheSize(), Counter.build()
+            .name("keycloak_realm_name_cache_lookups")
+            .help("Total number of realm name lookups by the metrics event listener")
+            .labelNames("result")
+            .register());
+
+        final double exemplarSampleRate = Settings.getDouble(METRICS_EXEMPLARS_SAMPLE_RATE, 0);
+        exemplars = exemplarSampleRate > 0 ? new Exemplars(exemplarSampleRate) : null;
+
+        final long scrapeCacheTtl = Settings.getLong(METRICS_SCRAPE_CACHE_TTL_MS, 0);
+        scrapeCache = scrapeCacheTtl > 0 ? new ScrapeCache(scrapeCacheTtl) : null;
+
+        final boolean URI_METRICS_ENABLED = Settings.getBoolean("URI_METRICS_ENABLED");
+        final String[] responseLabels = URI_METRICS_ENABLED ? RESPONSE_URI_LABELS : RESPONSE_LABELS;
+        requestDurationQuantiles = Settings.get(REQUEST_DURATION_QUANTILES) != null ? buildRequestDurationQuantiles() : null;
+        // sampled durations are observed with a weight, which only the default backend records
+        requestDurationSampler = Settings.get(REQUEST_DURATION_SAMPLES_PER_SECOND) != null
+            && simpleclientOnly(REQUEST_DURATION_SAMPLES_PER_SECOND)
+            ? new AdaptiveSampler(Settings.getDouble(REQUEST_DURATION_SAMPLES_PER_SECOND, 0)).register() : null;
+
+        labelOverflows = Counter.build()
+            .name("keycloak_label_overflows")
+            .help("Total number of label values replaced by " + LabelLimiter.OVERFLOW + " because the label reached its limit")
+            .labelNames("metric", "label")
             .register();
+        seriesLimit = Math.max(0, Settings.getInt(LABEL_LIMIT_SERIES, 0));
+
+        // labels: realm, provider, client_id
+        loginChildren = featuredCounter("keycloak_logins", "Total successful logins", EVENT_LABELS,
+            null, null, clientIdLimiter("keycloak_logins"));
+        loginAttemptChildren = featuredCounter("keycloak_login_attempts", "Total number of login attempts", EVENT_LABELS,
+            null, null, clientIdLimiter("keycloak_login_attempts"));
+        registrationChildren = featuredCounter("keycloak_registrations", "Total registered users", EVENT_LABELS,
+            null, null, clientIdLimiter("keycloak_registrations"));
+        refreshTokenChildren = featuredCounter("keycloak_refresh_tokens", "Total number of successful token refreshes", EVENT_LABELS,
+            null, null, clientIdLimiter("keycloak_refresh_tokens"));
+        clientLoginChildren = featuredCounter("keycloak_client_logins", "Total successful client logins", EVENT_LABELS,
+            null, null, clientIdLimiter("keycloak_client_logins"));
+        codeToTokenChildren = featuredCounter("keycloak_code_to_tokens", "Total number of successful code to token", EVENT_LABELS,
+            null, null, clientIdLimiter("keycloak_code_to_tokens"));
+        // labels: realm, provider, error, client_id
+        failedLoginAttemptChildren = featuredCounter("keycloak_failed_login_attempts", "Total failed login attempts", ERROR_EVENT_LABELS,
+            null, null, errorLimiter("keycloak_failed_login_attempts"), clientIdLimiter("keycloak_failed_login_attempts"));
+        registrationErrorChildren = featuredCounter("keycloak_registrations_errors", "Total errors on registrations", ERROR_EVENT_LABELS,
+            null, null, errorLimiter("keycloak_registrations_errors"), clientIdLimiter("keycloak_registrations_errors"));
+        refreshTokenErrorChildren = featuredCounter("keycloak_refresh_tokens_errors", "Total number of failed token refreshes", ERROR_EVENT_LABELS,
+            null, null, errorLimiter("keycloak_refresh_tokens_errors"), clientIdLimiter("keycloak_refresh_tokens_errors"));
+        failedClientLoginAttemptChildren = featuredCounter("keycloak_failed_client_login_attempts", "Total failed client login attempts", ERROR_EVENT_LABELS,
+            null, null, errorLimiter("keycloak_failed_client_login_attempts"), clientIdLimiter("keycloak_failed_client_login_attempts"));
+        codeToTokenErrorChildren = featuredCounter("keycloak_code_to_tokens_errors", "Total number of failed code to token", ERROR_EVENT_LABELS,
+            null, null, errorLimiter("keycloak_code_to_tokens_errors"), clientIdLimiter("keycloak_code_to_tokens_errors"));
+        // labels: code, method, resource and uri if enabled
+        responseTotalChildren = featuredCounter("keycloak_response", "Total number of responses", responseLabels,
+            null, null, null, uriLimiter("keycloak_response"));
+        responseErrorChildren = featuredCounter("keycloak_response_errors", "Total number of error responses", responseLabels,
+            null, null, null, uriLimiter("keycloak_response_errors"));
+        requestDurationChildren = new ChildCache<>(
+            backend.histogram("keycloak_request_duration", "Request duration", requestDurationBuckets(), responseLabels),
+            seriesLimit, seriesOverflows("keycloak_request_duration"), null, null, null, uriLimiter("keycloak_request_duration"));
+        // labels: realm, dimension, value, for the most failing values only
+        loginFailuresTopK = Settings.get(LOGIN_FAILURES_TOP_K) != null ? buildLoginFailuresTopK(clock) : null;
+        // labels: realm, client_id if enabled, window
+        distinctUsers = Settings.getBoolean(DISTINCT_USERS_ENABLED) ? buildDistinctUsers(clock) : null;
+        // labels: resource
+        requestDurationQuantileChildren = requestDurationQuantiles != null ? new ChildCache<>(requestDurationQuantiles::labels) : null;
+
+        // Counters for the other user events and for admin events, created on their first event
+        final Set<String> included = genericEventNames(METRICS_GENERIC_EVENTS_INCLUDE);
+        final Set<String> excluded = genericEventNames(METRICS_GENERIC_EVENTS_EXCLUDE);
+        final Set<EventType> userEvents = EnumSet.complementOf(FEATURED_EVENTS);
+        userEvents.removeIf(type -> !isGenericEventEnabled(type.name(), included, excluded));
+        userEventCounters = new GenericCounters<>(EventType.class, userEvents,
+            type -> createGenericCounter(buildCounterName(type), false));
+        final Set<OperationType> adminEvents = EnumSet.allOf(OperationType.class);
+        adminEvents.removeIf(type -> !isGenericEventEnabled(type.name(), included, excluded));
+        adminEventCounters = new GenericCounters<>(OperationType.class, adminEvents,
+            type -> createGenericCounter(buildCounterName(type), true));
+
+        // JVM metrics, all the hotspot collectors unless chosen by name
+        // none by default with another backend, whose registry usually has JVM metrics of its own
+        jfrCollectors = JvmCollectors.register(Settings.get(METRICS_JVM_COLLECTORS,
+            backend instanceof SimpleclientBackend ? null : "none"));
+
+        // restored before any event is recorded and before the first scrape
+        counterSnapshots = Settings.get(METRICS_SNAPSHOT_FILE) != null && countersReadable(METRICS_SNAPSHOT_FILE)
+            ? buildCounterSnapshots() : null;
+
+        eventIngest = Settings.getBoolean(METRICS_ASYNC_EVENTS) ? buildEventIngest() : null;
+        clusterView = Settings.get(METRICS_CLUSTER_TRANSPORT) != null && simpleclientOnly(METRICS_CLUSTER_TRANSPORT)
+            ? buildClusterView() : null;
+    }
 
-        // package private on purpose
-        totalLogins = Counter.build()
-            .name("keycloak_logins")
-            .help("Total successful logins")
-            .labelNames("realm", "provider", "client_id")
-            .register();
+    public static synchronized PrometheusExporter instance() {
+        if (INSTANCE == null) {
+            INSTANCE = new PrometheusExporter();
+        }
+        return INSTANCE;
+    }
 
-        // package private on purpose
-        totalFailedLoginAttempts = Counter.build()
-            .name("keycloak_failed_login_attempts")
-            .help("Total failed login attempts")
-            .labelNames("realm", "provider", "error", "client_id")
-            .register();
+    /**
+     * Stop the background work of the exporter, if it was ever created,
+     * flushing pending changes to the PushGateway
+     */
+    public static synchronized void shutdown() {
+        if (INSTANCE != null && INSTANCE.eventIngest != null) {
+            // record the queued events before the last push
+            INSTANCE.eventIngest.shutdown();
+        }
+        if (INSTANCE != null && INSTANCE.counterSnapshots != null) {
+            INSTANCE.counterSnapshots.shutdown();
+        }
+        if (INSTANCE != null && INSTANCE.clusterView != null) {
+            INSTANCE.clusterView.shutdown();
+        }
+        if (INSTANCE != null && INSTANCE.sessionGauges != null) {
+            INSTANCE.sessionGauges.shutdown();
+        }
+        if (INSTANCE != null && INSTANCE.jfrCollectors != null) {
+            INSTANCE.jfrCollectors.shutdown();
+        }
+        if (INSTANCE != null && INSTANCE.pushScheduler != null) {
+            INSTANCE.pushScheduler.shutdown();
+        }
+    }
 
-        // package private on purpose
-        totalRegistrations = Counter.build()
-            .name("keycloak_registrations")
-            .help("Total registered users")
-            .labelNames("realm", "provider", "client_id")
-            .register();
+    /**
+     * Start sampling the number of sessions per realm and client in the background, if enabled.
+     * Scrapes only read the last sample and never query the session store.
+     *
+     * @param factory Factory of the Keycloak sessions, as given to the provider factories after their initialization
+     */
+    public synchronized void startSessionSampling(KeycloakSessionFactory factory) {
+        if (!Settings.getBoolean(SESSION_METRICS_ENABLED) || sessionGauges != null) {
+            return;
+        }
+        final Set<String> realms = names(Settings.get(SESSION_METRICS_REALMS));
+        sessionGauges = new SessionGauges(() -> SessionGauges.count(factory, realms)).register();
+        sessionGauges.start(interval(SESSION_METRICS_INTERVAL_MS, DEFAULT_SESSION_METRICS_INTERVAL_MS));
+    }
 
-        // package private on purpose
-        totalRegistrationsErrors = Counter.build()
-            .name("keycloak_registrations_errors")
-            .help("Total errors on registrations")
-            .labelNames("realm", "provider", "error", "client_id")
-            .register();
+    private static Set<String> names(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        final Set<String> names = new HashSet<>();
+        for (String name : value.split(",")) {
+            if (!name.isBlank()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
 
-        // package private on purpose
-        totalRefreshTokens = Counter.build()
-            .name("keycloak_refresh_tokens")
-            .help("Total number of successful token refreshes")
-            .labelNames("realm", "provider", "client_id")
-            .register();
+    /**
+     * Upper bounds of the request duration histogram, the classic buckets or, if configured,
+     * exponential buckets of higher resolution
+     */
+    private static double[] requestDurationBuckets() {
+        if ("exponential".equalsIgnoreCase(Settings.get(REQUEST_DURATION_HISTOGRAM))) {
+            int schema = Settings.getInt(REQUEST_DURATION_HISTOGRAM_SCHEMA, DEFAULT_REQUEST_DURATION_SCHEMA);
+            if (schema < LatencyHistogram.MIN_SCHEMA || schema > LatencyHistogram.MAX_SCHEMA) {
+                final int clamped = Math.max(LatencyHistogram.MIN_SCHEMA, Math.min(LatencyHistogram.MAX_SCHEMA, schema));
+                logger.warnf("%s needs to be between %d and %d, using %d instead of %d.", REQUEST_DURATION_HISTOGRAM_SCHEMA,
+                    LatencyHistogram.MIN_SCHEMA, LatencyHistogram.MAX_SCHEMA, clamped, schema);
+                schema = clamped;
+            }
+            return LatencyHistogram.exponentialBounds(schema, REQUEST_DURATION_MINIMUM, REQUEST_DURATION_MAXIMUM);
+        }
+        return REQUEST_DURATION_BUCKETS;
+    }
 
-        // package private on purpose
-        totalRefreshTokensErrors = Counter.build()
-            .name("keycloak_refresh_tokens_errors")
-            .help("Total number of failed token refreshes")
-            .labelNames("realm", "provider", "error", "client_id")
+    private static SlidingQuantiles buildRequestDurationQuantiles() {
+        final String[] values = Settings.get(REQUEST_DURATION_QUANTILES).split(",");
+        final double[] quantiles = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            quantiles[i] = Double.parseDouble(values[i].trim());
+        }
+        return SlidingQuantiles.build()
+            .name("keycloak_request_duration_quantiles")
+            .help("Quantiles of the request duration in the last window, by resource")
+            .labelNames("resource")
+            .quantiles(quantiles)
+            .window(Settings.getLong(REQUEST_DURATION_QUANTILES_WINDOW_MS, DEFAULT_QUANTILES_WINDOW_MS),
+                Settings.getInt(REQUEST_DURATION_QUANTILES_WINDOW_SLICES, DEFAULT_QUANTILES_WINDOW_SLICES))
             .register();
+    }
 
-        // package private on purpose
-        totalClientLogins = Counter.build()
-            .name("keycloak_client_logins")
-            .help("Total successful client logins")
-            .labelNames("realm", "provider", "client_id")
-            .register();
+    private EventIngest buildEventIngest() {
+        final int capacity = Settings.getInt(METRICS_ASYNC_EVENTS_QUEUE_SIZE, DEFAULT_ASYNC_EVENTS_QUEUE_SIZE);
+        final boolean block = "block".equalsIgnoreCase(Settings.get(METRICS_ASYNC_EVENTS_WHEN_FULL, "drop"));
+        final EventIngest ingest = new EventIngest(new EventIngest.Sink() {
+            @Override
+            public void event(EventType type, String realm, String provider, String clientId, String error,
+                              String user, String ipAddress, String[] exemplar) {
+                recordEvent(type, realm, provider, clientId, error, user, ipAddress, exemplar);
+            }
 
-        // package private on purpose
-        totalFailedClientLoginAttempts = Counter.build()
-            .name("keycloak_failed_client_login_attempts")
-            .help("Total failed client login attempts")
-            .labelNames("realm", "provider", "error", "client_id")
-            .register();
+            @Override
+            public void adminEvent(OperationType operation, String resourceType, String realm, String[] exemplar) {
+                recordGenericAdminEvent(operation, resourceType, realm, exemplar);
+            }
+        }, capacity, block);
+        ingest.start();
+        return ingest;
+    }
 
-        // package private on purpose
-        totalCodeToTokens = Counter.build()
-            .name("keycloak_code_to_tokens")
-            .help("Total number of successful code to token")
-            .labelNames("realm", "provider", "client_id")
-            .register();
+    private static FailureTopK buildLoginFailuresTopK(LongSupplier clock) {
+        final int k = Settings.getInt(LOGIN_FAILURES_TOP_K, 0);
+        return new FailureTopK(k, Settings.getInt(LOGIN_FAILURES_TOP_K_CAPACITY, 10 * k),
+            Settings.getLong(LOGIN_FAILURES_TOP_K_WINDOW_MS, DEFAULT_LOGIN_FAILURES_TOP_K_WINDOW_MS), clock).register();
+    }
 
-        // package private on purpose
-        totalCodeToTokensErrors = Counter.build()
-            .name("keycloak_code_to_tokens_errors")
-            .help("Total number of failed code to token")
-            .labelNames("realm", "provider", "error", "client_id")
-            .register();
+    private static DistinctUsers buildDistinctUsers(LongSupplier clock) {
+        return new DistinctUsers(Settings.getInt(DISTINCT_USERS_PRECISION, DEFAULT_DISTINCT_USERS_PRECISION),
+            Settings.getInt(DISTINCT_USERS_CLIENT_PRECISION, DEFAULT_DISTINCT_USERS_CLIENT_PRECISION),
+            Settings.getBoolean(DISTINCT_USERS_PER_CLIENT) ? Settings.getInt(DISTINCT_USERS_MAX_CLIENTS, DEFAULT_DISTINCT_USERS_MAX_CLIENTS) : 0,
+            Settings.getLong(DISTINCT_USERS_WINDOW_MS, DEFAULT_DISTINCT_USERS_WINDOW_MS), clock).register();
+    }
 
-        final boolean URI_METRICS_ENABLED = Boolean.parseBoolean(System.getenv("URI_METRICS_ENABLED"));
-        if (URI_METRICS_ENABLED){
-            responseTotal = Counter.build()
-            .name("keycloak_response")
-            .help("Total number of responses")
-            .labelNames("code", "method", "resource", "uri")
-            .register();
+    /**
+     * Build the backend given in the settings, the Prometheus client library by default
+     */
+    private MetricsBackend buildBackend() {
+        final String backendName = Settings.get(METRICS_BACKEND);
+        if (backendName == null || backendName.isBlank() || "simpleclient".equalsIgnoreCase(backendName.trim())) {
+            return new SimpleclientBackend(seriesIndex);
+        }
+        if ("micrometer".equalsIgnoreCase(backendName.trim())) {
+            return new MicrometerBackend();
+        }
+        try {
+            return (MetricsBackend) Class.forName(backendName.trim()).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Invalid metrics backend " + backendName, e);
+        }
+    }
 
-            responseErrors = Counter.build()
-            .name("keycloak_response_errors")
-            .help("Total number of error responses")
-            .labelNames("code", "method", "resource", "uri")
-            .register();
+    /**
+     * Whether the backend is the Prometheus client library, which the given feature needs
+     */
+    private boolean simpleclientOnly(String setting) {
+        if (backend instanceof SimpleclientBackend) {
+            return true;
+        }
+        logger.warnf("%s is ignored, it needs the simpleclient metrics backend.", setting);
+        return false;
+    }
 
-            requestDuration = Histogram.build()
-            .name("keycloak_request_duration")
-            .help("Request duration")
-            .buckets(50, 100, 250, 500, 1000, 2000, 10000, 30000)
-            .labelNames("code", "method", "resource", "uri")
-            .register();
-        } else {
-            responseTotal = Counter.build()
-            .name("keycloak_response")
-            .help("Total number of responses")
-            .labelNames("code", "method", "resource")
-            .register();
+    /**
+     * Whether the values of the counters of the backend can be read, otherwise warn that the setting is ignored
+     */
+    private boolean countersReadable(String setting) {
+        if (backend instanceof SimpleclientBackend || backend instanceof MicrometerBackend) {
+            return true;
+        }
+        logger.warnf("%s is ignored, it needs the simpleclient or micrometer metrics backend.", setting);
+        return false;
+    }
 
-            responseErrors = Counter.build()
-            .name("keycloak_response_errors")
-            .help("Total number of error responses")
-            .labelNames("code", "method", "resource")
-            .register();
+    /**
+     * Current values of the counters, of a backend whose counters are readable
+     */
+    private List<Collector.MetricFamilySamples> collectCounters() {
+        return backend instanceof MicrometerBackend
+            ? ((MicrometerBackend) backend).collectCounters() : seriesIndex.collectCounters();
+    }
 
-            requestDuration = Histogram.build()
-            .name("keycloak_request_duration")
-            .help("Request duration")
-            .buckets(50, 100, 250, 500, 1000, 2000, 10000, 30000)
-            .labelNames("code", "method", "resource")
-            .register();
+    /**
+     * Label names of a counter, of a backend whose counters are readable, null if there is no such counter
+     */
+    private List<String> counterLabelNames(String name) {
+        return backend instanceof MicrometerBackend
+            ? ((MicrometerBackend) backend).counterLabelNames(name) : seriesIndex.counterLabelNames(name);
+    }
+
+    /**
+     * Build the cluster view over the transport class given in the settings
+     */
+    private ClusterView buildClusterView() {
+        final String transportClass = Settings.get(METRICS_CLUSTER_TRANSPORT);
+        final ClusterTransport transport;
+        try {
+            transport = (ClusterTransport) Class.forName(transportClass).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Invalid cluster transport " + transportClass, e);
         }
+        // the distinct users of the cluster are the union of those of its nodes
+        final Supplier<List<ClusterSnapshot.Sketch>> sketches = distinctUsers != null ? distinctUsers::sketches : Collections::emptyList;
+        // restored counters keep their epoch, the other nodes do not add them again
+        final long epoch = counterSnapshots != null ? counterSnapshots.epoch() : ClusterSnapshot.newEpoch();
+        return new ClusterView(Settings.get(METRICS_CLUSTER_NODE, hostName()), epoch, transport,
+            seriesIndex::collectRealmCounters, sketches, Settings.getLong(METRICS_CLUSTER_PUBLISH_INTERVAL_MS, DEFAULT_CLUSTER_PUBLISH_INTERVAL_MS),
+            Settings.getInt(METRICS_CLUSTER_FULL_SNAPSHOT_EVERY, DEFAULT_CLUSTER_FULL_SNAPSHOT_EVERY),
+            Settings.getLong(METRICS_CLUSTER_NODE_TTL_MS, DEFAULT_CLUSTER_NODE_TTL_MS));
+    }
 
-        // Counters for all user events
-        for (EventType type : EventType.values()) {
-            if (type.equals(EventType.LOGIN) || type.equals(EventType.LOGIN_ERROR) || type.equals(EventType.REGISTER)) {
+    private CounterSnapshots buildCounterSnapshots() {
+        final Path file = Paths.get(Settings.get(METRICS_SNAPSHOT_FILE));
+        final CounterSnapshots snapshots;
+        try {
+            snapshots = new CounterSnapshots(file, Settings.getInt(METRICS_SNAPSHOT_SLOT_BYTES, DEFAULT_SNAPSHOT_SLOT_BYTES),
+                this::collectCounters);
+        } catch (IOException | RuntimeException e) {
+            // the counters start at zero, as without snapshots
+            logger.error("Unable to open the counter snapshot file " + file, e);
+            return null;
+        }
+        if (snapshots.restored() != null) {
+            restoreCounters(snapshots.restored());
+        }
+        snapshots.start(interval(METRICS_SNAPSHOT_INTERVAL_MS, DEFAULT_SNAPSHOT_INTERVAL_MS));
+        return snapshots;
+    }
+
+    /**
+     * Add the values of a snapshot to the counters, which are still at zero. Series of counters that no
+     * longer exist or changed their labels are dropped. The series are restored through the caches of the
+     * counters, so that their label values are admitted by the label limiters first.
+     */
+    private void restoreCounters(ClusterSnapshot snapshot) {
+        int restored = 0;
+        for (ClusterSnapshot.Family family : snapshot.families) {
+            final ChildCache<MetricsBackend.Counter> children = counterChildren(family.name);
+            if (children == null || !family.labelNames.equals(counterLabelNames(family.name))) {
                 continue;
             }
-            final String counterName = buildCounterName(type);
-            counters.put(counterName, createCounter(counterName, false));
+            for (Map.Entry<List<String>, Double> series : family.values.entrySet()) {
+                if (series.getValue() > 0) {
+                    children.get(series.getKey()).inc(series.getValue());
+                    restored++;
+                }
+            }
+        }
+        logger.infof("Restored %d counter series from the last snapshot.", restored);
+    }
+
+    /**
+     * Children of the counter of the given name, creating it if it is the name of an enabled generic counter
+     *
+     * @return The children, null if there is no such counter
+     */
+    private ChildCache<MetricsBackend.Counter> counterChildren(String name) {
+        final ChildCache<MetricsBackend.Counter> featured = featuredCounters.get(name);
+        if (featured != null) {
+            return featured;
+        }
+        try {
+            if (name.startsWith(USER_EVENT_PREFIX)) {
+                return userEventCounters.get(EventType.valueOf(name.substring(USER_EVENT_PREFIX.length())));
+            } else if (name.startsWith(ADMIN_EVENT_PREFIX)) {
+                return adminEventCounters.get(OperationType.valueOf(name.substring(ADMIN_EVENT_PREFIX.length())));
+            }
+        } catch (IllegalArgumentException e) {
+            logger.debugf("Not restoring the counter %s of an unknown event type", name);
+        }
+        return null;
+    }
+
+    /**
+     * Names of the generic events listed in a setting, separated by commas, in upper case
+     */
+    private static Set<String> genericEventNames(String setting) {
+        final Set<String> listed = names(Settings.get(setting));
+        if (listed == null) {
+            return null;
+        }
+        final Set<String> names = new HashSet<>();
+        for (String name : listed) {
+            names.add(name.toUpperCase(Locale.ROOT));
+        }
+        for (String name : names) {
+            if (!isEventName(name)) {
+                logger.warnf("Unknown event type %s in %s", name, setting);
+            }
         }
+        return names;
+    }
 
-        // Counters for all admin events
+    private static boolean isEventName(String name) {
+        for (EventType type : EventType.values()) {
+            if (type.name().equals(name)) {
+                return true;
+            }
+        }
         for (OperationType type : OperationType.values()) {
-            final String counterName = buildCounterName(type);
-            counters.put(counterName, createCounter(counterName, true));
+            if (type.name().equals(name)) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        // Initialize the default metrics for the hotspot VM
-        DefaultExports.initialize();
+    private static boolean isGenericEventEnabled(String name, Set<String> included, Set<String> excluded) {
+        return (included == null || included.contains(name)) && (excluded == null || !excluded.contains(name));
     }
 
-    public static synchronized PrometheusExporter instance() {
-        if (INSTANCE == null) {
-            INSTANCE = new PrometheusExporter();
+    /**
+     * Creates the counter of a featured event or of the responses, whose children are bound by the given limiters
+     */
+    private ChildCache<MetricsBackend.Counter> featuredCounter(String name, String help, String[] labelNames,
+                                                              LabelLimiter... limiters) {
+        final ChildCache<MetricsBackend.Counter> children = new ChildCache<>(backend.counter(name, help, labelNames),
+            seriesLimit, seriesOverflows(name), limiters);
+        featuredCounters.put(name, children);
+        return children;
+    }
+
+    /**
+     * Creates the counter of a generic event. Called once per event type, on its first event.
+     */
+    private ChildCache<MetricsBackend.Counter> createGenericCounter(final String name, boolean isAdmin) {
+        final ChildCache<MetricsBackend.Counter> children = isAdmin
+            ? new ChildCache<>(backend.counter(name, "Generic KeyCloak Admin event", ADMIN_EVENT_LABELS))
+            : new ChildCache<>(backend.counter(name, "Generic KeyCloak User event", USER_EVENT_LABELS));
+        counters.put(name, children);
+        return children;
+    }
+
+    /**
+     * Record a user event with the counters of its type. If events are recorded
+     * asynchronously, the event is only queued.
+     *
+     * @param event         User event
+     * @param realmProvider
+     */
+    public void recordEvent(final Event event, RealmProvider realmProvider) {
+        recordEvent(event, realmProvider, null);
+    }
+
+    /**
+     * Record a user event with the counters of its type. If events are recorded
+     * asynchronously, the event is only queued.
+     *
+     * @param event         User event
+     * @param realmProvider
+     * @param headers       Headers of the request that caused the event by name, for exemplars, may be null
+     */
+    public void recordEvent(final Event event, RealmProvider realmProvider, Function<String, String> headers) {
+        final String realm = nullToEmpty(getRealmName(event.getRealmId(), realmProvider));
+        final String provider = getIdentityProvider(event);
+        final String clientId = nullToEmpty(event.getClientId());
+        final String error = nullToEmpty(event.getError());
+        final String[] exemplar = exemplar(headers, event.getId());
+        // only what the top-K of the login failures needs, recorded with the counters of the event
+        final boolean loginFailure = loginFailuresTopK != null
+            && (event.getType() == EventType.LOGIN_ERROR || event.getType() == EventType.CLIENT_LOGIN_ERROR);
+        final String user = loginFailure ? username(event) : null;
+        final String ipAddress = loginFailure ? event.getIpAddress() : null;
+        if (distinctUsers != null && event.getUserId() != null && event.getError() == null) {
+            distinctUsers.record(realm, clientId, event.getUserId());
+        }
+        if (eventIngest != null) {
+            eventIngest.offer(event.getType(), realm, provider, clientId, error, user, ipAddress, exemplar);
+        } else {
+            recordEvent(event.getType(), realm, provider, clientId, error, user, ipAddress, exemplar);
         }
-        return INSTANCE;
     }
 
     /**
-     * Creates a counter based on a event name
+     * Record an admin event with the counter of its operation type. If events are
+     * recorded asynchronously, the event is only queued.
+     *
+     * @param event         Admin event
+     * @param realmProvider
      */
-    private static Counter createCounter(final String name, boolean isAdmin) {
-        final Counter.Builder counter = Counter.build().name(name);
+    public void recordAdminEvent(final AdminEvent event, RealmProvider realmProvider) {
+        recordAdminEvent(event, realmProvider, null);
+    }
 
-        if (isAdmin) {
-            counter.labelNames("realm", "resource").help("Generic KeyCloak Admin event");
+    /**
+     * Record an admin event with the counter of its operation type. If events are
+     * recorded asynchronously, the event is only queued.
+     *
+     * @param event         Admin event
+     * @param realmProvider
+     * @param headers       Headers of the request that caused the event by name, for exemplars, may be null
+     */
+    public void recordAdminEvent(final AdminEvent event, RealmProvider realmProvider, Function<String, String> headers) {
+        final String realm = nullToEmpty(getRealmName(event.getRealmId(), realmProvider));
+        final String[] exemplar = exemplar(headers, event.getId());
+        if (eventIngest != null) {
+            eventIngest.offer(event.getOperationType(), event.getResourceType().name(), realm, exemplar);
         } else {
-            counter.labelNames("realm").help("Generic KeyCloak User event");
+            recordGenericAdminEvent(event.getOperationType(), event.getResourceType().name(), realm, exemplar);
         }
+    }
 
-        return counter.register();
+    private void recordEvent(EventType type, String realm, String provider, String clientId, String error,
+                             String user, String ipAddress, String[] exemplar) {
+        switch (type) {
+            case LOGIN:
+                recordLogin(realm, provider, clientId, exemplar);
+                break;
+            case CLIENT_LOGIN:
+                recordClientLogin(realm, provider, clientId, exemplar);
+                break;
+            case REGISTER:
+                recordRegistration(realm, provider, clientId, exemplar);
+                break;
+            case REFRESH_TOKEN:
+                recordRefreshToken(realm, provider, clientId, exemplar);
+                break;
+            case CODE_TO_TOKEN:
+                recordCodeToToken(realm, provider, clientId, exemplar);
+                break;
+            case REGISTER_ERROR:
+                recordRegistrationError(realm, provider, error, clientId, exemplar);
+                break;
+            case LOGIN_ERROR:
+                recordLoginFailure(realm, user, ipAddress, clientId);
+                recordLoginError(realm, provider, error, clientId, exemplar);
+                break;
+            case CLIENT_LOGIN_ERROR:
+                recordLoginFailure(realm, user, ipAddress, clientId);
+                recordClientLoginError(realm, provider, error, clientId, exemplar);
+                break;
+            case REFRESH_TOKEN_ERROR:
+                recordRefreshTokenError(realm, provider, error, clientId, exemplar);
+                break;
+            case CODE_TO_TOKEN_ERROR:
+                recordCodeToTokenError(realm, provider, error, clientId, exemplar);
+                break;
+            default:
+                recordGenericEvent(type, realm, exemplar);
+        }
     }
 
     /**
@@ -241,12 +755,16 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordGenericEvent(final Event event, RealmProvider realmProvider) {
-        final String counterName = buildCounterName(event.getType());
-        if (counters.get(counterName) == null) {
-            logger.warnf("Counter for event type %s does not exist. Realm: %s", event.getType().name(), nullToEmpty(getRealmName(event.getRealmId(), realmProvider)));
+        recordGenericEvent(event.getType(), realm(event, realmProvider), exemplar(null, event.getId()));
+    }
+
+    private void recordGenericEvent(EventType type, String realm, String[] exemplar) {
+        final ChildCache<MetricsBackend.Counter> counter = userEventCounters.get(type);
+        if (counter == null) {
+            logger.debugf("Counter for event type %s is disabled. Realm: %s", type.name(), realm);
             return;
         }
-        counters.get(counterName).labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider))).inc();
+        counter.get(realm).inc(exemplar);
         pushAsync();
     }
 
@@ -257,12 +775,17 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordGenericAdminEvent(final AdminEvent event, RealmProvider realmProvider) {
-        final String counterName = buildCounterName(event.getOperationType());
-        if (counters.get(counterName) == null) {
-            logger.warnf("Counter for admin event operation type %s does not exist. Resource type: %s, realm: %s", event.getOperationType().name(), event.getResourceType().name(), event.getRealmId());
+        recordGenericAdminEvent(event.getOperationType(), event.getResourceType().name(),
+            nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), exemplar(null, event.getId()));
+    }
+
+    private void recordGenericAdminEvent(OperationType operation, String resourceType, String realm, String[] exemplar) {
+        final ChildCache<MetricsBackend.Counter> counter = adminEventCounters.get(operation);
+        if (counter == null) {
+            logger.debugf("Counter for admin event operation type %s is disabled. Resource type: %s, realm: %s", operation.name(), resourceType, realm);
             return;
         }
-        counters.get(counterName).labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), event.getResourceType().name()).inc();
+        counter.get(realm, resourceType).inc(exemplar);
         pushAsync();
     }
 
@@ -273,10 +796,12 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordLogin(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        recordLogin(realm(event, realmProvider), getIdentityProvider(event), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalLoginAttempts.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getClientId())).inc();
-        totalLogins.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getClientId())).inc();
+    private void recordLogin(String realm, String provider, String clientId, String[] exemplar) {
+        loginAttemptChildren.get(realm, provider, clientId).inc(exemplar);
+        loginChildren.get(realm, provider, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -287,9 +812,11 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordRegistration(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        recordRegistration(realm(event, realmProvider), getIdentityProvider(event), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalRegistrations.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getClientId())).inc();
+    private void recordRegistration(String realm, String provider, String clientId, String[] exemplar) {
+        registrationChildren.get(realm, provider, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -300,9 +827,11 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordRegistrationError(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        recordRegistrationError(realm(event, realmProvider), getIdentityProvider(event), nullToEmpty(event.getError()), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalRegistrationsErrors.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getError()), nullToEmpty(event.getClientId())).inc();
+    private void recordRegistrationError(String realm, String provider, String error, String clientId, String[] exemplar) {
+        registrationErrorChildren.get(realm, provider, error, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -313,10 +842,14 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordLoginError(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        final String realm = realm(event, realmProvider);
+        recordLoginFailure(realm, username(event), event.getIpAddress(), nullToEmpty(event.getClientId()));
+        recordLoginError(realm, getIdentityProvider(event), nullToEmpty(event.getError()), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalLoginAttempts.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getClientId())).inc();
-        totalFailedLoginAttempts.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getError()), nullToEmpty(event.getClientId())).inc();
+    private void recordLoginError(String realm, String provider, String error, String clientId, String[] exemplar) {
+        loginAttemptChildren.get(realm, provider, clientId).inc(exemplar);
+        failedLoginAttemptChildren.get(realm, provider, error, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -327,9 +860,11 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordClientLogin(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        recordClientLogin(realm(event, realmProvider), getIdentityProvider(event), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalClientLogins.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getClientId())).inc();
+    private void recordClientLogin(String realm, String provider, String clientId, String[] exemplar) {
+        clientLoginChildren.get(realm, provider, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -340,9 +875,26 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordClientLoginError(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        final String realm = realm(event, realmProvider);
+        recordLoginFailure(realm, username(event), event.getIpAddress(), nullToEmpty(event.getClientId()));
+        recordClientLoginError(realm, getIdentityProvider(event), nullToEmpty(event.getError()), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
+
+    /**
+     * Count a failed login in the top-K of the failing users, IP addresses and clients, if enabled
+     */
+    private void recordLoginFailure(String realm, String user, String ipAddress, String clientId) {
+        if (loginFailuresTopK != null) {
+            loginFailuresTopK.record(realm, user, ipAddress, clientId);
+        }
+    }
+
+    private static String username(Event event) {
+        return event.getDetails() != null ? event.getDetails().get(Details.USERNAME) : null;
+    }
 
-        totalFailedClientLoginAttempts.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getError()), nullToEmpty(event.getClientId())).inc();
+    private void recordClientLoginError(String realm, String provider, String error, String clientId, String[] exemplar) {
+        failedClientLoginAttemptChildren.get(realm, provider, error, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -353,9 +905,11 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordRefreshToken(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        recordRefreshToken(realm(event, realmProvider), getIdentityProvider(event), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalRefreshTokens.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getClientId())).inc();
+    private void recordRefreshToken(String realm, String provider, String clientId, String[] exemplar) {
+        refreshTokenChildren.get(realm, provider, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -366,9 +920,11 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordRefreshTokenError(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        recordRefreshTokenError(realm(event, realmProvider), getIdentityProvider(event), nullToEmpty(event.getError()), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalRefreshTokensErrors.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getError()), nullToEmpty(event.getClientId())).inc();
+    private void recordRefreshTokenError(String realm, String provider, String error, String clientId, String[] exemplar) {
+        refreshTokenErrorChildren.get(realm, provider, error, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -379,9 +935,11 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordCodeToToken(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        recordCodeToToken(realm(event, realmProvider), getIdentityProvider(event), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalCodeToTokens.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getClientId())).inc();
+    private void recordCodeToToken(String realm, String provider, String clientId, String[] exemplar) {
+        codeToTokenChildren.get(realm, provider, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -392,9 +950,11 @@ public final class PrometheusExporter {
      * @param realmProvider
      */
     public void recordCodeToTokenError(final Event event, RealmProvider realmProvider) {
-        final String provider = getIdentityProvider(event);
+        recordCodeToTokenError(realm(event, realmProvider), getIdentityProvider(event), nullToEmpty(event.getError()), nullToEmpty(event.getClientId()), exemplar(null, event.getId()));
+    }
 
-        totalCodeToTokensErrors.labels(nullToEmpty(getRealmName(event.getRealmId(), realmProvider)), provider, nullToEmpty(event.getError()), nullToEmpty(event.getClientId())).inc();
+    private void recordCodeToTokenError(String realm, String provider, String error, String clientId, String[] exemplar) {
+        codeToTokenErrorChildren.get(realm, provider, error, clientId).inc(exemplar);
         pushAsync();
     }
 
@@ -405,7 +965,31 @@ public final class PrometheusExporter {
      * @param method HTTP method of the request
      */
     public void recordRequestDuration(int code, double amt, String method, String resource, String uri) {
-        requestDuration.labels(Integer.toString(code), method, resource, uri).observe(amt);
+        recordRequestDurationWithExemplar(code, amt, method, resource, uri, null);
+    }
+
+    /**
+     * Record the duration between one request and response
+     *
+     * @param amt      The duration in milliseconds
+     * @param method   HTTP method of the request
+     * @param exemplar Labels of the exemplar of the request, see {@link #exemplar(Function)}
+     */
+    public void recordRequestDurationWithExemplar(int code, double amt, String method, String resource, String uri, String[] exemplar) {
+        recordRequestDurationWithExemplar(code, amt, 1, method, resource, uri, exemplar);
+    }
+
+    /**
+     * Record the duration of a sampled request, standing for the given number of requests
+     *
+     * @param amt      The duration in milliseconds
+     * @param weight   Weight of the request, see {@link #sampleRequestDuration()}
+     * @param method   HTTP method of the request
+     * @param exemplar Labels of the exemplar of the request, see {@link #exemplar(Function)}
+     */
+    public void recordRequestDurationWithExemplar(int code, double amt, long weight, String method, String resource, String uri, String[] exemplar) {
+        requestDurationChildren.get(statusCode(code), method, resource, uri).observe(amt, weight, exemplar);
+        observeQuantiles(resource, amt, weight);
         pushAsync();
     }
 
@@ -416,10 +1000,44 @@ public final class PrometheusExporter {
      * @param method HTTP method of the request
      */
     public void recordRequestDuration(int code, double amt, String method, String resource) {
-        requestDuration.labels(Integer.toString(code), method, resource).observe(amt);
+        recordRequestDurationWithExemplar(code, amt, method, resource, null);
+    }
+
+    /**
+     * Record the duration between one request and response
+     *
+     * @param amt      The duration in milliseconds
+     * @param method   HTTP method of the request
+     * @param exemplar Labels of the exemplar of the request, see {@link #exemplar(Function)}
+     */
+    public void recordRequestDurationWithExemplar(int code, double amt, String method, String resource, String[] exemplar) {
+        recordRequestDurationWithExemplar(code, amt, 1, method, resource, exemplar);
+    }
+
+    /**
+     * Record the duration of a sampled request, standing for the given number of requests
+     *
+     * @param amt      The duration in milliseconds
+     * @param weight   Weight of the request, see {@link #sampleRequestDuration()}
+     * @param method   HTTP method of the request
+     * @param exemplar Labels of the exemplar of the request, see {@link #exemplar(Function)}
+     */
+    public void recordRequestDurationWithExemplar(int code, double amt, long weight, String method, String resource, String[] exemplar) {
+        requestDurationChildren.get(statusCode(code), method, resource).observe(amt, weight, exemplar);
+        observeQuantiles(resource, amt, weight);
         pushAsync();
     }
 
+    /**
+     * Count a request and choose whether its duration is recorded. Unless adaptive sampling is enabled,
+     * the duration of every request is recorded with weight 1.
+     *
+     * @return Weight to record the duration of the request with, 0 if its duration is not recorded
+     */
+    public long sampleRequestDuration() {
+        return requestDurationSampler != null ? requestDurationSampler.sample() : 1;
+    }
+
     /**
      * Increase the response total count by a given method and response code
      *
@@ -427,7 +1045,18 @@ public final class PrometheusExporter {
      * @param method The request method used
      */
     public void recordResponseTotal(int code, String method, String resource, String uri) {
-        responseTotal.labels(Integer.toString(code), method, resource, uri).inc();
+        recordResponseTotalWithExemplar(code, method, resource, uri, null);
+    }
+
+    /**
+     * Increase the response total count by a given method and response code
+     *
+     * @param code     The returned http status code
+     * @param method   The request method used
+     * @param exemplar Labels of the exemplar of the request, see {@link #exemplar(Function)}
+     */
+    public void recordResponseTotalWithExemplar(int code, String method, String resource, String uri, String[] exemplar) {
+        responseTotalChildren.get(statusCode(code), method, resource, uri).inc(exemplar);
         pushAsync();
     }
 
@@ -438,7 +1067,18 @@ public final class PrometheusExporter {
      * @param method The request method used
      */
     public void recordResponseTotal(int code, String method, String resource) {
-        responseTotal.labels(Integer.toString(code), method, resource).inc();
+        recordResponseTotalWithExemplar(code, method, resource, null);
+    }
+
+    /**
+     * Increase the response total count by a given method and response code
+     *
+     * @param code     The returned http status code
+     * @param method   The request method used
+     * @param exemplar Labels of the exemplar of the request, see {@link #exemplar(Function)}
+     */
+    public void recordResponseTotalWithExemplar(int code, String method, String resource, String[] exemplar) {
+        responseTotalChildren.get(statusCode(code), method, resource).inc(exemplar);
         pushAsync();
     }
 
@@ -449,7 +1089,18 @@ public final class PrometheusExporter {
      * @param method The request method used
      */
     public void recordResponseError(int code, String method, String resource, String uri) {
-        responseErrors.labels(Integer.toString(code), method, resource, uri).inc();
+        recordResponseErrorWithExemplar(code, method, resource, uri, null);
+    }
+
+    /**
+     * Increase the response error count by a given method and response code
+     *
+     * @param code     The returned http status code
+     * @param method   The request method used
+     * @param exemplar Labels of the exemplar of the request, see {@link #exemplar(Function)}
+     */
+    public void recordResponseErrorWithExemplar(int code, String method, String resource, String uri, String[] exemplar) {
+        responseErrorChildren.get(statusCode(code), method, resource, uri).inc(exemplar);
         pushAsync();
     }
 
@@ -460,10 +1111,42 @@ public final class PrometheusExporter {
      * @param method The request method used
      */
     public void recordResponseError(int code, String method, String resource) {
-        responseErrors.labels(Integer.toString(code), method, resource).inc();
+        recordResponseErrorWithExemplar(code, method, resource, null);
+    }
+
+    /**
+     * Increase the response error count by a given method and response code
+     *
+     * @param code     The returned http status code
+     * @param method   The request method used
+     * @param exemplar Labels of the exemplar of the request, see {@link #exemplar(Function)}
+     */
+    public void recordResponseErrorWithExemplar(int code, String method, String resource, String[] exemplar) {
+        responseErrorChildren.get(statusCode(code), method, resource).inc(exemplar);
         pushAsync();
     }
 
+    /**
+     * Choose whether the current request leaves an exemplar on the series it updates
+     *
+     * @param headers Request headers by name
+     * @return Labels of the exemplar, null if exemplars are disabled, the request is not sampled
+     * or it carries no trace or request ID
+     */
+    public String[] exemplar(Function<String, String> headers) {
+        return exemplars != null && exemplars.sample() ? Exemplars.labels(headers) : null;
+    }
+
+    private String[] exemplar(Function<String, String> headers, String eventId) {
+        return exemplars != null && exemplars.sample() ? Exemplars.labels(headers, eventId) : null;
+    }
+
+    private void observeQuantiles(String resource, double amount, long weight) {
+        if (requestDurationQuantileChildren != null) {
+            requestDurationQuantileChildren.get(resource).observe(amount, weight);
+        }
+    }
+
     /**
      * Retrieve the identity prodiver name from event details or
      * default to {@value #PROVIDER_KEYCLOAK_OPENID}.
@@ -483,33 +1166,207 @@ public final class PrometheusExporter {
     }
 
     /**
-     * Retrieve the real realm name in the event by id from the RealmProvider.
+     * Retrieve the real realm name in the event by id, from the realm name cache
+     * or from the RealmProvider.
      *
      * @param realmId Id of Realm
      * @param realmProvider RealmProvider instance
      * @return Realm name
      */
-    private String getRealmName(String realmId, RealmProvider realmProvider) {
-        RealmModel realm = null;
-        if (realmId != null) {
-             realm = realmProvider.getRealm(realmId);
-        }
-        if (realm != null) {
-            return realm.getName();
-        }
-        return null;
+    String getRealmName(String realmId, RealmProvider realmProvider) {
+        return realmNames.get(realmId, realmProvider);
+    }
+
+    private String realm(Event event, RealmProvider realmProvider) {
+        return nullToEmpty(getRealmName(event.getRealmId(), realmProvider));
+    }
+
+    /**
+     * Forget the cached name of a realm, so that it is resolved again on the next event
+     *
+     * @param realmId Id of Realm
+     */
+    public void invalidateRealm(String realmId) {
+        realmNames.invalidate(realmId);
     }
     /**
      * Write the Prometheus formatted values of all counters and
-     * gauges to the stream
+     * gauges to the stream. If the scrape cache is enabled, a response
+     * rendered within the cache TTL is written instead.
      *
      * @param stream Output stream
      * @throws IOException
      */
     public void export(final OutputStream stream) throws IOException {
-        final Writer writer = new BufferedWriter(new OutputStreamWriter(stream));
-        TextFormat.write004(writer, CollectorRegistry.defaultRegistry.metricFamilySamples());
-        writer.flush();
+        export(stream, TextFormat.CONTENT_TYPE_004, false);
+    }
+
+    /**
+     * Write the values of all counters and gauges to the stream in the given format,
+     * optionally gzip compressed. If the scrape cache is enabled, a response
+     * rendered within the cache TTL is written instead.
+     *
+     * @param stream      Output stream
+     * @param contentType One of the content types supported by {@link TextFormat#writeFormat},
+     *                    or the delimited protobuf format
+     * @param gzip        Whether to compress the output
+     * @throws IOException
+     */
+    public void export(final OutputStream stream, final String contentType, final boolean gzip) throws IOException {
+        export(stream, contentType, gzip, null);
+    }
+
+    /**
+     * Write the values of the counters labeled with the given realm to the stream, or the values
+     * of all counters and gauges if no realm is given.
+     *
+     * @param stream      Output stream
+     * @param contentType One of the content types supported by {@link TextFormat#writeFormat},
+     *                    or the delimited protobuf format
+     * @param gzip        Whether to compress the output
+     * @param realm       Name of the realm, or null for all metrics
+     * @throws IOException
+     */
+    public void export(final OutputStream stream, final String contentType, final boolean gzip, final String realm) throws IOException {
+        final String key = realm != null ? contentType + ";realm=" + realm : contentType;
+        exportCached(stream, key, gzip, output -> write(output, contentType, realm));
+    }
+
+    /**
+     * Write the totals of the event counters, and the distinct users if they are counted, over all nodes of the
+     * cluster to the stream.
+     *
+     * @param stream      Output stream
+     * @param contentType One of the content types supported by {@link TextFormat#writeFormat},
+     *                    or the delimited protobuf format
+     * @param gzip        Whether to compress the output
+     * @throws IOException
+     * @throws IllegalStateException if the cluster view is not enabled
+     */
+    public void exportCluster(final OutputStream stream, final String contentType, final boolean gzip) throws IOException {
+        exportCluster(stream, contentType, gzip, null);
+    }
+
+    /**
+     * Write the totals of the event counters over all nodes of the cluster, restricted to the series of a realm
+     *
+     * @param realm Name of the realm whose series are exported, null for all series
+     */
+    public void exportCluster(final OutputStream stream, final String contentType, final boolean gzip, final String realm) throws IOException {
+        if (clusterView == null) {
+            throw new IllegalStateException("The cluster view is not enabled");
+        }
+        exportCached(stream, realm == null ? contentType + ";cluster" : contentType + ";cluster;realm=" + realm, gzip,
+            output -> write(output, contentType, Collections.enumeration(realm == null
+                ? collectCluster() : ofRealm(collectCluster(), realm))));
+    }
+
+    /**
+     * The totals of the event counters and the distinct users over all nodes of the cluster
+     */
+    private List<Collector.MetricFamilySamples> collectCluster() {
+        final List<Collector.MetricFamilySamples> families = new ArrayList<>(clusterView.collect());
+        if (distinctUsers != null) {
+            families.addAll(distinctUsers.collect(clusterView.sketches()));
+        }
+        return families;
+    }
+
+    /**
+     * Keep the samples whose realm label is the given realm
+     */
+    private static List<Collector.MetricFamilySamples> ofRealm(List<Collector.MetricFamilySamples> families, String realm) {
+        final List<Collector.MetricFamilySamples> result = new ArrayList<>(families.size());
+        for (Collector.MetricFamilySamples family : families) {
+            final List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                final int index = sample.labelNames.indexOf("realm");
+                if (index >= 0 && realm.equals(sample.labelValues.get(index))) {
+                    samples.add(sample);
+                }
+            }
+            result.add(new Collector.MetricFamilySamples(family.name, family.type, family.help, samples));
+        }
+        return result;
+    }
+
+    /**
+     * Whether the totals of the cluster can be exported
+     */
+    public boolean isClusterViewEnabled() {
+        return clusterView != null;
+    }
+
+    private void exportCached(final OutputStream stream, final String key, final boolean gzip, final ScrapeCache.Renderer renderer) throws IOException {
+        if (scrapeCache != null) {
+            stream.write(scrapeCache.get(gzip ? key + ";gzip" : key, output -> write(output, gzip, renderer)));
+        } else {
+            write(stream, gzip, renderer);
+        }
+    }
+
+    private static void write(final OutputStream stream, final boolean gzip, final ScrapeCache.Renderer renderer) throws IOException {
+        if (gzip) {
+            final GZIPOutputStream compressed = new GZIPOutputStream(stream, WRITE_BUFFER_SIZE);
+            renderer.render(compressed);
+            // finish instead of close, the underlying stream is owned by the caller
+            compressed.finish();
+        } else {
+            renderer.render(stream);
+        }
+    }
+
+    private void write(final OutputStream stream, final String contentType, final String realm) throws IOException {
+        if (TextFormat.CONTENT_TYPE_004.equals(contentType)) {
+            final ExpositionWriter writer = new ExpositionWriter(stream, WRITE_BUFFER_SIZE);
+            if (realm != null) {
+                seriesIndex.write(writer, realm);
+                writer.write(Collections.enumeration(collectUntracked(realm)));
+            } else {
+                // the tracked collectors are left out by name, so that they are not collected twice
+                writer.write(CollectorRegistry.defaultRegistry.filteredMetricFamilySamples(name -> !seriesIndex.isTracked(name)));
+                seriesIndex.write(writer);
+            }
+            writer.finish();
+        } else if (realm != null) {
+            final List<Collector.MetricFamilySamples> families = new ArrayList<>(seriesIndex.collect(realm));
+            families.addAll(collectUntracked(realm));
+            write(stream, contentType, Collections.enumeration(families));
+        } else {
+            write(stream, contentType, CollectorRegistry.defaultRegistry.metricFamilySamples());
+        }
+    }
+
+    /**
+     * The samples of the given realm of the collectors labeled by realm that the series index does not track
+     */
+    private List<Collector.MetricFamilySamples> collectUntracked(final String realm) {
+        final List<Collector.MetricFamilySamples> families = new ArrayList<>();
+        final SessionGauges gauges = sessionGauges;
+        if (gauges != null) {
+            families.addAll(gauges.collect());
+        }
+        if (loginFailuresTopK != null) {
+            families.addAll(loginFailuresTopK.collect());
+        }
+        if (distinctUsers != null) {
+            families.addAll(distinctUsers.collect());
+        }
+        return ofRealm(families, realm);
+    }
+
+    private static void write(final OutputStream stream, final String contentType, final Enumeration<Collector.MetricFamilySamples> samples) throws IOException {
+        if (TextFormat.CONTENT_TYPE_004.equals(contentType)) {
+            final ExpositionWriter writer = new ExpositionWriter(stream, WRITE_BUFFER_SIZE);
+            writer.write(samples);
+            writer.finish();
+        } else if (ProtobufFormat.CONTENT_TYPE.equals(contentType)) {
+            ProtobufFormat.write(stream, samples);
+        } else {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+            TextFormat.writeFormat(contentType, writer, samples);
+            writer.flush();
+        }
     }
 
     /**
@@ -520,7 +1377,7 @@ public final class PrometheusExporter {
     private PushGateway buildPushGateWay() {
         // host:port or ip:port of the Pushgateway.
         PushGateway pg = null;
-        String host = System.getenv("PROMETHEUS_PUSHGATEWAY_ADDRESS");
+        String host = Settings.get("PROMETHEUS_PUSHGATEWAY_ADDRESS");
         if (host != null) {
             // if protocoll is missing in host, we assume http
             if (!host.toLowerCase().startsWith("http://") && !host.startsWith("https://")) {
@@ -532,8 +1389,8 @@ public final class PrometheusExporter {
             } catch (MalformedURLException e) {
                 throw new RuntimeException(e);
             }
-            String basic_auth_username = System.getenv("PROMETHEUS_PUSHGATEWAY_BASIC_AUTH_USERNAME");
-            String basic_auth_password = System.getenv("PROMETHEUS_PUSHGATEWAY_BASIC_AUTH_PASSWORD");
+            String basic_auth_username = Settings.get("PROMETHEUS_PUSHGATEWAY_BASIC_AUTH_USERNAME");
+            String basic_auth_password = Settings.get("PROMETHEUS_PUSHGATEWAY_BASIC_AUTH_PASSWORD");
             if (basic_auth_username != null && basic_auth_password != null) {
                 logger.info("Enabled basic auth for pushgateway.");
                 pg.setConnectionFactory(new BasicAuthHttpConnectionFactory(basic_auth_username, basic_auth_password));
@@ -542,8 +1399,71 @@ public final class PrometheusExporter {
         return pg;
     }
 
+    /**
+     * Schedule a push of the registry to the PushGateway, if one is configured.
+     * Pushes are coalesced and happen at most once per push interval.
+     */
     public void pushAsync() {
-        CompletableFuture.runAsync(() -> push());
+        if (pushScheduler != null) {
+            pushScheduler.markDirty();
+        }
+    }
+
+    private LabelLimiter clientIdLimiter(String metric) {
+        return labelLimiter(metric, "client_id", Settings.getInt(LABEL_LIMIT_CLIENT_ID, 0));
+    }
+
+    private LabelLimiter errorLimiter(String metric) {
+        return labelLimiter(metric, "error", Settings.getInt(LABEL_LIMIT_ERROR, 0));
+    }
+
+    private LabelLimiter uriLimiter(String metric) {
+        return labelLimiter(metric, "uri", Settings.getInt(LABEL_LIMIT_URI, 0));
+    }
+
+    /**
+     * Build the limiter of a label, or none if neither the label nor the series of its metric are bounded
+     */
+    private LabelLimiter labelLimiter(String metric, String label, int limit) {
+        return limit > 0 || seriesLimit > 0 ? new LabelLimiter(Math.max(0, limit), labelOverflows.labels(metric, label)) : null;
+    }
+
+    /**
+     * Counter of the tuples of label values of a metric collapsed because it reached the limit of its series
+     */
+    private Counter.Child seriesOverflows(String metric) {
+        return seriesLimit > 0 ? labelOverflows.labels(metric, "series") : null;
+    }
+
+    private static long pushInterval() {
+        return interval(PROMETHEUS_PUSHGATEWAY_PUSH_INTERVAL_MS, DEFAULT_PUSH_INTERVAL_MS);
+    }
+
+    /**
+     * Interval of a background task, the default one if the setting is not positive, which the executor refuses
+     */
+    private static long interval(String setting, long defaultMillis) {
+        final long interval = Settings.getLong(setting, defaultMillis);
+        if (interval <= 0) {
+            logger.warnf("%s needs to be positive, using %d instead of %d.", setting, defaultMillis, interval);
+            return defaultMillis;
+        }
+        return interval;
+    }
+
+    private static int realmNameCacheSize() {
+        return Settings.getInt(REALM_NAME_CACHE_SIZE, DEFAULT_REALM_NAME_CACHE_SIZE);
+    }
+
+    /**
+     * Name of the host, stable across restarts of a pod, or a random name if it cannot be resolved
+     */
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString();
+        }
     }
 
     private static String instanceIp() throws UnknownHostException {
@@ -551,7 +1471,7 @@ public final class PrometheusExporter {
     }
 
     private static String groupingKey() throws UnknownHostException {
-        return Optional.ofNullable(System.getenv(PROMETHEUS_PUSHGATEWAY_GROUPINGKEY_INSTANCE))
+        return Optional.ofNullable(Settings.get(PROMETHEUS_PUSHGATEWAY_GROUPINGKEY_INSTANCE))
             .map(envValue -> {
                 Matcher matcher = PROMETHEUS_PUSHGATEWAY_GROUPINGKEY_INSTANCE_ENVVALUE_PATTERN.matcher(envValue);
                 if(matcher.matches()) return System.getenv(matcher.group(1));
@@ -562,7 +1482,7 @@ public final class PrometheusExporter {
     private void push() {
         if(PUSH_GATEWAY != null) {
             try {
-                String job = Optional.ofNullable(System.getenv(PROMETHEUS_PUSHGATEWAY_JOB)).orElse("keycloak");
+                String job = Settings.get(PROMETHEUS_PUSHGATEWAY_JOB, "keycloak");
                 Map<String, String> groupingKey = Collections.singletonMap("instance", groupingKey());
                 PUSH_GATEWAY.pushAdd(CollectorRegistry.defaultRegistry, job, groupingKey);
             } catch (IOException e) {
@@ -579,6 +1499,10 @@ public final class PrometheusExporter {
         return USER_EVENT_PREFIX + type.name();
     }
 
+    private static String statusCode(int code) {
+        return code >= 0 && code < STATUS_CODES.length ? STATUS_CODES[code] : Integer.toString(code);
+    }
+
     private String nullToEmpty(String value) {
         return value == null ? "" : value;
     }
@@ -0,0 +1,358 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writer of the Prometheus protobuf exposition format: a stream of {@code io.prometheus.client.MetricFamily}
+ * messages, each preceded by its length as varint.
+ * <p>
+ * The messages of the Prometheus client model (metrics.proto) are encoded by hand, which avoids a dependency
+ * on protobuf-java for the handful of fields written here. Samples are grouped into one metric per label set,
+ * the buckets of histograms and the quantiles of summaries become part of their metric.
+ */
+final class ProtobufFormat {
+
+    static final String CONTENT_TYPE = "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+
+    private static final String MEDIA_TYPE = "application/vnd.google.protobuf";
+
+    // io.prometheus.client.MetricType
+    private static final int COUNTER = 0;
+    private static final int GAUGE = 1;
+    private static final int SUMMARY = 2;
+    private static final int UNTYPED = 3;
+    private static final int HISTOGRAM = 4;
+    private static final int GAUGE_HISTOGRAM = 5;
+
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+
+    // encoded messages, reused for all families
+    private final Message family = new Message();
+    private final Message metric = new Message();
+    private final Message value = new Message();
+    private final Message item = new Message();
+    private final Message length = new Message();
+    private final OutputStream stream;
+
+    private ProtobufFormat(OutputStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Check whether the Accept header asks for the delimited protobuf format
+     *
+     * @param accept Value of the Accept header, may be null
+     * @return true if the protobuf format is accepted
+     */
+    static boolean accepted(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        for (String range : accept.split(",")) {
+            final String[] parts = range.split(";");
+            if (!MEDIA_TYPE.equalsIgnoreCase(parts[0].trim())) {
+                continue;
+            }
+            boolean metricFamily = false;
+            boolean delimited = false;
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                metricFamily |= param.equals("proto=io.prometheus.client.MetricFamily");
+                delimited |= param.equals("encoding=delimited");
+                // q=0, also written 0.0 or 0.000, explicitly refuses the format
+                if (param.startsWith("q=") && MetricsEndpoint.isZero(param.substring(2))) {
+                    return false;
+                }
+            }
+            return metricFamily && delimited;
+        }
+        return false;
+    }
+
+    /**
+     * Write the families to the stream
+     */
+    static void write(OutputStream stream, Enumeration<MetricFamilySamples> families) throws IOException {
+        final ProtobufFormat format = new ProtobufFormat(stream);
+        while (families.hasMoreElements()) {
+            format.write(families.nextElement());
+        }
+        stream.flush();
+    }
+
+    private void write(MetricFamilySamples samples) throws IOException {
+        final int type = type(samples.type);
+        final Map<List<String>, Metric> metrics = new LinkedHashMap<>();
+        for (MetricFamilySamples.Sample sample : samples.samples) {
+            final String suffix = sample.name.startsWith(samples.name) ? sample.name.substring(samples.name.length()) : null;
+            if (suffix == null) {
+                continue;
+            }
+            final Metric m = metrics.computeIfAbsent(identity(sample), key -> new Metric(sample));
+            switch (type == COUNTER || type == SUMMARY || type == HISTOGRAM || type == GAUGE_HISTOGRAM ? suffix : "") {
+                case "_created":
+                    m.created = sample.value;
+                    break;
+                case "_count":
+                case "_gcount":
+                    m.count = sample.value;
+                    break;
+                case "_sum":
+                case "_gsum":
+                    m.sum = sample.value;
+                    break;
+                case "_bucket":
+                    m.buckets.add(new double[]{parse(label(sample, "le")), sample.value});
+                    break;
+                default:
+                    if (type == SUMMARY) {
+                        m.quantiles.add(new double[]{parse(label(sample, "quantile")), sample.value});
+                    } else {
+                        m.value = sample.value;
+                    }
+                    m.timestampMs = sample.timestampMs;
+            }
+        }
+
+        family.reset();
+        family.string(1, samples.type == Collector.Type.COUNTER ? samples.name + "_total"
+            : samples.type == Collector.Type.INFO ? samples.name + "_info" : samples.name);
+        family.string(2, samples.help);
+        family.varint(3, type);
+        for (Metric m : metrics.values()) {
+            encode(m, type);
+            family.message(4, metric);
+        }
+        length.reset();
+        length.rawVarint(family.size);
+        stream.write(length.bytes, 0, length.size);
+        stream.write(family.bytes, 0, family.size);
+    }
+
+    private void encode(Metric m, int type) {
+        metric.reset();
+        for (int i = 0; i < m.labelNames.size(); i++) {
+            item.reset();
+            item.string(1, m.labelNames.get(i));
+            item.string(2, m.labelValues.get(i));
+            metric.message(1, item);
+        }
+        value.reset();
+        switch (type) {
+            case COUNTER:
+                value.fixed64(1, m.value);
+                created(3, m.created);
+                metric.message(3, value);
+                break;
+            case GAUGE:
+                value.fixed64(1, m.value);
+                metric.message(2, value);
+                break;
+            case SUMMARY:
+                value.varint(1, (long) m.count);
+                value.fixed64(2, m.sum);
+                for (double[] quantile : m.quantiles) {
+                    item.reset();
+                    item.fixed64(1, quantile[0]);
+                    item.fixed64(2, quantile[1]);
+                    value.message(3, item);
+                }
+                created(4, m.created);
+                metric.message(4, value);
+                break;
+            case HISTOGRAM:
+            case GAUGE_HISTOGRAM:
+                count(value, 1, 4, m.count);
+                value.fixed64(2, m.sum);
+                for (double[] bucket : m.buckets) {
+                    item.reset();
+                    count(item, 1, 4, bucket[1]);
+                    item.fixed64(2, bucket[0]);
+                    value.message(3, item);
+                }
+                created(15, m.created);
+                metric.message(7, value);
+                break;
+            default:
+                value.fixed64(1, m.value);
+                metric.message(5, value);
+        }
+        if (m.timestampMs != null) {
+            metric.varint(6, m.timestampMs);
+        }
+    }
+
+    /**
+     * Add the created timestamp, given in seconds, to the value message
+     */
+    private void created(int field, Double created) {
+        if (created == null) {
+            return;
+        }
+        final double seconds = Math.floor(created);
+        item.reset();
+        item.varint(1, (long) seconds);
+        item.varint(2, Math.round((created - seconds) * 1e9));
+        value.message(field, item);
+    }
+
+    /**
+     * Counts are integers, unless the observations were weighted
+     */
+    private static void count(Message message, int integerField, int floatField, double count) {
+        if (count >= 0 && count == (long) count) {
+            message.varint(integerField, (long) count);
+        } else {
+            message.fixed64(floatField, count);
+        }
+    }
+
+    private static int type(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return COUNTER;
+            case GAUGE:
+            case INFO:
+            case STATE_SET:
+                return GAUGE;
+            case SUMMARY:
+                return SUMMARY;
+            case HISTOGRAM:
+                return HISTOGRAM;
+            case GAUGE_HISTOGRAM:
+                return GAUGE_HISTOGRAM;
+            default:
+                return UNTYPED;
+        }
+    }
+
+    /**
+     * Label names and values of a sample, without the bucket and quantile labels
+     */
+    private static List<String> identity(MetricFamilySamples.Sample sample) {
+        final List<String> identity = new ArrayList<>(sample.labelNames.size() * 2);
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+            if (!isPartOfMetric(sample.labelNames.get(i))) {
+                identity.add(sample.labelNames.get(i));
+                identity.add(sample.labelValues.get(i));
+            }
+        }
+        return identity;
+    }
+
+    private static boolean isPartOfMetric(String labelName) {
+        return labelName.equals("le") || labelName.equals("quantile");
+    }
+
+    private static String label(MetricFamilySamples.Sample sample, String name) {
+        final int index = sample.labelNames.indexOf(name);
+        return index >= 0 ? sample.labelValues.get(index) : "NaN";
+    }
+
+    private static double parse(String value) {
+        switch (value) {
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(value);
+        }
+    }
+
+    private static final class Metric {
+        private final List<String> labelNames = new ArrayList<>();
+        private final List<String> labelValues = new ArrayList<>();
+        private final List<double[]> buckets = new ArrayList<>();
+        private final List<double[]> quantiles = new ArrayList<>();
+        private double value;
+        private double count;
+        private double sum;
+        private Double created;
+        private Long timestampMs;
+
+        private Metric(MetricFamilySamples.Sample sample) {
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                if (!isPartOfMetric(sample.labelNames.get(i))) {
+                    labelNames.add(sample.labelNames.get(i));
+                    labelValues.add(sample.labelValues.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Growable buffer holding an encoded message
+     */
+    private static final class Message {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        private void reset() {
+            size = 0;
+        }
+
+        private void tag(int field, int wireType) {
+            rawVarint((long) field << 3 | wireType);
+        }
+
+        private void varint(int field, long value) {
+            tag(field, VARINT);
+            rawVarint(value);
+        }
+
+        private void fixed64(int field, double value) {
+            tag(field, FIXED64);
+            ensure(8);
+            final long bits = Double.doubleToRawLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (bits >>> (8 * i));
+            }
+        }
+
+        private void string(int field, String value) {
+            final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            tag(field, LENGTH_DELIMITED);
+            rawVarint(encoded.length);
+            ensure(encoded.length);
+            System.arraycopy(encoded, 0, bytes, size, encoded.length);
+            size += encoded.length;
+        }
+
+        private void message(int field, Message message) {
+            tag(field, LENGTH_DELIMITED);
+            rawVarint(message.size);
+            ensure(message.size);
+            System.arraycopy(message.bytes, 0, bytes, size, message.size);
+            size += message.size;
+        }
+
+        private void rawVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void ensure(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces PushGateway pushes. Recording a metric only marks the registry as dirty,
+ * a single daemon thread pushes the registry at most once per interval if anything changed.
+ */
+final class PushScheduler {
+
+    private final static Logger logger = Logger.getLogger(PushScheduler.class);
+
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final Runnable push;
+    private final ScheduledExecutorService executor;
+
+    PushScheduler(Runnable push, long intervalMillis) {
+        this.push = push;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "keycloak-metrics-push");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::pushIfDirty, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.infof("Pushgateway pushes scheduled every %d ms.", intervalMillis);
+    }
+
+    /**
+     * Mark the registry as changed since the last push
+     */
+    void markDirty() {
+        // plain read first to avoid contended writes on the hot path
+        if (!dirty.get()) {
+            dirty.set(true);
+        }
+    }
+
+    private void pushIfDirty() {
+        if (dirty.compareAndSet(true, false)) {
+            try {
+                push.run();
+            } catch (RuntimeException e) {
+                logger.error("Unable to send to prometheus PushGateway", e);
+            }
+        }
+    }
+
+    /**
+     * Stop the scheduler and push any pending changes one last time
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        pushIfDirty();
+    }
+}
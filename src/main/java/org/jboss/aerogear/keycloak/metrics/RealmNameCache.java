@@ -0,0 +1,59 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Counter;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+/**
+ * Bounded realm id to realm name cache, so that resolving the realm of an event
+ * does not need to go through the {@link RealmProvider} for every event.
+ * <p>
+ * Entries are invalidated when a realm admin event is received by this node. Once the cache is full,
+ * the names cached first are evicted (see {@link BoundedCache}).
+ */
+final class RealmNameCache {
+
+    private final BoundedCache<String, String> names;
+    private final Counter.Child hits;
+    private final Counter.Child misses;
+
+    RealmNameCache(int maxSize, Counter lookups) {
+        this.names = new BoundedCache<>(maxSize);
+        this.hits = lookups.labels("hit");
+        this.misses = lookups.labels("miss");
+    }
+
+    /**
+     * Retrieve the realm name for the given id, resolving it through the provider on a cache miss.
+     *
+     * @param realmId       Id of Realm
+     * @param realmProvider RealmProvider instance
+     * @return Realm name or null if the realm does not exist
+     */
+    String get(String realmId, RealmProvider realmProvider) {
+        if (realmId == null) {
+            return null;
+        }
+        String name = names.get(realmId);
+        if (name != null) {
+            hits.inc();
+            return name;
+        }
+        misses.inc();
+        return names.load(realmId, id -> {
+            final RealmModel realm = realmProvider.getRealm(id);
+            return realm != null ? realm.getName() : null;
+        });
+    }
+
+    /**
+     * Forget the cached name of a realm, e.g. because it was renamed or removed
+     *
+     * @param realmId Id of Realm
+     */
+    void invalidate(String realmId) {
+        if (realmId != null) {
+            names.invalidate(realmId);
+        }
+    }
+}
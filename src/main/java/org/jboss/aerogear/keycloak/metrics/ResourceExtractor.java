@@ -10,10 +10,14 @@ class ResourceExtractor {
     private final static Logger logger = Logger.getLogger(ResourceExtractor.class);
 
     private static final boolean IS_RESOURCE_SCRAPING_DISABLED = Boolean.getBoolean("RESOURCE_SCRAPING_DISABLED");
-    private static final boolean URI_METRICS_ENABLED = Boolean.parseBoolean(System.getenv("URI_METRICS_ENABLED"));
-    private static final boolean URI_METRICS_DETAILED = Boolean.parseBoolean(System.getenv("URI_METRICS_DETAILED"));
-    private static final String URI_METRICS_FILTER = System.getenv("URI_METRICS_FILTER");
-    private static final boolean URI_METRICS_UUID_HIDDEN = Boolean.parseBoolean(System.getenv("URI_METRICS_UUID_HIDDEN"));
+    private static final boolean URI_METRICS_ENABLED = Settings.getBoolean("URI_METRICS_ENABLED");
+    private static final boolean URI_METRICS_DETAILED = Settings.getBoolean("URI_METRICS_DETAILED");
+    private static final String[] URI_METRICS_FILTER = splitFilter(Settings.get("URI_METRICS_FILTER"));
+    private static final boolean URI_METRICS_UUID_HIDDEN = Settings.getBoolean("URI_METRICS_UUID_HIDDEN");
+    private static final int URI_TEMPLATE_CACHE_SIZE = Settings.getInt("URI_TEMPLATE_CACHE_SIZE", 10000);
+
+    private static final UriTemplates URI_TEMPLATES =
+        new UriTemplates(URI_METRICS_DETAILED, URI_METRICS_UUID_HIDDEN, URI_TEMPLATE_CACHE_SIZE);
 
     private ResourceExtractor() {
     }
@@ -59,6 +63,8 @@ class ResourceExtractor {
 
     /**
      * This method obtains a list of resource info from the {@link UriInfo} object and returns the resource URI.
+     * <p>
+     * If URI_METRICS_FILTER is set, only URIs containing one of its comma separated values are returned.
      *
      * @param uriInfo {@link UriInfo} object obtained from JAX-RS
      * @return The resource uri.
@@ -67,52 +73,29 @@ class ResourceExtractor {
         if (URI_METRICS_ENABLED) {
             List<String> matchedURIs = uriInfo.getMatchedURIs();
             if (!matchedURIs.isEmpty()) {
-                StringBuilder sb = new StringBuilder();
-
-                if (URI_METRICS_FILTER != null && URI_METRICS_FILTER.length() != 0) {
-                    String[] filter = URI_METRICS_FILTER.split(",");
-
-                    for (int i = 0; i < filter.length; i++) {
-                        if (matchedURIs.get(0).contains(filter[i])) {
-
-                            sb = getURIDetailed(sb, matchedURIs);
-                        }
-                    }
-                } else {
-                    sb = getURIDetailed(sb, matchedURIs);
-                }
-                return sb.toString();
+                final String uri = matchedURIs.get(0);
+                return isFiltered(uri) ? URI_TEMPLATES.template(uri) : "";
             }
         }
         return "";
     }
 
-    private static StringBuilder getURIDetailed(StringBuilder sb, List<String> matchedURIs) {
-
-        String uri = matchedURIs.get(0);
-
-        if (URI_METRICS_DETAILED) {
-            if (URI_METRICS_UUID_HIDDEN) {
-                uri = uri.replaceAll("\\w{8}-\\w{4}-\\w{4}-\\w{4}-\\w{12}", "{id}");
-                sb.append(uri);
-            } else {
-                sb.append(uri);
-            }
-        } else {
-            String[] realm = uri.split("/");
-            if (realm.length != 1) {
-                if (uri.startsWith("admin/realms/")) {
-                    uri = uri.replace(realm[2], "{realm}");
-                    if (realm.length > 4 && (realm[3].equals("clients") || realm[3].equals("users"))) {
-                        uri = uri.replace(realm[4], "{id}");
-                    }
-                }
-                if (uri.startsWith("realms/")) {
-                    uri = uri.replace(realm[1], "{realm}");
-                }
+    private static boolean isFiltered(String uri) {
+        if (URI_METRICS_FILTER.length == 0) {
+            return true;
+        }
+        for (String filter : URI_METRICS_FILTER) {
+            if (uri.contains(filter)) {
+                return true;
             }
-            sb.append(uri);
         }
-        return sb;
+        return false;
+    }
+
+    private static String[] splitFilter(String filter) {
+        if (filter == null || filter.isEmpty()) {
+            return new String[0];
+        }
+        return filter.split(",");
     }
 }
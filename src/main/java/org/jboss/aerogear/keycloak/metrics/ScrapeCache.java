@@ -0,0 +1,117 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps rendered scrape responses for a limited time, so that several scrapers hitting
+ * the endpoint within the same interval do not serialize the whole registry each time.
+ * <p>
+ * Only one thread renders a given response at a time, concurrent scrapers wait for it and
+ * are served the freshly rendered bytes.
+ */
+final class ScrapeCache {
+
+    private static final String AGE = "keycloak_metrics_scrape_cache_age_seconds";
+    private static final String AGE_HELP = "Seconds since the metrics exposition was last rendered";
+
+    private final long ttlNanos;
+    private final Histogram renderDuration;
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private volatile long lastRender;
+    private volatile boolean everRendered;
+
+    ScrapeCache(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+
+        renderDuration = Histogram.build()
+            .name("keycloak_metrics_scrape_render_seconds")
+            .help("Time spent rendering the metrics exposition")
+            .register();
+
+        new Age().register();
+    }
+
+    /**
+     * Render the response with the given key, unless a rendered response younger than the TTL is available
+     *
+     * @param key      Identifies the kind of response, e.g. its content type
+     * @param renderer Writes the response when it has to be rendered
+     * @return The rendered response
+     * @throws IOException when rendering fails
+     */
+    byte[] get(String key, Renderer renderer) throws IOException {
+        final Slot slot = slots.computeIfAbsent(key, k -> new Slot());
+        Rendered rendered = slot.rendered;
+        if (rendered != null && System.nanoTime() - rendered.time < ttlNanos) {
+            return rendered.body;
+        }
+        synchronized (slot) {
+            rendered = slot.rendered;
+            if (rendered != null && System.nanoTime() - rendered.time < ttlNanos) {
+                // rendered by another scraper while we were waiting
+                return rendered.body;
+            }
+            final ByteArrayOutputStream body = new ByteArrayOutputStream(rendered != null ? rendered.body.length : 8192);
+            final Histogram.Timer timer = renderDuration.startTimer();
+            try {
+                renderer.render(body);
+            } finally {
+                timer.observeDuration();
+            }
+            final long now = System.nanoTime();
+            slot.rendered = new Rendered(body.toByteArray(), now);
+            lastRender = now;
+            everRendered = true;
+            return slot.rendered.body;
+        }
+    }
+
+    /**
+     * Age of the last rendered response, without a sample until the first render
+     */
+    private final class Age extends Collector implements Collector.Describable {
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            final List<MetricFamilySamples.Sample> samples = everRendered
+                ? Collections.singletonList(new MetricFamilySamples.Sample(AGE, Collections.emptyList(), Collections.emptyList(),
+                (System.nanoTime() - lastRender) / 1e9))
+                : Collections.emptyList();
+            return Collections.singletonList(new MetricFamilySamples(AGE, Type.GAUGE, AGE_HELP, samples));
+        }
+
+        @Override
+        public List<MetricFamilySamples> describe() {
+            return Collections.singletonList(new MetricFamilySamples(AGE, Type.GAUGE, AGE_HELP, Collections.emptyList()));
+        }
+    }
+
+    @FunctionalInterface
+    interface Renderer {
+        void render(OutputStream stream) throws IOException;
+    }
+
+    private static final class Slot {
+        private volatile Rendered rendered;
+    }
+
+    private static final class Rendered {
+        private final byte[] body;
+        private final long time;
+
+        private Rendered(byte[] body, long time) {
+            this.body = body;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.client.Counter;
+import io.prometheus.client.exemplars.Exemplar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Index of the series of the collectors owned by the exporter, used to export them without
+ * going through {@link io.prometheus.client.CollectorRegistry}.
+ * <p>
+ * Series are added to the index when they are created, which happens once per tuple of label values
+ * thanks to {@link ChildCache}. At that point the name and labels of each of their samples are encoded
+ * for the {@link ExpositionWriter}, so that a scrape only has to format their values.
+ * <p>
+ * Series of collectors whose first label is the realm are also indexed by realm, so that the metrics
+ * of a single realm can be exported without going through the series of all the other realms.
+ */
+final class SeriesIndex {
+
+    private static final String REALM_LABEL = "realm";
+    // read once, as the Prometheus client does, which does not expose its setting
+    static final boolean CREATED_SERIES = !Settings.getBoolean("PROMETHEUS_DISABLE_CREATED_SERIES");
+    // suffixes of the sample names of a family, see MetricFamilySamples#getNames
+    private static final String[] SAMPLE_SUFFIXES = {"", "_total", "_created", "_bucket", "_count", "_sum", "_gcount", "_gsum"};
+
+    private final List<Family> families = new CopyOnWriteArrayList<>();
+    private final Set<String> sampleNames = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, ConcurrentMap<Family, Map<List<String>, Series>>> realms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Family> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Track the children of a counter
+     *
+     * @param counter    Counter to track
+     * @param labelNames Label names of the counter
+     * @return Factory of the series of the counter, adding them to the index
+     */
+    Function<String[], MetricsBackend.Counter> track(Counter counter, String... labelNames) {
+        final MetricFamilySamples description = counter.describe().get(0);
+        final Family family = new Family(description.name, description.help, Type.COUNTER, labelNames);
+        counters.put(family.name, add(family));
+        return labelValues -> {
+            final CounterSeries series = new CounterSeries(family, labelValues.clone(), counter.labels(labelValues));
+            add(family, series);
+            return series;
+        };
+    }
+
+    /**
+     * Label names of a tracked counter, e.g. to check those of a restored series
+     *
+     * @param name Name of the counter family, without the _total suffix
+     * @return The label names, null if no counter of that name is tracked
+     */
+    List<String> counterLabelNames(String name) {
+        final Family family = counters.get(name);
+        return family != null ? family.labelNames : null;
+    }
+
+    /**
+     * Track the children of a histogram
+     *
+     * @param histogram  Histogram to track
+     * @param labelNames Label names of the histogram
+     * @return Factory of the children of the histogram, adding them to the index
+     */
+    Function<String[], LatencyHistogram.Child> track(LatencyHistogram histogram, String... labelNames) {
+        final MetricFamilySamples description = histogram.describe().get(0);
+        final Family family = add(new Family(description.name, description.help, Type.HISTOGRAM, labelNames));
+        final List<String> upperBoundLabels = histogram.upperBoundLabels();
+        return labelValues -> {
+            final LatencyHistogram.Child child = histogram.labels(labelValues);
+            add(family, new HistogramSeries(family, labelValues.clone(), upperBoundLabels, child));
+            return child;
+        };
+    }
+
+    private Family add(Family family) {
+        families.add(family);
+        for (String suffix : SAMPLE_SUFFIXES) {
+            sampleNames.add(family.name + suffix);
+        }
+        return family;
+    }
+
+    private void add(Family family, Series series) {
+        family.series.put(series.labelValues, series);
+        if (family.byRealm) {
+            realms.computeIfAbsent(series.labelValues.get(0), realm -> new ConcurrentHashMap<>())
+                .computeIfAbsent(family, f -> new ConcurrentHashMap<>())
+                .put(series.labelValues, series);
+        }
+    }
+
+    /**
+     * Whether a sample name belongs to one of the tracked families
+     */
+    boolean isTracked(String sampleName) {
+        return sampleNames.contains(sampleName);
+    }
+
+    /**
+     * Write all tracked families, in the order they were tracked. Families without series are left out,
+     * as the client library does when it filters the samples by name.
+     */
+    void write(ExpositionWriter writer) throws IOException {
+        for (Family family : families) {
+            if (!family.series.isEmpty()) {
+                writer.writeBytes(family.header);
+                write(writer, family, family.series.values());
+            }
+        }
+    }
+
+    /**
+     * Write the tracked families of a realm, families without series in the realm are left out
+     */
+    void write(ExpositionWriter writer, String realm) throws IOException {
+        final Map<Family, Map<List<String>, Series>> series = realms.get(realm);
+        if (series == null) {
+            return;
+        }
+        for (Family family : families) {
+            final Map<List<String>, Series> children = series.get(family);
+            if (children != null) {
+                writer.writeBytes(family.header);
+                write(writer, family, children.values());
+            }
+        }
+    }
+
+    private static void write(ExpositionWriter writer, Family family, Collection<Series> series) throws IOException {
+        for (Series s : series) {
+            s.write(writer);
+            if (CREATED_SERIES) {
+                writer.created(family.createdName, family.help, s.created);
+            }
+        }
+    }
+
+    /**
+     * Collect the samples of a realm, in the order the collectors were tracked
+     *
+     * @param realm Name of the realm
+     * @return Samples of the realm, families without series in the realm are left out
+     */
+    List<MetricFamilySamples> collect(String realm) {
+        final Map<Family, Map<List<String>, Series>> series = realms.get(realm);
+        if (series == null) {
+            return Collections.emptyList();
+        }
+        final List<MetricFamilySamples> result = new ArrayList<>();
+        for (Family family : families) {
+            final Map<List<String>, Series> children = series.get(family);
+            if (children == null) {
+                continue;
+            }
+            final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+            for (Series s : children.values()) {
+                s.collect(samples);
+            }
+            result.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+        }
+        return result;
+    }
+
+    /**
+     * Collect the current values of the counters labeled by realm, without their created samples
+     */
+    List<MetricFamilySamples> collectRealmCounters() {
+        return collectCounters(true);
+    }
+
+    /**
+     * Collect the current values of all tracked counters, without their created samples
+     */
+    List<MetricFamilySamples> collectCounters() {
+        return collectCounters(false);
+    }
+
+    private List<MetricFamilySamples> collectCounters(boolean realmOnly) {
+        final List<MetricFamilySamples> result = new ArrayList<>();
+        for (Family family : families) {
+            if (realmOnly && !family.byRealm || family.type != Type.COUNTER) {
+                continue;
+            }
+            final List<MetricFamilySamples.Sample> samples = new ArrayList<>(family.series.size());
+            for (Series s : family.series.values()) {
+                samples.add(new MetricFamilySamples.Sample(family.name + "_total", family.labelNames, s.labelValues,
+                    ((CounterSeries) s).child.get()));
+            }
+            result.add(new MetricFamilySamples(family.name, Type.COUNTER, family.help, samples));
+        }
+        return result;
+    }
+
+    private static final class Family {
+        private final String name;
+        private final String createdName;
+        private final String help;
+        private final Type type;
+        private final List<String> labelNames;
+        private final boolean byRealm;
+        private final byte[] header;
+        private final Map<List<String>, Series> series = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, Type type, String... labelNames) {
+            this.name = name;
+            this.createdName = name + "_created";
+            this.help = help;
+            this.type = type;
+            this.labelNames = Collections.unmodifiableList(Arrays.asList(labelNames.clone()));
+            this.byRealm = labelNames.length > 0 && REALM_LABEL.equals(labelNames[0]);
+            this.header = ExpositionWriter.header(type == Type.COUNTER ? name + "_total" : name, help, type);
+        }
+    }
+
+    private abstract static class Series {
+        final Family family;
+        final List<String> labelValues;
+        final byte[] created;
+
+        Series(Family family, String[] labelValues, long created) {
+            this.family = family;
+            this.labelValues = Collections.unmodifiableList(Arrays.asList(labelValues));
+            this.created = ExpositionWriter.line(family.createdName, family.labelNames, this.labelValues, created / 1000.0);
+        }
+
+        abstract void write(ExpositionWriter writer) throws IOException;
+
+        abstract void collect(List<MetricFamilySamples.Sample> samples);
+
+        void collectCreated(List<MetricFamilySamples.Sample> samples, long created) {
+            if (CREATED_SERIES) {
+                samples.add(new MetricFamilySamples.Sample(family.createdName, family.labelNames, labelValues, created / 1000.0));
+            }
+        }
+    }
+
+    private static final class CounterSeries extends Series implements MetricsBackend.Counter {
+        private final Counter.Child child;
+        private final byte[] prefix;
+        // also kept by the child, which does not expose it to the scrapes of a realm
+        private volatile Exemplar exemplar;
+
+        private CounterSeries(Family family, String[] labelValues, Counter.Child child) {
+            super(family, labelValues, child.created());
+            this.child = child;
+            this.prefix = ExpositionWriter.prefix(family.name + "_total", family.labelNames, this.labelValues);
+        }
+
+        @Override
+        public void inc(String[] exemplar) {
+            if (exemplar != null) {
+                child.incWithExemplar(exemplar);
+                this.exemplar = new Exemplar(1, System.currentTimeMillis(), exemplar);
+            } else {
+                child.inc();
+            }
+        }
+
+        @Override
+        public void inc(double amount) {
+            child.inc(amount);
+        }
+
+        @Override
+        void write(ExpositionWriter writer) throws IOException {
+            writer.writeBytes(prefix);
+            writer.writeDouble(child.get());
+            writer.writeByte('\n');
+        }
+
+        @Override
+        void collect(List<MetricFamilySamples.Sample> samples) {
+            samples.add(new MetricFamilySamples.Sample(family.name + "_total", family.labelNames, labelValues, child.get(),
+                exemplar));
+            collectCreated(samples, child.created());
+        }
+    }
+
+    private static final class HistogramSeries extends Series {
+        private final LatencyHistogram.Child child;
+        private final List<String> upperBoundLabels;
+        private final byte[][] bucketPrefixes;
+        private final byte[] countPrefix;
+        private final byte[] sumPrefix;
+
+        private HistogramSeries(Family family, String[] labelValues, List<String> upperBoundLabels, LatencyHistogram.Child child) {
+            super(family, labelValues, child.created());
+            this.child = child;
+            this.upperBoundLabels = upperBoundLabels;
+            this.bucketPrefixes = new byte[upperBoundLabels.size()][];
+            for (int i = 0; i < bucketPrefixes.length; i++) {
+                bucketPrefixes[i] = ExpositionWriter.prefix(family.name + "_bucket",
+                    bucketLabels(family.labelNames, "le"), bucketLabels(this.labelValues, upperBoundLabels.get(i)));
+            }
+            this.countPrefix = ExpositionWriter.prefix(family.name + "_count", family.labelNames, this.labelValues);
+            this.sumPrefix = ExpositionWriter.prefix(family.name + "_sum", family.labelNames, this.labelValues);
+        }
+
+        private static List<String> bucketLabels(List<String> labels, String bucketLabel) {
+            final List<String> result = new ArrayList<>(labels);
+            result.add(bucketLabel);
+            return result;
+        }
+
+        @Override
+        void write(ExpositionWriter writer) throws IOException {
+            long count = 0;
+            for (int i = 0; i < bucketPrefixes.length; i++) {
+                count += child.count(i);
+                writer.writeBytes(bucketPrefixes[i]);
+                writer.writeDouble(count);
+                writer.writeByte('\n');
+            }
+            writer.writeBytes(countPrefix);
+            writer.writeDouble(count);
+            writer.writeByte('\n');
+            writer.writeBytes(sumPrefix);
+            writer.writeDouble(child.sum());
+            writer.writeByte('\n');
+        }
+
+        @Override
+        void collect(List<MetricFamilySamples.Sample> samples) {
+            final List<String> bucketLabelNames = bucketLabels(family.labelNames, "le");
+            long count = 0;
+            for (int i = 0; i < bucketPrefixes.length; i++) {
+                count += child.count(i);
+                samples.add(new MetricFamilySamples.Sample(family.name + "_bucket", bucketLabelNames,
+                    bucketLabels(labelValues, upperBoundLabels.get(i)), count, child.exemplar(i)));
+            }
+            samples.add(new MetricFamilySamples.Sample(family.name + "_count", family.labelNames, labelValues, count));
+            samples.add(new MetricFamilySamples.Sample(family.name + "_sum", family.labelNames, labelValues, child.sum()));
+            collectCreated(samples, child.created());
+        }
+    }
+}
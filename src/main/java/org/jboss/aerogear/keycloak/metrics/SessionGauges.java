@@ -0,0 +1,162 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Gauges of the active and offline user sessions per realm and client.
+ * <p>
+ * Counting sessions queries the session store, which is too expensive to do on every scrape. A daemon thread
+ * samples the counts periodically in its own Keycloak session and transaction, scrapes only read the last sample.
+ */
+final class SessionGauges extends Collector implements Collector.Describable {
+
+    private final static Logger logger = Logger.getLogger(SessionGauges.class);
+
+    private static final List<String> LABEL_NAMES = Arrays.asList("realm", "client_id");
+    private static final String ACTIVE = "keycloak_active_sessions";
+    private static final String ACTIVE_HELP = "Number of active user sessions with a session of the client";
+    private static final String OFFLINE = "keycloak_offline_sessions";
+    private static final String OFFLINE_HELP = "Number of offline user sessions with a session of the client";
+
+    /**
+     * Session counts of a client
+     */
+    static final class Count {
+        final String realm;
+        final String clientId;
+        final long active;
+        final long offline;
+
+        Count(String realm, String clientId, long active, long offline) {
+            this.realm = realm;
+            this.clientId = clientId;
+            this.active = active;
+            this.offline = offline;
+        }
+    }
+
+    private final Supplier<List<Count>> sampler;
+    private volatile List<Count> counts = Collections.emptyList();
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param sampler Counts the sessions of the clients
+     */
+    SessionGauges(Supplier<List<Count>> sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Sample the session counts now and then periodically
+     */
+    synchronized void start(long intervalMillis) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "keycloak-metrics-sessions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sampleSafely, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.infof("Session counts are sampled every %d ms.", intervalMillis);
+    }
+
+    private void sampleSafely() {
+        try {
+            sample();
+        } catch (RuntimeException e) {
+            // keep the last sample, the store may be back on the next run
+            logger.error("Unable to count the sessions", e);
+        }
+    }
+
+    void sample() {
+        counts = List.copyOf(sampler.get());
+    }
+
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<Count> sample = counts;
+        final List<MetricFamilySamples.Sample> active = new ArrayList<>(sample.size());
+        final List<MetricFamilySamples.Sample> offline = new ArrayList<>(sample.size());
+        for (Count count : sample) {
+            final List<String> labelValues = Arrays.asList(count.realm, count.clientId);
+            active.add(new MetricFamilySamples.Sample(ACTIVE, LABEL_NAMES, labelValues, count.active));
+            offline.add(new MetricFamilySamples.Sample(OFFLINE, LABEL_NAMES, labelValues, count.offline));
+        }
+        return Arrays.asList(
+            new MetricFamilySamples(ACTIVE, Type.GAUGE, ACTIVE_HELP, active),
+            new MetricFamilySamples(OFFLINE, Type.GAUGE, OFFLINE_HELP, offline));
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Arrays.asList(
+            new MetricFamilySamples(ACTIVE, Type.GAUGE, ACTIVE_HELP, Collections.emptyList()),
+            new MetricFamilySamples(OFFLINE, Type.GAUGE, OFFLINE_HELP, Collections.emptyList()));
+    }
+
+    /**
+     * Count the sessions of the clients of the given realms, in a transaction of its own
+     *
+     * @param factory Factory of the Keycloak sessions
+     * @param realms  Names of the realms to count, null for all realms
+     */
+    static List<Count> count(KeycloakSessionFactory factory, Set<String> realms) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            final List<Count> result = new ArrayList<>();
+            realms(session, realms).forEach(realm -> count(session, realm, result));
+            return result;
+        });
+    }
+
+    private static Stream<RealmModel> realms(KeycloakSession session, Set<String> names) {
+        if (names == null) {
+            return session.realms().getRealmsStream();
+        }
+        return names.stream().map(name -> session.realms().getRealmByName(name)).filter(Objects::nonNull);
+    }
+
+    private static void count(KeycloakSession session, RealmModel realm, List<Count> result) {
+        // both by client UUID, one query each instead of one per client
+        final Map<String, Long> active = session.sessions().getActiveClientSessionStats(realm, false);
+        final Map<String, Long> offline = session.sessions().getActiveClientSessionStats(realm, true);
+        final Set<String> clients = new HashSet<>(active.keySet());
+        clients.addAll(offline.keySet());
+        for (String id : clients) {
+            final ClientModel client = realm.getClientById(id);
+            if (client != null) {
+                result.add(new Count(realm.getName(), client.getClientId(),
+                    active.getOrDefault(id, 0L), offline.getOrDefault(id, 0L)));
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.Locale;
+
+/**
+ * Access to the settings of the SPI. Settings are read from environment variables and,
+ * if the environment variable is not set, from the JVM system property of the same name,
+ * e.g. to run benchmarks in forked JVMs with different settings.
+ */
+final class Settings {
+
+    private Settings() {
+    }
+
+    static String get(String name) {
+        final String value = System.getenv(name);
+        return value != null ? value : System.getProperty(name);
+    }
+
+    static String get(String name, String defaultValue) {
+        final String value = get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Whether a flag is set to true, 1 or t, ignoring case, the values the Prometheus client library takes for its own
+     * flags
+     */
+    static boolean getBoolean(String name) {
+        final String value = get(name);
+        if (value == null) {
+            return false;
+        }
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "true":
+            case "1":
+            case "t":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static int getInt(String name, int defaultValue) {
+        final String value = get(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    static long getLong(String name, long defaultValue) {
+        final String value = get(name);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    static double getDouble(String name, double defaultValue) {
+        final String value = get(name);
+        return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+}
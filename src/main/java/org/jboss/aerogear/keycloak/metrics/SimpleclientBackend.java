@@ -0,0 +1,57 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Records to the Prometheus client library, in its default registry.
+ * <p>
+ * The collectors are tracked by the {@link SeriesIndex} of the exporter before they are registered, so that
+ * scrapes write their series from the index, and are the only ones with exemplars, realm scoped views, cluster
+ * totals and snapshots.
+ */
+final class SimpleclientBackend implements MetricsBackend {
+
+    private final SeriesIndex seriesIndex;
+    private final Map<String, io.prometheus.client.Counter> counters = new ConcurrentHashMap<>();
+
+    SimpleclientBackend(SeriesIndex seriesIndex) {
+        this.seriesIndex = seriesIndex;
+    }
+
+    @Override
+    public Function<String[], Counter> counter(String name, String help, String... labelNames) {
+        // tracked before it is registered, so that no scrape writes it through the registry as well
+        final io.prometheus.client.Counter counter = io.prometheus.client.Counter.build().name(name).help(help).labelNames(labelNames).create();
+        final Function<String[], Counter> children = seriesIndex.track(counter, labelNames);
+        counter.register();
+        counters.put(name, counter);
+        return children;
+    }
+
+    @Override
+    public Function<String[], Histogram> histogram(String name, String help, double[] upperBounds, String... labelNames) {
+        final LatencyHistogram histogram = LatencyHistogram.build().name(name).help(help).labelNames(labelNames)
+            .buckets(upperBounds).create();
+        final Function<String[], LatencyHistogram.Child> children = seriesIndex.track(histogram, labelNames);
+        histogram.register();
+        return labelValues -> {
+            final LatencyHistogram.Child child = children.apply(labelValues);
+            return (amount, weight, exemplar) -> {
+                if (exemplar != null) {
+                    child.observeWithExemplar(amount, weight, exemplar);
+                } else {
+                    child.observe(amount, weight);
+                }
+            };
+        };
+    }
+
+    /**
+     * The counter of the given name, e.g. to compare with updating it through the client library
+     */
+    io.prometheus.client.Counter collector(String name) {
+        return counters.get(name);
+    }
+}
@@ -0,0 +1,148 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Most frequent values of a stream in a fixed number of counters, with the Space-Saving algorithm.
+ * <p>
+ * A value that has a counter increments it. Otherwise it takes over the counter with the smallest count, which it
+ * increments, and records that count as its maximum overestimation. Every value that occurs more often than the
+ * number of values divided by the number of counters is guaranteed to have a counter. The counters are kept in a
+ * min-heap, so an update takes logarithmic time and the memory never grows beyond the capacity.
+ * <p>
+ * Not thread safe.
+ */
+final class SpaceSaving {
+
+    /**
+     * Estimated count of a value, at most {@code error} more than its actual count
+     */
+    static final class Entry {
+        final String value;
+        final long count;
+        final long error;
+
+        Entry(String value, long count, long error) {
+            this.value = value;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    private final String[] values;
+    private final long[] counts;
+    private final long[] errors;
+    // slots ordered as a min-heap by count, and the position of each slot in the heap
+    private final int[] heap;
+    private final int[] positions;
+    private final Map<String, Integer> slots;
+    private int size;
+
+    /**
+     * @param capacity Number of counters
+     */
+    SpaceSaving(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The number of counters needs to be positive");
+        }
+        values = new String[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        positions = new int[capacity];
+        // sized so that it is never resized
+        slots = new HashMap<>(capacity * 4 / 3 + 1);
+    }
+
+    /**
+     * Count an occurrence of a value
+     */
+    void offer(String value) {
+        final Integer slot = slots.get(value);
+        if (slot != null) {
+            counts[slot]++;
+            siftDown(positions[slot]);
+        } else if (size < values.length) {
+            final int free = size++;
+            values[free] = value;
+            counts[free] = 1;
+            errors[free] = 0;
+            heap[free] = free;
+            positions[free] = free;
+            slots.put(value, free);
+            siftUp(free);
+        } else {
+            final int min = heap[0];
+            slots.remove(values[min]);
+            values[min] = value;
+            errors[min] = counts[min];
+            counts[min]++;
+            slots.put(value, min);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * The values with the highest counts, in decreasing order of their counts
+     *
+     * @param k Largest number of values
+     */
+    List<Entry> top(int k) {
+        final List<Entry> entries = new ArrayList<>(size);
+        for (int slot = 0; slot < size; slot++) {
+            entries.add(new Entry(values[slot], counts[slot], errors[slot]));
+        }
+        entries.sort((a, b) -> Long.compare(b.count, a.count));
+        return entries.size() > k ? new ArrayList<>(entries.subList(0, k)) : entries;
+    }
+
+    /**
+     * Forget all values, keeping the counters
+     */
+    void clear() {
+        Arrays.fill(values, 0, size, null);
+        slots.clear();
+        size = 0;
+    }
+
+    private void siftUp(int position) {
+        final int slot = heap[position];
+        while (position > 0) {
+            final int parent = (position - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[slot]) {
+                break;
+            }
+            move(heap[parent], position);
+            position = parent;
+        }
+        move(slot, position);
+    }
+
+    private void siftDown(int position) {
+        final int slot = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[child]] >= counts[slot]) {
+                break;
+            }
+            move(heap[child], position);
+            position = child;
+        }
+        move(slot, position);
+    }
+
+    private void move(int slot, int position) {
+        heap[position] = slot;
+        positions[slot] = position;
+    }
+}
@@ -0,0 +1,185 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps matched request URIs to the templates used as the {@code uri} label.
+ * <p>
+ * The known Keycloak routes are compiled once into a trie of path segments, where a segment is either a literal
+ * (e.g. {@code realms}) or a placeholder (e.g. {@code {realm}}). A URI is templated in a single pass over its
+ * segments: segments matching a placeholder are replaced, everything else is kept as is. Once a URI leaves the
+ * known routes, its remaining segments are copied verbatim.
+ * <p>
+ * In detailed mode URIs are kept as they are, except for UUIDs being replaced by {@value #ID} if they are hidden.
+ * Templates are cached per URI, up to a maximum number of URIs beyond which the oldest ones are evicted, so that URIs
+ * seen once, e.g. by a scanner, do not keep the templates of later URIs out of the cache.
+ */
+final class UriTemplates {
+
+    static final String REALM = "{realm}";
+    static final String ID = "{id}";
+
+    private static final int UUID_LENGTH = 36;
+
+    private final boolean detailed;
+    private final boolean uuidHidden;
+    private final BoundedCache<String, String> cache;
+    private final Node root = new Node(null);
+
+    UriTemplates(boolean detailed, boolean uuidHidden, int cacheSize) {
+        this.detailed = detailed;
+        this.uuidHidden = uuidHidden;
+        this.cache = new BoundedCache<>(cacheSize);
+
+        route("realms", REALM);
+        route("admin", "realms", REALM, "clients", ID);
+        route("admin", "realms", REALM, "users", ID);
+    }
+
+    /**
+     * Add a known route, given as its path segments
+     */
+    private void route(String... segments) {
+        Node node = root;
+        for (String segment : segments) {
+            node = segment.startsWith("{") ? node.placeholder(segment) : node.literal(segment);
+        }
+    }
+
+    /**
+     * Retrieve the template of a matched URI
+     *
+     * @param uri The matched URI, without leading slash
+     * @return The template
+     */
+    String template(String uri) {
+        if (detailed && !uuidHidden) {
+            return uri;
+        }
+        final String template = cache.get(uri);
+        return template != null ? template : cache.load(uri, detailed ? UriTemplates::hideUuids : this::consolidate);
+    }
+
+    private String consolidate(String uri) {
+        final int length = uri.length();
+        StringBuilder sb = null;
+        Node node = root;
+        int start = 0;
+        while (node != null && start < length) {
+            int end = uri.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            Node next = node.findLiteral(uri, start, end);
+            if (next == null && node.placeholder != null && end > start) {
+                next = node.placeholder;
+                if (sb == null) {
+                    sb = new StringBuilder(length);
+                    sb.append(uri, 0, start);
+                }
+                sb.append(next.name);
+            } else if (sb != null) {
+                sb.append(uri, start, end);
+            }
+            if (sb != null && end < length) {
+                sb.append('/');
+            }
+            node = next;
+            start = end + 1;
+        }
+        if (sb == null) {
+            return uri;
+        }
+        if (start < length) {
+            // the URI left the known routes, keep the rest as it is
+            sb.append(uri, start, length);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replace every UUID, in the sense of {@code \w{8}-\w{4}-\w{4}-\w{4}-\w{12}}, by {@value #ID}
+     */
+    static String hideUuids(String uri) {
+        final int length = uri.length();
+        StringBuilder sb = null;
+        int copied = 0;
+        int i = 0;
+        while (i + UUID_LENGTH <= length) {
+            if (isUuidAt(uri, i)) {
+                if (sb == null) {
+                    sb = new StringBuilder(length);
+                }
+                sb.append(uri, copied, i).append(ID);
+                i += UUID_LENGTH;
+                copied = i;
+            } else {
+                i++;
+            }
+        }
+        if (sb == null) {
+            return uri;
+        }
+        return sb.append(uri, copied, length).toString();
+    }
+
+    private static boolean isUuidAt(String uri, int offset) {
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            final char c = uri.charAt(offset + i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!isWordChar(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static final class Node {
+        private final String name;
+        private final List<Node> literals = new ArrayList<>();
+        private Node placeholder;
+
+        private Node(String name) {
+            this.name = name;
+        }
+
+        private Node literal(String segment) {
+            for (Node literal : literals) {
+                if (literal.name.equals(segment)) {
+                    return literal;
+                }
+            }
+            final Node literal = new Node(segment);
+            literals.add(literal);
+            return literal;
+        }
+
+        private Node placeholder(String segment) {
+            if (placeholder == null) {
+                placeholder = new Node(segment);
+            }
+            return placeholder;
+        }
+
+        /**
+         * Find the literal child equal to the segment of the URI between start and end, without extracting the segment
+         */
+        private Node findLiteral(String uri, int start, int end) {
+            for (int i = 0; i < literals.size(); i++) {
+                final Node literal = literals.get(i);
+                if (literal.name.length() == end - start && uri.startsWith(literal.name, start)) {
+                    return literal;
+                }
+            }
+            return null;
+        }
+    }
+}
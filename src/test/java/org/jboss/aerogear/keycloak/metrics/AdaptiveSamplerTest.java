@@ -0,0 +1,69 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdaptiveSamplerTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void shouldObserveEveryRequestBelowTheTarget() {
+        final AdaptiveSampler sampler = new AdaptiveSampler(100, clock::get);
+        for (int second = 0; second < 5; second++) {
+            for (int i = 0; i < 50; i++) {
+                Assert.assertEquals(1, sampler.sample());
+            }
+            clock.addAndGet(SECOND);
+        }
+        Assert.assertEquals(1.0, sampler.rate(), 0);
+    }
+
+    @Test
+    public void shouldWeightTheSampledRequestsAboveTheTarget() {
+        final AdaptiveSampler sampler = new AdaptiveSampler(100, clock::get);
+        // the first second is not sampled, the rate is adapted at its end
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(1, sampler.sample());
+        }
+        clock.addAndGet(SECOND);
+
+        long sampled = 0;
+        long weights = 0;
+        for (int i = 0; i < 100_000; i++) {
+            final long weight = sampler.sample();
+            Assert.assertTrue(weight == 0 || weight == 10);
+            sampled += weight > 0 ? 1 : 0;
+            weights += weight;
+        }
+        Assert.assertEquals(0.1, sampler.rate(), 0);
+        Assert.assertEquals(10_000, sampled, 500);
+        // unbiased, the weights add up to about the number of requests
+        Assert.assertEquals(100_000, weights, 5000);
+    }
+
+    @Test
+    public void shouldAdaptToTheSmoothedRequestRate() {
+        final AdaptiveSampler sampler = new AdaptiveSampler(100, clock::get);
+        for (int i = 0; i < 1000; i++) {
+            sampler.sample();
+        }
+        clock.addAndGet(SECOND);
+        sampler.sample();
+        Assert.assertEquals(0.1, sampler.rate(), 0);
+
+        // a single request in the next second, the smoothed rate about halves
+        clock.addAndGet(SECOND);
+        sampler.sample();
+        Assert.assertEquals(1.0 / 6, sampler.rate(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectANonPositiveTarget() {
+        new AdaptiveSampler(0, clock::get);
+    }
+}
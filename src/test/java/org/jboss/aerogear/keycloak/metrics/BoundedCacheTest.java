@@ -0,0 +1,48 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void shouldEvictTheOldestEntriesOnceFull() {
+        final BoundedCache<String, String> cache = new BoundedCache<>(2);
+        cache.load("a", String::toUpperCase);
+        cache.load("b", String::toUpperCase);
+        cache.load("c", String::toUpperCase);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals("B", cache.get("b"));
+        Assert.assertEquals("C", cache.get("c"));
+    }
+
+    @Test
+    public void shouldNotCacheNullsOrAnythingWithoutSize() {
+        final BoundedCache<String, String> cache = new BoundedCache<>(2);
+        Assert.assertNull(cache.load("a", key -> null));
+        Assert.assertEquals(0, cache.size());
+
+        final BoundedCache<String, String> disabled = new BoundedCache<>(0);
+        Assert.assertEquals("A", disabled.load("a", String::toUpperCase));
+        Assert.assertNull(disabled.get("a"));
+    }
+
+    @Test
+    public void shouldNotKeepAValueLoadedWhileInvalidated() {
+        final BoundedCache<String, String> cache = new BoundedCache<>(2);
+        final String loaded = cache.load("realm-id", key -> {
+            // renamed while the old name is being loaded
+            cache.invalidate(key);
+            return "old-name";
+        });
+        Assert.assertEquals("old-name", loaded);
+        Assert.assertNull(cache.get("realm-id"));
+
+        cache.load("realm-id", key -> "new-name");
+        Assert.assertEquals("new-name", cache.get("realm-id"));
+        cache.invalidate("realm-id");
+        Assert.assertNull(cache.get("realm-id"));
+    }
+}
@@ -0,0 +1,65 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Counter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ChildCacheTest {
+
+    private final List<List<String>> created = new ArrayList<>();
+
+    private List<String> create(String[] labelValues) {
+        final List<String> child = Arrays.asList(labelValues);
+        created.add(child);
+        return child;
+    }
+
+    @Test
+    public void shouldCreateEachChildOnce() {
+        final ChildCache<List<String>> cache = new ChildCache<>(this::create);
+        final List<String> child = cache.get("myrealm", "keycloak", "THE_CLIENT_ID");
+        Assert.assertSame(child, cache.get("myrealm", "keycloak", "THE_CLIENT_ID"));
+        Assert.assertSame(child, cache.get(Arrays.asList("myrealm", "keycloak", "THE_CLIENT_ID")));
+        Assert.assertEquals(Arrays.asList("myrealm", "keycloak", "THE_CLIENT_ID"), child);
+        Assert.assertEquals(1, created.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRefuseNullLabelValues() {
+        new ChildCache<>(this::create).get("myrealm", null);
+    }
+
+    @Test
+    public void shouldCollapseTheLimitedLabelsBeyondTheNumberOfChildren() {
+        final Counter overflows = Counter.build().name("test_overflows").help("Overflows").create();
+        final ChildCache<List<String>> cache = new ChildCache<>(this::create, 1, overflows.labels(),
+            null, new LabelLimiter(0, null));
+        cache.get("myrealm", "first");
+        Assert.assertEquals(Arrays.asList("myrealm", LabelLimiter.OVERFLOW), cache.get("myrealm", "second"));
+        Assert.assertEquals(1, overflows.get(), 0);
+    }
+
+    @Test
+    public void shouldCountEachCollapsedTupleOnce() {
+        final Counter overflows = Counter.build().name("test_overflows").help("Overflows").create();
+        final ChildCache<List<String>> cache = new ChildCache<>(this::create, 2, overflows.labels(),
+            null, new LabelLimiter(0, null));
+        cache.get("myrealm", "first");
+        cache.get("myrealm", "second");
+        final List<String> overflow = cache.get("myrealm", "third");
+        Assert.assertSame(overflow, cache.get("myrealm", "third"));
+        Assert.assertSame(overflow, cache.get("myrealm", "fourth"));
+        cache.get("myrealm", "fourth");
+        Assert.assertEquals(2, overflows.get(), 0);
+
+        // beyond as many collapsed tuples as children, they are counted on every lookup
+        Assert.assertSame(overflow, cache.get("myrealm", "fifth"));
+        cache.get("myrealm", "fifth");
+        Assert.assertEquals(4, overflows.get(), 0);
+        Assert.assertEquals(3, created.size());
+    }
+}
@@ -0,0 +1,241 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ClusterViewTest {
+
+    private static final List<String> LABELS = List.of("realm", "client_id");
+    private static final AtomicInteger CHANNELS = new AtomicInteger();
+
+    private final String channel = "test-" + CHANNELS.incrementAndGet();
+    private final List<ClusterView> views = new ArrayList<>();
+
+    @After
+    public void shutdown() {
+        views.forEach(ClusterView::shutdown);
+    }
+
+    @Test
+    public void shouldSumTheCountersOfAllNodes() {
+        final Map<List<String>, Double> first = new HashMap<>();
+        final Map<List<String>, Double> second = new HashMap<>();
+        final ClusterView firstView = view("first", first, 60000);
+        final ClusterView secondView = view("second", second, 60000);
+
+        first.put(List.of("myrealm", "app"), 3.0);
+        second.put(List.of("myrealm", "app"), 4.0);
+        second.put(List.of("other", "app"), 1.0);
+        firstView.publish();
+        secondView.publish();
+
+        assertEquals(7.0, value(firstView, "myrealm", "app"), 0);
+        assertEquals(1.0, value(firstView, "other", "app"), 0);
+        assertEquals(7.0, value(secondView, "myrealm", "app"), 0);
+        assertEquals(1, firstView.nodes());
+    }
+
+    @Test
+    public void shouldOnlyPublishChangedCountersBetweenFullSnapshots() {
+        final Map<List<String>, Double> first = new HashMap<>();
+        final ClusterView firstView = view("first", first, 60000);
+        final List<ClusterSnapshot> snapshots = new ArrayList<>();
+        final LocalClusterTransport listener = new LocalClusterTransport(channel);
+        listener.subscribe(message -> {
+            try {
+                snapshots.add(ClusterSnapshot.decode(message));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        first.put(List.of("myrealm", "app"), 1.0);
+        first.put(List.of("other", "app"), 1.0);
+        firstView.publish();
+        first.put(List.of("other", "app"), 2.0);
+        firstView.publish();
+        firstView.publish();
+        listener.close();
+
+        assertEquals(3, snapshots.size());
+        assertEquals(true, snapshots.get(0).full);
+        assertEquals(2, snapshots.get(0).families.get(0).values.size());
+        assertEquals(Map.of(List.of("other", "app"), 2.0), snapshots.get(1).families.get(0).values);
+        // heartbeat
+        assertEquals(0, snapshots.get(2).families.size());
+    }
+
+    @Test
+    public void shouldKeepTheLastValuesOfAnotherNode() {
+        final Map<List<String>, Double> first = new HashMap<>();
+        final Map<List<String>, Double> second = new HashMap<>();
+        final ClusterView firstView = view("first", first, 60000);
+        final ClusterView secondView = view("second", second, 60000);
+
+        second.put(List.of("myrealm", "app"), 4.0);
+        second.put(List.of("other", "app"), 1.0);
+        secondView.publish();
+        second.put(List.of("other", "app"), 5.0);
+        secondView.publish();
+
+        assertEquals(4.0, value(firstView, "myrealm", "app"), 0);
+        assertEquals(5.0, value(firstView, "other", "app"), 0);
+    }
+
+    @Test
+    public void shouldRetainTheLastValuesOfSilentNodes() throws InterruptedException {
+        final Map<List<String>, Double> first = new HashMap<>();
+        final Map<List<String>, Double> second = new HashMap<>();
+        final ClusterView firstView = view("first", first, 200);
+        final ClusterView secondView = view("second", second, 200);
+
+        first.put(List.of("myrealm", "app"), 1.0);
+        second.put(List.of("myrealm", "app"), 4.0);
+        secondView.publish();
+        assertEquals(5.0, value(firstView, "myrealm", "app"), 0);
+
+        Thread.sleep(300);
+        assertEquals(5.0, value(firstView, "myrealm", "app"), 0);
+        assertEquals(0, firstView.nodes());
+        first.put(List.of("myrealm", "app"), 2.0);
+        assertEquals(6.0, value(firstView, "myrealm", "app"), 0);
+    }
+
+    @Test
+    public void shouldAddTheValuesOfARestartedNode() {
+        final Map<List<String>, Double> first = new HashMap<>();
+        final Map<List<String>, Double> second = new HashMap<>();
+        final ClusterView firstView = view("first", first, 60000);
+        final ClusterView secondView = view("second", second, 60000);
+
+        first.put(List.of("myrealm", "app"), 1.0);
+        second.put(List.of("myrealm", "app"), 4.0);
+        second.put(List.of("myrealm", "other"), 3.0);
+        secondView.publish();
+        secondView.publish();
+        assertEquals(5.0, value(firstView, "myrealm", "app"), 0);
+        assertEquals(3.0, value(firstView, "myrealm", "other"), 0);
+
+        // the node restarts with its counters at zero
+        secondView.shutdown();
+        final Map<List<String>, Double> restarted = new HashMap<>();
+        final ClusterView restartedView = view("second", restarted, 60000);
+        restarted.put(List.of("myrealm", "app"), 1.0);
+        restartedView.publish();
+        assertEquals(6.0, value(firstView, "myrealm", "app"), 0);
+        assertEquals(3.0, value(firstView, "myrealm", "other"), 0);
+
+        restarted.put(List.of("myrealm", "app"), 2.0);
+        restarted.put(List.of("myrealm", "other"), 1.0);
+        restartedView.publish();
+        assertEquals(7.0, value(firstView, "myrealm", "app"), 0);
+        assertEquals(4.0, value(firstView, "myrealm", "other"), 0);
+        assertEquals(1, firstView.nodes());
+    }
+
+    @Test
+    public void shouldNotAddTheRestoredValuesOfARestartedNodeAgain() {
+        final Map<List<String>, Double> first = new HashMap<>();
+        final Map<List<String>, Double> second = new HashMap<>();
+        final ClusterView firstView = view("first", first, 60000);
+        final ClusterView secondView = view("second", 42, second, 60000);
+
+        second.put(List.of("myrealm", "app"), 4.0);
+        secondView.publish();
+        second.put(List.of("myrealm", "app"), 6.0);
+        secondView.publish();
+        assertEquals(6.0, value(firstView, "myrealm", "app"), 0);
+
+        // the node crashes and restores older counts from its last snapshot, with the same epoch
+        final Map<List<String>, Double> restored = new HashMap<>();
+        final ClusterView restoredView = view("second", 42, restored, 60000);
+        restored.put(List.of("myrealm", "app"), 5.0);
+        restoredView.publish();
+        assertEquals(6.0, value(firstView, "myrealm", "app"), 0);
+
+        restored.put(List.of("myrealm", "app"), 7.0);
+        restoredView.publish();
+        assertEquals(7.0, value(firstView, "myrealm", "app"), 0);
+        assertEquals(1, firstView.nodes());
+    }
+
+    @Test
+    public void shouldMergeTheSketchesOfOtherNodesAcrossRestarts() {
+        final ClusterView firstView = view("first", new HashMap<>(), 60000);
+        final HyperLogLog users = new HyperLogLog(10);
+        users.offer("alice");
+        final ClusterView secondView = view("second", List.of(new ClusterSnapshot.Sketch(List.of("myrealm"), 7, users)));
+        secondView.publish();
+        assertEquals(1, firstView.sketches().size());
+        assertEquals(1, firstView.sketches().get(0).users.estimate());
+
+        // only full publications carry the sketches
+        users.offer("bob");
+        secondView.publish();
+        assertEquals(1, firstView.sketches().get(0).users.estimate());
+
+        // the users before the restart are kept
+        secondView.shutdown();
+        final HyperLogLog restarted = new HyperLogLog(10);
+        restarted.offer("carol");
+        view("second", List.of(new ClusterSnapshot.Sketch(List.of("myrealm"), 7, restarted))).publish();
+        final List<ClusterSnapshot.Sketch> sketches = firstView.sketches();
+        assertEquals(1, sketches.size());
+        assertEquals(List.of("myrealm"), sketches.get(0).labelValues);
+        assertEquals(7, sketches.get(0).window);
+        assertEquals(3, sketches.get(0).users.estimate());
+    }
+
+    @Test
+    public void shouldIgnoreInvalidMessages() {
+        final ClusterView firstView = view("first", new HashMap<>(), 60000);
+        new LocalClusterTransport(channel).publish(new byte[]{42, 1, 2});
+        assertEquals(0, firstView.nodes());
+        assertNull(value(firstView, "myrealm", "app"));
+    }
+
+    private ClusterView view(String node, Map<List<String>, Double> counters, long nodeTtlMillis) {
+        return view(node, ClusterSnapshot.newEpoch(), counters, nodeTtlMillis);
+    }
+
+    private ClusterView view(String node, long epoch, Map<List<String>, Double> counters, long nodeTtlMillis) {
+        final ClusterView view = new ClusterView(node, epoch, new LocalClusterTransport(channel), () -> {
+            final List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+            counters.forEach((labelValues, value) -> samples.add(new MetricFamilySamples.Sample("keycloak_logins_total", LABELS, labelValues, value)));
+            return List.of(new MetricFamilySamples("keycloak_logins", Type.COUNTER, "Total successful logins", samples));
+        }, Collections::emptyList, 0, 12, nodeTtlMillis);
+        views.add(view);
+        return view;
+    }
+
+    private ClusterView view(String node, List<ClusterSnapshot.Sketch> sketches) {
+        final ClusterView view = new ClusterView(node, new LocalClusterTransport(channel), List::of, () -> sketches, 0, 12, 60000);
+        views.add(view);
+        return view;
+    }
+
+    private static Double value(ClusterView view, String realm, String clientId) {
+        for (MetricFamilySamples family : view.collect()) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                if (sample.labelValues.equals(List.of(realm, clientId))) {
+                    assertEquals("keycloak_logins_total", sample.name);
+                    return sample.value;
+                }
+            }
+        }
+        return null;
+    }
+}
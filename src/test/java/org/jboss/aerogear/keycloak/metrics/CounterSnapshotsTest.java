@@ -0,0 +1,105 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CounterSnapshotsTest {
+
+    private static final int SLOT_BYTES = 4096;
+    private static final List<String> LABEL_NAMES = List.of("realm", "client_id");
+    private static final List<String> LABEL_VALUES = List.of("myrealm", "THE_CLIENT_ID");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicReference<Double> logins = new AtomicReference<>(0.0);
+
+    @Test
+    public void shouldRestoreTheLatestSnapshot() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("counters.bin");
+        final CounterSnapshots snapshots = new CounterSnapshots(file, SLOT_BYTES, this::counters);
+        Assert.assertNull(snapshots.restored());
+        logins.set(3.0);
+        snapshots.write();
+        logins.set(5.0);
+        snapshots.write();
+
+        final CounterSnapshots restored = new CounterSnapshots(file, SLOT_BYTES, this::counters);
+        Assert.assertEquals(5.0, restoredLogins(restored), 0);
+        Assert.assertEquals(snapshots.epoch(), restored.epoch());
+    }
+
+    @Test
+    public void shouldFallBackToThePreviousSnapshotIfTheLatestIsTorn() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("counters.bin");
+        final CounterSnapshots snapshots = new CounterSnapshots(file, SLOT_BYTES, this::counters);
+        logins.set(3.0);
+        snapshots.write();
+        logins.set(5.0);
+        snapshots.write();
+        // the second snapshot is in the first slot, after the 16 bytes of the header
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(16 + 16 + 10);
+            raf.write(0x5a);
+        }
+
+        Assert.assertEquals(3.0, restoredLogins(new CounterSnapshots(file, SLOT_BYTES, this::counters)), 0);
+    }
+
+    @Test
+    public void shouldKeepTheSnapshotWhenTheSlotsGrow() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("counters.bin");
+        logins.set(7.0);
+        new CounterSnapshots(file, SLOT_BYTES, this::counters).write();
+
+        final CounterSnapshots grown = new CounterSnapshots(file, 2 * SLOT_BYTES, this::counters);
+        Assert.assertEquals(7.0, restoredLogins(grown), 0);
+        Assert.assertEquals(16 + 4 * SLOT_BYTES, Files.size(file));
+    }
+
+    @Test
+    public void shouldNotWriteSnapshotsLargerThanASlot() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("counters.bin");
+        logins.set(7.0);
+        new CounterSnapshots(file, 32, this::counters).write();
+
+        Assert.assertNull(new CounterSnapshots(file, 32, this::counters).restored());
+    }
+
+    @Test
+    public void shouldIgnoreAnInvalidFile() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("counters.bin");
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17});
+
+        final CounterSnapshots snapshots = new CounterSnapshots(file, SLOT_BYTES, this::counters);
+        Assert.assertNull(snapshots.restored());
+        logins.set(2.0);
+        snapshots.write();
+        Assert.assertEquals(2.0, restoredLogins(new CounterSnapshots(file, SLOT_BYTES, this::counters)), 0);
+    }
+
+    private List<MetricFamilySamples> counters() {
+        return Collections.singletonList(new MetricFamilySamples("keycloak_logins", Collector.Type.COUNTER, "Total successful logins",
+            Collections.singletonList(new MetricFamilySamples.Sample("keycloak_logins_total", LABEL_NAMES, LABEL_VALUES, logins.get()))));
+    }
+
+    private static double restoredLogins(CounterSnapshots snapshots) {
+        Assert.assertNotNull(snapshots.restored());
+        final ClusterSnapshot.Family family = snapshots.restored().families.get(0);
+        Assert.assertEquals("keycloak_logins", family.name);
+        Assert.assertEquals(LABEL_NAMES, family.labelNames);
+        return family.values.get(LABEL_VALUES);
+    }
+}
@@ -0,0 +1,135 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DistinctUsersTest {
+
+    private static final long WINDOW_MILLIS = 3_600_000;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void shouldCountTheUsersOfTheCurrentAndPreviousWindow() {
+        final DistinctUsers distinctUsers = new DistinctUsers(14, 10, 0, WINDOW_MILLIS, clock::get);
+        distinctUsers.record("myrealm", "THE_CLIENT_ID", "alice");
+        distinctUsers.record("myrealm", "THE_CLIENT_ID", "alice");
+        distinctUsers.record("myrealm", "OTHER_CLIENT_ID", "bob");
+        Assert.assertEquals(Map.of(Arrays.asList("myrealm", "current"), 2.0), samples(distinctUsers, DistinctUsers.USERS));
+
+        clock.addAndGet(WINDOW_MILLIS);
+        distinctUsers.record("myrealm", "THE_CLIENT_ID", "alice");
+        distinctUsers.record("otherrealm", "THE_CLIENT_ID", "carol");
+        Assert.assertEquals(Map.of(
+            Arrays.asList("myrealm", "current"), 1.0,
+            Arrays.asList("myrealm", "previous"), 2.0,
+            Arrays.asList("otherrealm", "current"), 1.0), samples(distinctUsers, DistinctUsers.USERS));
+
+        // a window without events
+        clock.addAndGet(2 * WINDOW_MILLIS);
+        Assert.assertEquals(Map.of(
+            Arrays.asList("myrealm", "current"), 0.0,
+            Arrays.asList("otherrealm", "current"), 0.0), samples(distinctUsers, DistinctUsers.USERS));
+    }
+
+    @Test
+    public void shouldCountTheUsersOfALimitedNumberOfClients() {
+        final DistinctUsers distinctUsers = new DistinctUsers(14, 10, 2, WINDOW_MILLIS, clock::get);
+        distinctUsers.record("myrealm", "THE_CLIENT_ID", "alice");
+        distinctUsers.record("myrealm", "THE_CLIENT_ID", "bob");
+        distinctUsers.record("myrealm", "OTHER_CLIENT_ID", "bob");
+        distinctUsers.record("myrealm", "THIRD_CLIENT_ID", "carol");
+        distinctUsers.record("myrealm", "", "dave");
+
+        Assert.assertEquals(Map.of(
+            Arrays.asList("myrealm", "THE_CLIENT_ID", "current"), 2.0,
+            Arrays.asList("myrealm", "OTHER_CLIENT_ID", "current"), 1.0), samples(distinctUsers, DistinctUsers.CLIENT_USERS));
+        Assert.assertEquals(Map.of(Arrays.asList("myrealm", "current"), 4.0), samples(distinctUsers, DistinctUsers.USERS));
+    }
+
+    @Test
+    public void shouldStartTheWindowsAtMultiplesOfTheirLength() {
+        clock.set(WINDOW_MILLIS * 3 / 2);
+        final DistinctUsers distinctUsers = new DistinctUsers(14, 10, 0, WINDOW_MILLIS, clock::get);
+        distinctUsers.record("myrealm", "THE_CLIENT_ID", "alice");
+
+        clock.set(2 * WINDOW_MILLIS - 1);
+        Assert.assertEquals(Map.of(Arrays.asList("myrealm", "current"), 1.0), samples(distinctUsers, DistinctUsers.USERS));
+        clock.set(2 * WINDOW_MILLIS);
+        Assert.assertEquals(Map.of(
+            Arrays.asList("myrealm", "current"), 0.0,
+            Arrays.asList("myrealm", "previous"), 1.0), samples(distinctUsers, DistinctUsers.USERS));
+    }
+
+    @Test
+    public void shouldMergeTheSketchesOfOtherNodes() {
+        final DistinctUsers first = new DistinctUsers(14, 10, 2, WINDOW_MILLIS, clock::get);
+        final DistinctUsers second = new DistinctUsers(14, 10, 2, WINDOW_MILLIS, clock::get);
+        first.record("myrealm", "THE_CLIENT_ID", "alice");
+        first.record("myrealm", "THE_CLIENT_ID", "bob");
+        second.record("myrealm", "THE_CLIENT_ID", "bob");
+        second.record("myrealm", "OTHER_CLIENT_ID", "carol");
+        second.record("otherrealm", "THE_CLIENT_ID", "dave");
+
+        final Map<List<String>, Double> users = new HashMap<>();
+        final Map<List<String>, Double> clientUsers = new HashMap<>();
+        for (MetricFamilySamples family : first.collect(second.sketches())) {
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                (family.name.equals(DistinctUsers.USERS) ? users : clientUsers).put(sample.labelValues, sample.value);
+            }
+        }
+        Assert.assertEquals(Map.of(
+            Arrays.asList("myrealm", "current"), 3.0,
+            Arrays.asList("otherrealm", "current"), 1.0), users);
+        Assert.assertEquals(Map.of(
+            Arrays.asList("myrealm", "THE_CLIENT_ID", "current"), 2.0,
+            Arrays.asList("myrealm", "OTHER_CLIENT_ID", "current"), 1.0,
+            Arrays.asList("otherrealm", "THE_CLIENT_ID", "current"), 1.0), clientUsers);
+
+        // the local sketches are not changed by the merge
+        Assert.assertEquals(Map.of(Arrays.asList("myrealm", "current"), 2.0), samples(first, DistinctUsers.USERS));
+    }
+
+    @Test
+    public void shouldNotExceedTheNumberOfClientsWithConcurrentEvents() throws InterruptedException {
+        final DistinctUsers distinctUsers = new DistinctUsers(14, 10, 3, WINDOW_MILLIS, clock::get);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final String clientId = "client" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    distinctUsers.record("myrealm", clientId, "user" + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(3, samples(distinctUsers, DistinctUsers.CLIENT_USERS).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectAnInvalidPrecision() {
+        new DistinctUsers(20, 10, 0, WINDOW_MILLIS);
+    }
+
+    private static Map<List<String>, Double> samples(DistinctUsers distinctUsers, String name) {
+        final Map<List<String>, Double> samples = new HashMap<>();
+        for (MetricFamilySamples family : distinctUsers.collect()) {
+            if (family.name.equals(name)) {
+                for (MetricFamilySamples.Sample sample : family.samples) {
+                    samples.put(sample.labelValues, sample.value);
+                }
+            }
+        }
+        return samples;
+    }
+}
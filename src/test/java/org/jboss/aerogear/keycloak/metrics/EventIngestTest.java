@@ -0,0 +1,140 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.OperationType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventIngestTest {
+
+    // the aggregator and producers recording directly after the shutdown add concurrently
+    private final List<String> recorded = Collections.synchronizedList(new ArrayList<>());
+
+    private final EventIngest.Sink sink = new EventIngest.Sink() {
+        @Override
+        public void event(EventType type, String realm, String provider, String clientId, String error,
+                          String user, String ipAddress, String[] exemplar) {
+            recorded.add(type + "/" + realm + "/" + provider + "/" + clientId + "/" + error
+                + (user != null || ipAddress != null ? "/" + user + "/" + ipAddress : ""));
+        }
+
+        @Override
+        public void adminEvent(OperationType operation, String resourceType, String realm, String[] exemplar) {
+            recorded.add(operation + "/" + resourceType + "/" + realm);
+        }
+    };
+
+    @Before
+    public void clearRegistry() {
+        CollectorRegistry.defaultRegistry.clear();
+    }
+
+    @Test
+    public void shouldApplyEventsInOrder() {
+        final EventIngest ingest = new EventIngest(sink, 4, false);
+        ingest.offer(EventType.LOGIN, "myrealm", "keycloak", "THE_CLIENT_ID", "", null, null, null);
+        ingest.offer(OperationType.CREATE, "USER", "myrealm", null);
+        ingest.offer(EventType.LOGIN_ERROR, "myrealm", "keycloak", "THE_CLIENT_ID", "user_not_found", "alice", "10.0.0.1", null);
+        assertEquals(3, ingest.depth());
+
+        assertEquals(3, ingest.drain());
+        assertEquals(List.of(
+            "LOGIN/myrealm/keycloak/THE_CLIENT_ID/",
+            "CREATE/USER/myrealm",
+            "LOGIN_ERROR/myrealm/keycloak/THE_CLIENT_ID/user_not_found/alice/10.0.0.1"), recorded);
+        assertEquals(0, ingest.depth());
+    }
+
+    @Test
+    public void shouldDropEventsWhenFull() {
+        final EventIngest ingest = new EventIngest(sink, 2, false);
+        for (int i = 0; i < 5; i++) {
+            ingest.offer(EventType.LOGIN, "myrealm", "keycloak", "client" + i, "", null, null, null);
+        }
+        assertEquals(2, ingest.drain());
+        assertEquals(List.of("LOGIN/myrealm/keycloak/client0/", "LOGIN/myrealm/keycloak/client1/"), recorded);
+        assertEquals(3.0, CollectorRegistry.defaultRegistry.getSampleValue("keycloak_event_queue_dropped_total"), 0);
+
+        // slots are reused once drained
+        ingest.offer(EventType.LOGIN, "myrealm", "keycloak", "client5", "", null, null, null);
+        assertEquals(1, ingest.drain());
+        assertEquals("LOGIN/myrealm/keycloak/client5/", recorded.get(2));
+    }
+
+    @Test
+    public void shouldRecordAllEventsOfConcurrentProducers() throws InterruptedException {
+        final EventIngest ingest = new EventIngest(sink, 16, true);
+        ingest.start();
+        final Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    ingest.offer(EventType.LOGIN, "myrealm", "keycloak", "THE_CLIENT_ID", "", null, null, null);
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        ingest.shutdown();
+
+        assertEquals(4000, recorded.size());
+        assertEquals(0.0, CollectorRegistry.defaultRegistry.getSampleValue("keycloak_event_queue_dropped_total"), 0);
+    }
+
+    @Test
+    public void shouldWakeUpTheAggregatorOnNewEvents() throws InterruptedException {
+        final EventIngest ingest = new EventIngest(sink, 4, false);
+        ingest.start();
+        for (int i = 0; i < 3; i++) {
+            // the aggregator is parked in between
+            Thread.sleep(50);
+            ingest.offer(EventType.LOGIN, "myrealm", "keycloak", "THE_CLIENT_ID", "", null, null, null);
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (recorded.size() <= i && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(i + 1, recorded.size());
+        }
+        ingest.shutdown();
+    }
+
+    @Test
+    public void shouldNotLoseEventsOfProducersDuringShutdown() throws InterruptedException {
+        final EventIngest ingest = new EventIngest(sink, 16, true);
+        ingest.start();
+        final Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    ingest.offer(EventType.LOGIN, "myrealm", "keycloak", "THE_CLIENT_ID", "", null, null, null);
+                }
+            });
+            producers[p].start();
+        }
+        ingest.shutdown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(80000, recorded.size());
+        assertEquals(0.0, CollectorRegistry.defaultRegistry.getSampleValue("keycloak_event_queue_dropped_total"), 0);
+    }
+
+    @Test
+    public void shouldRecordSynchronouslyAfterShutdown() {
+        final EventIngest ingest = new EventIngest(sink, 4, false);
+        ingest.start();
+        ingest.shutdown();
+        ingest.offer(OperationType.DELETE, "CLIENT", "myrealm", null);
+        assertEquals(List.of("DELETE/CLIENT/myrealm"), recorded);
+    }
+}
@@ -0,0 +1,50 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ExemplarsTest {
+
+    private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+    @Test
+    public void shouldTakeTheTraceIdOfTheTraceContext() {
+        assertArrayEquals(new String[]{"trace_id", TRACE_ID},
+            Exemplars.labels(Map.of("traceparent", "00-" + TRACE_ID + "-00f067aa0ba902b7-01")::get));
+    }
+
+    @Test
+    public void shouldTakeTheTraceIdOfB3Headers() {
+        assertArrayEquals(new String[]{"trace_id", TRACE_ID},
+            Exemplars.labels(Map.of("b3", TRACE_ID + "-e457b5a2e4d86bd1-1")::get));
+        assertArrayEquals(new String[]{"trace_id", "a3ce929d0e0e4736"},
+            Exemplars.labels(Map.of("X-B3-TraceId", "a3ce929d0e0e4736")::get));
+    }
+
+    @Test
+    public void shouldFallBackToTheRequestOrEventId() {
+        assertArrayEquals(new String[]{"request_id", "f81d4fae"},
+            Exemplars.labels(Map.of("traceparent", "00-" + "0".repeat(32) + "-00f067aa0ba902b7-01", "X-Request-ID", " f81d4fae ")::get, "event"));
+        assertArrayEquals(new String[]{"event_id", "event"}, Exemplars.labels(Map.<String, String>of()::get, "event"));
+        assertArrayEquals(new String[]{"event_id", "event"}, Exemplars.labels(null, "event"));
+        assertNull(Exemplars.labels(Map.<String, String>of()::get));
+    }
+
+    @Test
+    public void shouldIgnoreInvalidTraceIds() {
+        assertNull(Exemplars.traceParent("00-" + TRACE_ID + "-00f067aa0ba902b7"));
+        assertNull(Exemplars.traceParent("00-4bf92f3577b34da6a3ce929d0e0e473g-00f067aa0ba902b7-01"));
+        assertNull(Exemplars.b3("0"));
+        assertNull(Exemplars.b3("4bf92f35-e457b5a2e4d86bd1"));
+    }
+
+    @Test
+    public void shouldTruncateLongIds() {
+        assertEquals(64, Exemplars.labels(Map.of("X-Request-ID", "x".repeat(200))::get)[1].length());
+    }
+}
@@ -0,0 +1,76 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FailureTopKTest {
+
+    private static final long WINDOW_MILLIS = 60_000;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final FailureTopK topK = new FailureTopK(2, 10, WINDOW_MILLIS, clock::get);
+
+    @Test
+    public void shouldExportTheTopValuesOfTheLastCompleteWindow() {
+        for (int i = 0; i < 3; i++) {
+            topK.record("myrealm", "alice", "10.0.0.1", "THE_CLIENT_ID");
+        }
+        topK.record("myrealm", "bob", "10.0.0.1", "THE_CLIENT_ID");
+        topK.record("myrealm", "carol", "10.0.0.2", null);
+        Assert.assertTrue("Nothing before the end of the first window", counts().isEmpty());
+
+        clock.addAndGet(WINDOW_MILLIS);
+        final Map<List<String>, Double> counts = counts();
+        Assert.assertEquals(5, counts.size());
+        Assert.assertEquals(3.0, counts.get(Arrays.asList("myrealm", "user", "alice")), 0);
+        Assert.assertEquals(1.0, counts.get(Arrays.asList("myrealm", "user", "bob")), 0);
+        Assert.assertEquals(4.0, counts.get(Arrays.asList("myrealm", "ip_address", "10.0.0.1")), 0);
+        Assert.assertEquals(1.0, counts.get(Arrays.asList("myrealm", "ip_address", "10.0.0.2")), 0);
+        Assert.assertEquals(4.0, counts.get(Arrays.asList("myrealm", "client_id", "THE_CLIENT_ID")), 0);
+    }
+
+    @Test
+    public void shouldRotateTheWindows() {
+        topK.record("myrealm", "alice", null, null);
+        clock.addAndGet(WINDOW_MILLIS);
+        topK.record("myrealm", "bob", null, null);
+        topK.record("otherrealm", "carol", null, null);
+
+        clock.addAndGet(WINDOW_MILLIS);
+        Map<List<String>, Double> counts = counts();
+        Assert.assertEquals(2, counts.size());
+        Assert.assertEquals(1.0, counts.get(Arrays.asList("myrealm", "user", "bob")), 0);
+        Assert.assertEquals(1.0, counts.get(Arrays.asList("otherrealm", "user", "carol")), 0);
+
+        topK.record("myrealm", "dave", null, null);
+        clock.addAndGet(WINDOW_MILLIS);
+        counts = counts();
+        Assert.assertEquals(1, counts.size());
+        Assert.assertEquals(1.0, counts.get(Arrays.asList("myrealm", "user", "dave")), 0);
+
+        // a window without failures
+        clock.addAndGet(WINDOW_MILLIS);
+        Assert.assertTrue(counts().isEmpty());
+        clock.addAndGet(WINDOW_MILLIS);
+        Assert.assertTrue(counts().isEmpty());
+    }
+
+    private Map<List<String>, Double> counts() {
+        final Map<List<String>, Double> counts = new HashMap<>();
+        for (MetricFamilySamples family : topK.collect()) {
+            if (family.name.equals(FailureTopK.COUNT)) {
+                for (MetricFamilySamples.Sample sample : family.samples) {
+                    counts.put(sample.labelValues, sample.value);
+                }
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,76 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void shouldCountFewValuesExactly() {
+        final HyperLogLog sketch = new HyperLogLog(14);
+        Assert.assertEquals(0, sketch.estimate());
+        for (int i = 0; i < 3; i++) {
+            sketch.offer("alice");
+            sketch.offer("bob");
+        }
+        Assert.assertEquals(2, sketch.estimate());
+    }
+
+    @Test
+    public void shouldEstimateManyValuesWithinTheStandardError() {
+        final HyperLogLog sketch = new HyperLogLog(14);
+        for (int i = 0; i < 1_000_000; i++) {
+            sketch.offer(UUID.nameUUIDFromBytes(Integer.toString(i).getBytes()).toString());
+            // repeated values are not counted again
+            sketch.offer(UUID.nameUUIDFromBytes(Integer.toString(i / 2).getBytes()).toString());
+        }
+        // relative standard error of 1.04 / sqrt(2^14), about 0.8%
+        Assert.assertEquals(1_000_000, sketch.estimate(), 30_000);
+    }
+
+    @Test
+    public void shouldMergeTheSketchesOfSeveralNodes() {
+        final HyperLogLog node1 = new HyperLogLog(12);
+        final HyperLogLog node2 = new HyperLogLog(12);
+        for (int i = 0; i < 60_000; i++) {
+            node1.offer("user" + i);
+        }
+        for (int i = 40_000; i < 100_000; i++) {
+            node2.offer("user" + i);
+        }
+
+        final HyperLogLog merged = HyperLogLog.decode(node1.encode());
+        merged.merge(HyperLogLog.decode(node2.encode()));
+        // relative standard error of 1.04 / sqrt(2^12), about 1.6%
+        Assert.assertEquals(100_000, merged.estimate(), 5_000);
+        Assert.assertEquals(node1.estimate(), HyperLogLog.decode(node1.encode()).estimate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotMergeSketchesOfAnotherPrecision() {
+        new HyperLogLog(12).merge(new HyperLogLog(14));
+    }
+
+    @Test
+    public void shouldCountConcurrentOffers() throws InterruptedException {
+        final HyperLogLog sketch = new HyperLogLog(14);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    sketch.offer("user" + (thread * 50_000 + i));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(200_000, sketch.estimate(), 6_000);
+    }
+}
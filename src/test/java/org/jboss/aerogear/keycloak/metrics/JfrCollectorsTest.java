@@ -0,0 +1,103 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+public class JfrCollectorsTest {
+
+    private static final long TIMEOUT_MS = 30_000;
+
+    private JfrCollectors collectors;
+
+    @Before
+    public void start() {
+        CollectorRegistry.defaultRegistry.clear();
+        collectors = JfrCollectors.start(EnumSet.allOf(JfrCollectors.Stream.class));
+        Assert.assertNotNull(collectors);
+    }
+
+    @After
+    public void shutdown() {
+        collectors.shutdown();
+        CollectorRegistry.defaultRegistry.clear();
+    }
+
+    @Test
+    public void shouldCountAllocatedBytes() throws InterruptedException {
+        final List<byte[]> garbage = new ArrayList<>();
+        awaitUntil(() -> {
+            for (int i = 0; i < 1000; i++) {
+                garbage.add(new byte[1024]);
+            }
+            garbage.clear();
+            return sum("jvm_jfr_allocated_bytes_total") > 0;
+        });
+    }
+
+    @Test
+    public void shouldObserveGcPauses() throws InterruptedException {
+        awaitUntil(() -> {
+            System.gc();
+            return sum("jvm_jfr_gc_pause_seconds_count") > 0;
+        });
+        Assert.assertTrue(sum("jvm_jfr_gc_pause_seconds_sum") > 0);
+    }
+
+    @Test
+    public void shouldObservePinnedVirtualThreads() throws InterruptedException {
+        // since JDK 24 (JEP 491) virtual threads no longer pin their carrier while parking in a monitor
+        Assume.assumeTrue(Runtime.version().feature() < 24);
+        final Object monitor = new Object();
+        awaitUntil(() -> {
+            try {
+                // parking while holding a monitor pins the virtual thread to its carrier
+                Thread.ofVirtual().start(() -> {
+                    synchronized (monitor) {
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }).join();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return sum("jvm_jfr_virtual_thread_pinned_seconds_count") > 0;
+        });
+        Assert.assertTrue(sum("jvm_jfr_virtual_thread_pinned_seconds_sum") >= 0.05);
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("No JFR event was streamed in time");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static double sum(String sampleName) {
+        double sum = 0;
+        for (Collector.MetricFamilySamples family : Collections.list(CollectorRegistry.defaultRegistry.metricFamilySamples())) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                if (sample.name.equals(sampleName)) {
+                    sum += sample.value;
+                }
+            }
+        }
+        return sum;
+    }
+}
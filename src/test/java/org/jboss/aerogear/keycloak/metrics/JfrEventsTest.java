@@ -0,0 +1,131 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.CollectorRegistry;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.UriInfo;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import uk.org.webcompere.systemstubs.rules.EnvironmentVariablesRule;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class JfrEventsTest {
+
+    private static final String REQUEST = "org.jboss.aerogear.keycloak.metrics.Request";
+    private static final String EVENT = "org.jboss.aerogear.keycloak.metrics.Event";
+
+    private final BlockingQueue<RecordedEvent> events = new LinkedBlockingQueue<>();
+    private RecordingStream recording;
+
+    @Rule
+    public final EnvironmentVariablesRule environmentVariables = new EnvironmentVariablesRule();
+
+    @Before
+    public void resetSingleton() throws NoSuchFieldException, IllegalAccessException {
+        // the filter reads the setting once, MetricsFilterTest may have initialized it first
+        environmentVariables.set("URI_METRICS_ENABLED", "true");
+        Field instance = PrometheusExporter.class.getDeclaredField("INSTANCE");
+        instance.setAccessible(true);
+        instance.set(null, null);
+        CollectorRegistry.defaultRegistry.clear();
+    }
+
+    @After
+    public void stopRecording() {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+
+    @Test
+    public void shouldNotBeginRequestEventsByDefault() {
+        Assert.assertNull(JfrRequestEvent.start());
+    }
+
+    @Test
+    public void shouldRecordRequests() throws InterruptedException {
+        startRecording(REQUEST);
+        final ContainerRequestContext req = mockRequest();
+        final ContainerResponseContext res = mock(ContainerResponseContext.class);
+        when(res.getStatus()).thenReturn(201);
+        when(res.getMediaType()).thenReturn(MediaType.APPLICATION_JSON_TYPE);
+
+        MetricsFilter.instance().filter(req);
+        Thread.sleep(5);
+        MetricsFilter.instance().filter(req, res);
+
+        final RecordedEvent event = events.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(event);
+        Assert.assertEquals("POST", event.getString("method"));
+        Assert.assertEquals("token,openid-connect", event.getString("resource"));
+        Assert.assertEquals(201, event.getInt("status"));
+        Assert.assertTrue(event.getDuration().toMillis() >= 5);
+    }
+
+    @Test
+    public void shouldRecordKeycloakEvents() throws InterruptedException {
+        startRecording(EVENT);
+        final RealmProvider realmProvider = mock(RealmProvider.class);
+        final RealmModel realm = mock(RealmModel.class);
+        when(realm.getName()).thenReturn("myrealm");
+        when(realmProvider.getRealm("REALM_ID")).thenReturn(realm);
+        final Event login = new Event();
+        login.setType(EventType.LOGIN_ERROR);
+        login.setRealmId("REALM_ID");
+        login.setClientId("THE_CLIENT_ID");
+        login.setError("invalid_user_credentials");
+
+        new MetricsEventListener(realmProvider).onEvent(login);
+
+        final RecordedEvent event = events.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(event);
+        Assert.assertEquals("LOGIN_ERROR", event.getString("type"));
+        Assert.assertFalse(event.getBoolean("admin"));
+        Assert.assertEquals("myrealm", event.getString("realm"));
+        Assert.assertEquals("THE_CLIENT_ID", event.getString("clientId"));
+        Assert.assertEquals("invalid_user_credentials", event.getString("error"));
+    }
+
+    private void startRecording(String name) {
+        recording = new RecordingStream();
+        recording.enable(name).withoutThreshold();
+        recording.onEvent(name, events::add);
+        recording.startAsync();
+    }
+
+    private static ContainerRequestContext mockRequest() {
+        final Map<String, Object> properties = new HashMap<>();
+        final ContainerRequestContext req = mock(ContainerRequestContext.class);
+        when(req.getMethod()).thenReturn("POST");
+        final UriInfo uriInfo = mock(UriInfo.class);
+        when(uriInfo.getMatchedURIs()).thenReturn(List.of("auth", "realms", "myrealm", "openid-connect", "token"));
+        when(req.getUriInfo()).thenReturn(uriInfo);
+        doAnswer(invocation -> properties.put(invocation.getArgument(0), invocation.getArgument(1)))
+            .when(req).setProperty(anyString(), any());
+        when(req.getProperty(anyString())).thenAnswer(invocation -> properties.get(invocation.<String>getArgument(0)));
+        return req;
+    }
+}
@@ -0,0 +1,65 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.function.Function;
+
+public class MicrometerBackendTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MicrometerBackend backend = new MicrometerBackend(registry);
+
+    @Test
+    public void shouldCountPerTupleOfLabelValues() {
+        final Function<String[], MetricsBackend.Counter> logins =
+            backend.counter("keycloak_logins", "Total successful logins", "realm", "client_id");
+        logins.apply(new String[]{"myrealm", "THE_CLIENT_ID"}).inc(null);
+        logins.apply(new String[]{"myrealm", "THE_CLIENT_ID"}).inc(new String[]{"trace_id", "0af7651916cd43dd8448eb211c80319c"});
+        logins.apply(new String[]{"otherrealm", null}).inc(null);
+
+        Assert.assertEquals(2.0, registry.get("keycloak_logins").tags("realm", "myrealm", "client_id", "THE_CLIENT_ID").counter().count(), 0);
+        Assert.assertEquals(1.0, registry.get("keycloak_logins").tags("realm", "otherrealm", "client_id", "").counter().count(), 0);
+    }
+
+    @Test
+    public void shouldCollectTheValuesOfTheCounters() {
+        final ChildCache<MetricsBackend.Counter> logins = new ChildCache<>(
+            backend.counter("keycloak_logins", "Total successful logins", "realm", "client_id"));
+        logins.get("myrealm", "THE_CLIENT_ID").inc(null);
+        logins.get("myrealm", "THE_CLIENT_ID").inc(2.5);
+
+        Assert.assertEquals(List.of("realm", "client_id"), backend.counterLabelNames("keycloak_logins"));
+        Assert.assertNull(backend.counterLabelNames("keycloak_unknown"));
+        final List<MetricFamilySamples> families = backend.collectCounters();
+        Assert.assertEquals(1, families.size());
+        Assert.assertEquals("keycloak_logins", families.get(0).name);
+        final MetricFamilySamples.Sample sample = families.get(0).samples.get(0);
+        Assert.assertEquals("keycloak_logins_total", sample.name);
+        Assert.assertEquals(List.of("myrealm", "THE_CLIENT_ID"), sample.labelValues);
+        Assert.assertEquals(3.5, sample.value, 0);
+    }
+
+    @Test
+    public void shouldCacheTheSeries() {
+        final ChildCache<MetricsBackend.Counter> logins = new ChildCache<>(
+            backend.counter("keycloak_logins", "Total successful logins", "realm"));
+        Assert.assertSame(logins.get("myrealm"), logins.get("myrealm"));
+    }
+
+    @Test
+    public void shouldObserveEachAmountOnce() {
+        final ChildCache<MetricsBackend.Histogram> durations = new ChildCache<>(
+            backend.histogram("keycloak_request_duration", "Request duration", new double[]{0.1, 1.0}, "code"));
+        durations.get("200").observe(0.05, 1, null);
+        durations.get("200").observe(0.5, 1, null);
+
+        final DistributionSummary summary = registry.get("keycloak_request_duration").tags("code", "200").summary();
+        Assert.assertEquals(2, summary.count());
+        Assert.assertEquals(0.55, summary.totalAmount(), 1e-9);
+    }
+}
@@ -1,28 +1,50 @@
 package org.jboss.aerogear.keycloak.metrics;
 
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 import org.hamcrest.MatcherAssert;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.events.admin.OperationType;
 import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RealmProvider;
 import uk.org.webcompere.systemstubs.rules.EnvironmentVariablesRule;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.endsWith;
+import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.mockito.Mockito.*;
 
 @SuppressWarnings("unchecked")
@@ -46,6 +68,9 @@ public class PrometheusExporterTest {
     @Rule
     public final EnvironmentVariablesRule environmentVariables = new EnvironmentVariablesRule();
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void resetSingleton() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
         Field instance = PrometheusExporter.class.getDeclaredField("INSTANCE");
@@ -59,6 +84,14 @@ public class PrometheusExporterTest {
         int userEvents = EventType.values().length;
         int adminEvents = OperationType.values().length;
 
+        MatcherAssert.assertThat("No counter before the first event", PrometheusExporter.instance().counters.size(), is(0));
+        for (EventType type : EventType.values()) {
+            PrometheusExporter.instance().recordGenericEvent(createEvent(type), realmProvider);
+        }
+        for (OperationType type : OperationType.values()) {
+            PrometheusExporter.instance().recordGenericAdminEvent(createAdminEvent(type, ResourceType.CLIENT), realmProvider);
+        }
+
         MatcherAssert.assertThat(
             "All events registered",
             userEvents + adminEvents - 3,                             // -3 comes from the events that
@@ -66,6 +99,60 @@ public class PrometheusExporterTest {
 
     }
 
+    @Test
+    public void shouldOnlyWriteGenericCountersOfRecordedEvents() throws IOException {
+        PrometheusExporter.instance().recordGenericEvent(createEvent(EventType.UPDATE_EMAIL), realmProvider);
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream);
+            final String result = stream.toString(StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(result, containsString("keycloak_user_event_UPDATE_EMAIL_total{realm=\"myrealm\",} 1.0"));
+            MatcherAssert.assertThat(result, not(containsString("keycloak_user_event_REVOKE_GRANT")));
+            MatcherAssert.assertThat(result, not(containsString("keycloak_admin_event_")));
+        }
+    }
+
+    @Test
+    public void shouldOnlyCountIncludedGenericEvents() throws IOException {
+        environmentVariables.set("METRICS_GENERIC_EVENTS_INCLUDE", "update_email, ACTION");
+        environmentVariables.set("METRICS_GENERIC_EVENTS_EXCLUDE", "ACTION");
+        PrometheusExporter.instance().recordGenericEvent(createEvent(EventType.UPDATE_EMAIL), realmProvider);
+        PrometheusExporter.instance().recordGenericEvent(createEvent(EventType.REVOKE_GRANT), realmProvider);
+        PrometheusExporter.instance().recordGenericAdminEvent(createAdminEvent(OperationType.ACTION, ResourceType.CLIENT), realmProvider);
+
+        assertGenericMetric("keycloak_user_event_UPDATE_EMAIL_total", 1, tuple("realm", DEFAULT_REALM_NAME));
+        MatcherAssert.assertThat(PrometheusExporter.instance().counters.keySet(), is(Set.of("keycloak_user_event_UPDATE_EMAIL")));
+    }
+
+    @Test
+    public void shouldCreateGenericCountersOnceWhenRecordedConcurrently() throws InterruptedException {
+        final PrometheusExporter exporter = PrometheusExporter.instance();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (EventType type : EventType.values()) {
+                        exporter.recordGenericEvent(createEvent(type), realmProvider);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(Collections.emptyList(), errors);
+        Assert.assertEquals(EventType.values().length - 3, exporter.counters.size());
+        Assert.assertEquals(threads.length, CollectorRegistry.defaultRegistry.getSampleValue("keycloak_user_event_UPDATE_EMAIL_total",
+            new String[]{"realm"}, new String[]{DEFAULT_REALM_NAME}), 0);
+    }
+
     @Test
     public void shouldCorrectlyCountLoginAttemptsForSuccessfulAndFailedAttempts() throws IOException {
         // with LOGIN event
@@ -289,6 +376,62 @@ public class PrometheusExporterTest {
             tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"), tuple("uri", "auth/realm"));
     }
 
+    @Test
+    public void shouldRecordResponseDurationsInClassicBuckets() throws IOException {
+        PrometheusExporter.instance().recordRequestDuration(200, 0.5, "GET", "admin,admin/serverinfo");
+        assertGenericMetric("keycloak_request_duration_bucket", 1,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"), tuple("le", "50.0"));
+        assertGenericMetric("keycloak_request_duration_bucket", 1,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"), tuple("le", "+Inf"));
+    }
+
+    @Test
+    public void shouldClampTheSchemaOfExponentialBuckets() throws IOException {
+        environmentVariables.set("REQUEST_DURATION_HISTOGRAM", "exponential");
+        environmentVariables.set("REQUEST_DURATION_HISTOGRAM_SCHEMA", "-10");
+        PrometheusExporter.instance().recordRequestDuration(200, 3, "GET", "admin,admin/serverinfo");
+        // schema -4, bounds are the powers of 2^16
+        assertGenericMetric("keycloak_request_duration_bucket", 1,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"), tuple("le", "65536.0"));
+    }
+
+    @Test
+    public void shouldCapTheSchemaOfExponentialBuckets() throws IOException {
+        environmentVariables.set("REQUEST_DURATION_HISTOGRAM", "exponential");
+        environmentVariables.set("REQUEST_DURATION_HISTOGRAM_SCHEMA", "8");
+        PrometheusExporter.instance().recordRequestDuration(200, 3, "GET", "admin,admin/serverinfo");
+        // schema 3, bounds are the powers of 2^(1/8)
+        assertGenericMetric("keycloak_request_duration_bucket", 1,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"),
+            tuple("le", Collector.doubleToGoString(Math.pow(2, 13 / 8.0))));
+        int buckets = 0;
+        for (Collector.MetricFamilySamples family : Collections.list(CollectorRegistry.defaultRegistry.metricFamilySamples())) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                if (sample.name.equals("keycloak_request_duration_bucket")) {
+                    buckets++;
+                }
+            }
+        }
+        MatcherAssert.assertThat(buckets < 200, is(true));
+    }
+
+    @Test
+    public void shouldRecordResponseDurationsInExponentialBuckets() throws IOException {
+        environmentVariables.set("REQUEST_DURATION_HISTOGRAM", "exponential");
+        PrometheusExporter.instance().recordRequestDuration(200, 3, "GET", "admin,admin/serverinfo");
+        PrometheusExporter.instance().recordRequestDuration(200, 0.1, "GET", "admin,admin/serverinfo");
+        assertGenericMetric("keycloak_request_duration_bucket", 1,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"), tuple("le", "0.25"));
+        assertGenericMetric("keycloak_request_duration_bucket", 1,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"), tuple("le", "2.0"));
+        assertGenericMetric("keycloak_request_duration_bucket", 2,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"), tuple("le", "4.0"));
+        assertGenericMetric("keycloak_request_duration_bucket", 2,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"), tuple("le", "65536.0"));
+        assertGenericMetric("keycloak_request_duration_count", 2,
+            tuple("code","200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"));
+    }
+
     @Test
     public void shouldCorrectlyRecordResponseTotal() throws IOException {
         environmentVariables.set("URI_METRICS_ENABLED", "true");
@@ -318,6 +461,644 @@ public class PrometheusExporterTest {
         assertMetric("keycloak_failed_login_attempts", 1, "", tuple("provider", "keycloak"), tuple("error", ""), tuple("client_id", ""));
     }
 
+    @Test
+    public void shouldCacheRealmNamesUntilInvalidated() throws IOException {
+        clearInvocations(realmProvider);
+        final Event login = createEvent(EventType.LOGIN);
+        PrometheusExporter.instance().recordLogin(login, realmProvider);
+        PrometheusExporter.instance().recordLogin(login, realmProvider);
+        verify(realmProvider, times(1)).getRealm(DEFAULT_REALM_ID);
+
+        PrometheusExporter.instance().invalidateRealm(DEFAULT_REALM_ID);
+        PrometheusExporter.instance().recordLogin(login, realmProvider);
+        verify(realmProvider, times(2)).getRealm(DEFAULT_REALM_ID);
+
+        assertGenericMetric("keycloak_realm_name_cache_lookups_total", 1, tuple("result", "hit"));
+        assertGenericMetric("keycloak_realm_name_cache_lookups_total", 2, tuple("result", "miss"));
+    }
+
+    @Test
+    public void shouldCollapseClientIdsBeyondLimit() throws IOException {
+        environmentVariables.set("LABEL_LIMIT_CLIENT_ID", "1");
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN, DEFAULT_REALM_ID, "FIRST"), realmProvider);
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN, DEFAULT_REALM_ID, "SECOND"), realmProvider);
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN, DEFAULT_REALM_ID, "THIRD"), realmProvider);
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN, DEFAULT_REALM_ID, "FIRST"), realmProvider);
+
+        assertMetric("keycloak_logins", 2, tuple("provider", "keycloak"), tuple("client_id", "FIRST"));
+        assertMetric("keycloak_logins", 2, tuple("provider", "keycloak"), tuple("client_id", "__overflow__"));
+        assertGenericMetric("keycloak_label_overflows_total", 2, tuple("metric", "keycloak_logins"), tuple("label", "client_id"));
+    }
+
+    @Test
+    public void shouldCollapseErrorsBeyondLimit() throws IOException {
+        environmentVariables.set("LABEL_LIMIT_ERROR", "1");
+        PrometheusExporter.instance().recordLoginError(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "THE_CLIENT_ID", "user_not_found"), realmProvider);
+        PrometheusExporter.instance().recordLoginError(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "THE_CLIENT_ID", "invalid_user_credentials"), realmProvider);
+        PrometheusExporter.instance().recordLoginError(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "THE_CLIENT_ID", "user_not_found"), realmProvider);
+
+        assertMetric("keycloak_failed_login_attempts", 2, tuple("provider", "keycloak"), tuple("error", "user_not_found"), tuple("client_id", "THE_CLIENT_ID"));
+        assertMetric("keycloak_failed_login_attempts", 1, tuple("provider", "keycloak"), tuple("error", "__overflow__"), tuple("client_id", "THE_CLIENT_ID"));
+        assertGenericMetric("keycloak_label_overflows_total", 1, tuple("metric", "keycloak_failed_login_attempts"), tuple("label", "error"));
+    }
+
+    @Test
+    public void shouldCollapseUrisBeyondLimit() throws IOException {
+        environmentVariables.set("URI_METRICS_ENABLED", "true");
+        environmentVariables.set("LABEL_LIMIT_URI", "1");
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin", "/admin/first");
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin", "/admin/second");
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin", "/admin/third");
+        PrometheusExporter.instance().recordRequestDuration(200, 5, "GET", "admin", "/admin/second");
+
+        assertGenericMetric("keycloak_response_total", 1, tuple("code", "200"), tuple("method", "GET"), tuple("resource", "admin"), tuple("uri", "/admin/first"));
+        assertGenericMetric("keycloak_response_total", 2, tuple("code", "200"), tuple("method", "GET"), tuple("resource", "admin"), tuple("uri", "__overflow__"));
+        // limited per metric
+        assertGenericMetric("keycloak_request_duration_count", 1, tuple("code", "200"), tuple("method", "GET"), tuple("resource", "admin"), tuple("uri", "/admin/second"));
+        assertGenericMetric("keycloak_label_overflows_total", 2, tuple("metric", "keycloak_response"), tuple("label", "uri"));
+        assertGenericMetric("keycloak_label_overflows_total", 0, tuple("metric", "keycloak_request_duration"), tuple("label", "uri"));
+    }
+
+    @Test
+    public void shouldCollapseLabelSetsBeyondSeriesLimit() throws IOException {
+        environmentVariables.set("LABEL_LIMIT_SERIES", "2");
+        PrometheusExporter.instance().recordLoginError(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "FIRST", "user_not_found"), realmProvider);
+        PrometheusExporter.instance().recordLoginError(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "FIRST", "invalid_user_credentials"), realmProvider);
+        // each value was seen before, but not this tuple
+        PrometheusExporter.instance().recordLoginError(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "SECOND", "user_not_found"), realmProvider);
+        PrometheusExporter.instance().recordLoginError(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "FIRST", "user_not_found"), realmProvider);
+
+        assertMetric("keycloak_failed_login_attempts", 2, tuple("provider", "keycloak"), tuple("error", "user_not_found"), tuple("client_id", "FIRST"));
+        assertMetric("keycloak_failed_login_attempts", 1, tuple("provider", "keycloak"), tuple("error", "invalid_user_credentials"), tuple("client_id", "FIRST"));
+        assertMetric("keycloak_failed_login_attempts", 1, tuple("provider", "keycloak"), tuple("error", "__overflow__"), tuple("client_id", "__overflow__"));
+        assertGenericMetric("keycloak_label_overflows_total", 1, tuple("metric", "keycloak_failed_login_attempts"), tuple("label", "series"));
+    }
+
+    @Test
+    public void shouldRecordEventsAsynchronously() throws IOException {
+        environmentVariables.set("METRICS_ASYNC_EVENTS", "true");
+        PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN), realmProvider);
+        PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "THE_CLIENT_ID", "user_not_found"), realmProvider);
+        PrometheusExporter.instance().recordEvent(createEvent(EventType.UPDATE_EMAIL), realmProvider);
+        // drains the queue
+        PrometheusExporter.shutdown();
+
+        assertMetric("keycloak_login_attempts", 2, tuple("provider", "keycloak"), tuple("client_id", "THE_CLIENT_ID"));
+        assertMetric("keycloak_logins", 1, tuple("provider", "keycloak"), tuple("client_id", "THE_CLIENT_ID"));
+        assertMetric("keycloak_failed_login_attempts", 1, tuple("provider", "keycloak"), tuple("error", "user_not_found"), tuple("client_id", "THE_CLIENT_ID"));
+        assertGenericMetric("keycloak_user_event_UPDATE_EMAIL_total", 1, tuple("realm", DEFAULT_REALM_NAME));
+    }
+
+    @Test
+    public void shouldServeCachedScrapeWithinTtl() throws IOException {
+        environmentVariables.set("METRICS_SCRAPE_CACHE_TTL_MS", "60000");
+        final Event login = createEvent(EventType.LOGIN);
+        PrometheusExporter.instance().recordLogin(login, realmProvider);
+        assertMetric("keycloak_logins", 1, tuple("provider", "keycloak"), tuple("client_id", "THE_CLIENT_ID"));
+
+        PrometheusExporter.instance().recordLogin(login, realmProvider);
+        assertMetric("keycloak_logins", 1, tuple("provider", "keycloak"), tuple("client_id", "THE_CLIENT_ID"));
+    }
+
+    @Test
+    public void shouldReportTheAgeOfTheScrapeCacheOnceRendered() throws IOException {
+        environmentVariables.set("METRICS_SCRAPE_CACHE_TTL_MS", "60000");
+        PrometheusExporter.instance();
+        Assert.assertNull(CollectorRegistry.defaultRegistry.getSampleValue("keycloak_metrics_scrape_cache_age_seconds"));
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream, TextFormat.CONTENT_TYPE_004, false);
+        }
+        Assert.assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("keycloak_metrics_scrape_cache_age_seconds"));
+    }
+
+    @Test
+    public void shouldExportOpenMetrics() throws IOException {
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN), realmProvider);
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream, TextFormat.CONTENT_TYPE_OPENMETRICS_100, false);
+            final String result = stream.toString(StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(result, containsString("keycloak_logins_total{realm=\"myrealm\",provider=\"keycloak\",client_id=\"THE_CLIENT_ID\"} 1.0"));
+            MatcherAssert.assertThat(result, endsWith("# EOF\n"));
+        }
+    }
+
+    @Test
+    public void shouldExportRequestDurationQuantiles() throws IOException {
+        environmentVariables.set("REQUEST_DURATION_QUANTILES", "0.5, 0.99");
+        PrometheusExporter.instance().recordRequestDuration(200, 5, "GET", "admin,admin/serverinfo");
+        PrometheusExporter.instance().recordRequestDuration(500, 5, "POST", "admin,admin/serverinfo");
+        assertGenericMetric("keycloak_request_duration_quantiles_count", 2, tuple("resource", "admin,admin/serverinfo"));
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream);
+            final String result = stream.toString(StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(result, containsString("# TYPE keycloak_request_duration_quantiles summary"));
+            MatcherAssert.assertThat(result, containsString("keycloak_request_duration_quantiles{resource=\"admin,admin/serverinfo\",quantile=\"0.99\",}"));
+        }
+    }
+
+    @Test
+    public void shouldNotExportRequestDurationQuantilesByDefault() throws IOException {
+        PrometheusExporter.instance().recordRequestDuration(200, 5, "GET", "admin,admin/serverinfo");
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream);
+            MatcherAssert.assertThat(stream.toString(StandardCharsets.UTF_8), not(containsString("keycloak_request_duration_quantiles")));
+        }
+    }
+
+    @Test
+    public void shouldRecordWeightedRequestDurations() throws IOException {
+        environmentVariables.set("REQUEST_DURATION_QUANTILES", "0.5");
+        PrometheusExporter.instance().recordRequestDurationWithExemplar(200, 3, 4, "GET", "admin,admin/serverinfo", null);
+        assertGenericMetric("keycloak_request_duration_count", 4, tuple("code", "200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"));
+        assertGenericMetric("keycloak_request_duration_sum", 12, tuple("code", "200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"));
+        assertGenericMetric("keycloak_request_duration_quantiles_count", 4, tuple("resource", "admin,admin/serverinfo"));
+    }
+
+    @Test
+    public void shouldRecordEveryRequestDurationByDefault() throws IOException {
+        Assert.assertEquals(1, PrometheusExporter.instance().sampleRequestDuration());
+        Assert.assertNull(CollectorRegistry.defaultRegistry.getSampleValue(AdaptiveSampler.NAME));
+    }
+
+    @Test
+    public void shouldExportTheRequestDurationSampleRate() {
+        environmentVariables.set("REQUEST_DURATION_SAMPLES_PER_SECOND", "100");
+        Assert.assertEquals(1, PrometheusExporter.instance().sampleRequestDuration());
+        Assert.assertEquals(1.0, CollectorRegistry.defaultRegistry.getSampleValue(AdaptiveSampler.NAME), 0);
+    }
+
+    @Test
+    public void shouldRestoreCountersFromTheLastSnapshot() throws Exception {
+        environmentVariables.set("METRICS_SNAPSHOT_FILE", folder.getRoot().toPath().resolve("counters.bin").toString());
+        PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN), realmProvider);
+        PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN), realmProvider);
+        PrometheusExporter.instance().recordEvent(createEvent(EventType.UPDATE_EMAIL), realmProvider);
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin,admin/serverinfo");
+        PrometheusExporter.shutdown();
+
+        resetSingleton();
+        PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN), realmProvider);
+        assertMetric("keycloak_logins", 3, tuple("provider", "keycloak"), tuple("client_id", "THE_CLIENT_ID"));
+        assertGenericMetric("keycloak_user_event_UPDATE_EMAIL_total", 1, tuple("realm", DEFAULT_REALM_NAME));
+        assertGenericMetric("keycloak_response_total", 1, tuple("code", "200"), tuple("method", "GET"), tuple("resource", "admin,admin/serverinfo"));
+        PrometheusExporter.shutdown();
+    }
+
+    @Test
+    public void shouldRestoreCountersWithMicrometer() throws Exception {
+        environmentVariables.set("METRICS_BACKEND", "micrometer");
+        environmentVariables.set("METRICS_SNAPSHOT_FILE", folder.getRoot().toPath().resolve("counters.bin").toString());
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN), realmProvider);
+            PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN), realmProvider);
+            PrometheusExporter.shutdown();
+            Metrics.removeRegistry(registry);
+            registry.clear();
+
+            resetSingleton();
+            Metrics.addRegistry(registry);
+            PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN), realmProvider);
+            Assert.assertEquals(3.0, registry.get("keycloak_logins")
+                .tags("realm", DEFAULT_REALM_NAME, "provider", "keycloak", "client_id", "THE_CLIENT_ID").counter().count(), 0);
+            PrometheusExporter.shutdown();
+        } finally {
+            Metrics.removeRegistry(registry);
+            registry.close();
+        }
+    }
+
+    @Test
+    public void shouldRestoreCountersWithinTheLabelLimits() throws Exception {
+        environmentVariables.set("METRICS_SNAPSHOT_FILE", folder.getRoot().toPath().resolve("counters.bin").toString());
+        environmentVariables.set("URI_METRICS_ENABLED", "true");
+        environmentVariables.set("LABEL_LIMIT_URI", "1");
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin", "/admin/first");
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin", "/admin/second");
+        PrometheusExporter.shutdown();
+
+        resetSingleton();
+        // the restored value takes up the only admitted uri
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin", "/admin/third");
+        assertGenericMetric("keycloak_response_total", 1, tuple("code", "200"), tuple("method", "GET"), tuple("resource", "admin"), tuple("uri", "/admin/first"));
+        assertGenericMetric("keycloak_response_total", 2, tuple("code", "200"), tuple("method", "GET"), tuple("resource", "admin"), tuple("uri", "__overflow__"));
+        Assert.assertNull(CollectorRegistry.defaultRegistry.getSampleValue("keycloak_response_total",
+            new String[]{"code", "method", "resource", "uri"}, new String[]{"200", "GET", "admin", "/admin/third"}));
+        PrometheusExporter.shutdown();
+    }
+
+    @Test
+    public void shouldTrackTheMostFailingUsersIfConfigured() {
+        environmentVariables.set("LOGIN_FAILURES_TOP_K", "2");
+        environmentVariables.set("LOGIN_FAILURES_TOP_K_WINDOW_MS", "60000");
+        // with a clock of the test, to end the window
+        final AtomicLong clock = new AtomicLong();
+        final PrometheusExporter exporter = new PrometheusExporter(clock::get);
+        Assert.assertNotNull(exporter.loginFailuresTopK);
+
+        recordLoginFailures(exporter);
+        clock.addAndGet(60_000);
+
+        assertMostFailingValues(exporter);
+    }
+
+    @Test
+    public void shouldTrackTheMostFailingUsersOfQueuedEvents() {
+        environmentVariables.set("LOGIN_FAILURES_TOP_K", "2");
+        environmentVariables.set("LOGIN_FAILURES_TOP_K_WINDOW_MS", "60000");
+        environmentVariables.set("METRICS_ASYNC_EVENTS", "true");
+        final AtomicLong clock = new AtomicLong();
+        final PrometheusExporter exporter = new PrometheusExporter(clock::get);
+
+        recordLoginFailures(exporter);
+        // the failures are counted by the aggregator, which records the queued events before it stops
+        exporter.eventIngest.shutdown();
+        clock.addAndGet(60_000);
+
+        assertMostFailingValues(exporter);
+    }
+
+    private void recordLoginFailures(PrometheusExporter exporter) {
+        final Event loginError = createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "THE_CLIENT_ID", "invalid_user_credentials",
+            tuple("username", "alice"));
+        loginError.setIpAddress("10.0.0.1");
+        exporter.recordEvent(loginError, realmProvider);
+        exporter.recordEvent(loginError, realmProvider);
+        exporter.recordEvent(createEvent(EventType.CLIENT_LOGIN_ERROR, DEFAULT_REALM_ID, "OTHER_CLIENT_ID", "invalid_client_credentials"),
+            realmProvider);
+        exporter.recordEvent(createEvent(EventType.LOGIN), realmProvider);
+    }
+
+    private static void assertMostFailingValues(PrometheusExporter exporter) {
+        final Map<List<String>, Double> counts = new HashMap<>();
+        for (Collector.MetricFamilySamples.Sample sample : exporter.loginFailuresTopK.collect().get(0).samples) {
+            counts.put(sample.labelValues, sample.value);
+        }
+        Assert.assertEquals(Map.of(
+            List.of(DEFAULT_REALM_NAME, "user", "alice"), 2.0,
+            List.of(DEFAULT_REALM_NAME, "ip_address", "10.0.0.1"), 2.0,
+            List.of(DEFAULT_REALM_NAME, "client_id", "THE_CLIENT_ID"), 2.0,
+            List.of(DEFAULT_REALM_NAME, "client_id", "OTHER_CLIENT_ID"), 1.0), counts);
+    }
+
+    @Test
+    public void shouldExportTheMostFailingUsersOfSingleRealm() throws IOException {
+        environmentVariables.set("LOGIN_FAILURES_TOP_K", "2");
+        environmentVariables.set("LOGIN_FAILURES_TOP_K_WINDOW_MS", "60000");
+        final AtomicLong clock = new AtomicLong();
+        final PrometheusExporter exporter = new PrometheusExporter(clock::get);
+        recordLoginFailures(exporter);
+        exporter.recordEvent(createEvent(EventType.LOGIN_ERROR, "OTHER_REALM_ID", "THE_CLIENT_ID", "invalid_user_credentials"),
+            realmProvider);
+        clock.addAndGet(60_000);
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            exporter.export(stream, TextFormat.CONTENT_TYPE_004, false, DEFAULT_REALM_NAME);
+            final String result = stream.toString(StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(result, containsString(
+                "keycloak_login_failures_top{realm=\"myrealm\",dimension=\"user\",value=\"alice\",} 2.0"));
+            MatcherAssert.assertThat(result, containsString(
+                "keycloak_login_failures_top_error{realm=\"myrealm\",dimension=\"user\",value=\"alice\",} 0.0"));
+            MatcherAssert.assertThat(result, not(containsString("OTHER_REALM")));
+        }
+    }
+
+    @Test
+    public void shouldNotTrackFailingUsersByDefault() {
+        Assert.assertNull(PrometheusExporter.instance().loginFailuresTopK);
+    }
+
+    @Test
+    public void shouldCountDistinctUsersIfConfigured() throws IOException {
+        environmentVariables.set("DISTINCT_USERS_ENABLED", "true");
+        environmentVariables.set("DISTINCT_USERS_PER_CLIENT", "true");
+        final PrometheusExporter exporter = PrometheusExporter.instance();
+        for (String userId : List.of("alice", "bob", "alice")) {
+            final Event login = createEvent(EventType.LOGIN);
+            login.setUserId(userId);
+            exporter.recordEvent(login, realmProvider);
+        }
+        final Event loginError = createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "THE_CLIENT_ID", "invalid_user_credentials");
+        loginError.setUserId("carol");
+        exporter.recordEvent(loginError, realmProvider);
+
+        Assert.assertEquals(2.0, CollectorRegistry.defaultRegistry.getSampleValue(DistinctUsers.USERS,
+            new String[]{"realm", "window"}, new String[]{DEFAULT_REALM_NAME, "current"}), 0);
+        Assert.assertEquals(2.0, CollectorRegistry.defaultRegistry.getSampleValue(DistinctUsers.CLIENT_USERS,
+            new String[]{"realm", "client_id", "window"}, new String[]{DEFAULT_REALM_NAME, "THE_CLIENT_ID", "current"}), 0);
+    }
+
+    @Test
+    public void shouldExportTheDistinctUsersOfSingleRealm() throws IOException {
+        environmentVariables.set("DISTINCT_USERS_ENABLED", "true");
+        environmentVariables.set("DISTINCT_USERS_PER_CLIENT", "true");
+        final PrometheusExporter exporter = PrometheusExporter.instance();
+        final Event login = createEvent(EventType.LOGIN);
+        login.setUserId("alice");
+        exporter.recordEvent(login, realmProvider);
+        final Event otherLogin = createEvent(EventType.LOGIN, "OTHER_REALM_ID", "THE_CLIENT_ID");
+        otherLogin.setUserId("bob");
+        exporter.recordEvent(otherLogin, realmProvider);
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            exporter.export(stream, TextFormat.CONTENT_TYPE_004, false, DEFAULT_REALM_NAME);
+            final String result = stream.toString(StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(result, containsString("keycloak_distinct_users{realm=\"myrealm\",window=\"current\",} 1.0"));
+            MatcherAssert.assertThat(result, containsString(
+                "keycloak_client_distinct_users{realm=\"myrealm\",client_id=\"THE_CLIENT_ID\",window=\"current\",} 1.0"));
+            MatcherAssert.assertThat(result, not(containsString("OTHER_REALM")));
+        }
+    }
+
+    @Test
+    public void shouldNotCountDistinctUsersByDefault() {
+        Assert.assertNull(PrometheusExporter.instance().distinctUsers);
+    }
+
+    @Test
+    public void shouldNotSnapshotCountersByDefault() {
+        Assert.assertNull(PrometheusExporter.instance().counterSnapshots);
+    }
+
+    @Test
+    public void shouldRecordToMicrometerIfConfigured() {
+        environmentVariables.set("METRICS_BACKEND", "micrometer");
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            PrometheusExporter.instance().recordEvent(createEvent(EventType.LOGIN), realmProvider);
+            PrometheusExporter.instance().recordEvent(createEvent(EventType.UPDATE_EMAIL), realmProvider);
+            PrometheusExporter.instance().recordRequestDuration(200, 0.3, "GET", "admin,admin/serverinfo");
+
+            Assert.assertEquals(1.0, registry.get("keycloak_logins")
+                .tags("realm", DEFAULT_REALM_NAME, "provider", "keycloak", "client_id", "THE_CLIENT_ID").counter().count(), 0);
+            Assert.assertEquals(1.0, registry.get("keycloak_user_event_UPDATE_EMAIL").tags("realm", DEFAULT_REALM_NAME).counter().count(), 0);
+            Assert.assertEquals(1, registry.get("keycloak_request_duration").tags("code", "200", "method", "GET").summary().count());
+            Assert.assertNull(CollectorRegistry.defaultRegistry.getSampleValue("keycloak_logins_total",
+                new String[]{"realm", "provider", "client_id"}, new String[]{DEFAULT_REALM_NAME, "keycloak", "THE_CLIENT_ID"}));
+        } finally {
+            Metrics.removeRegistry(registry);
+            registry.close();
+        }
+    }
+
+    @Test
+    public void shouldNotSampleRequestDurationsWithMicrometer() {
+        environmentVariables.set("METRICS_BACKEND", "micrometer");
+        environmentVariables.set("REQUEST_DURATION_SAMPLES_PER_SECOND", "100");
+        Assert.assertNull(PrometheusExporter.instance().requestDurationSampler);
+    }
+
+    @Test
+    public void shouldNotSampleSessionsByDefault() {
+        final KeycloakSessionFactory factory = mock(KeycloakSessionFactory.class);
+        PrometheusExporter.instance().startSessionSampling(factory);
+        Assert.assertNull(PrometheusExporter.instance().sessionGauges);
+        verifyNoInteractions(factory);
+    }
+
+    @Test
+    public void shouldSampleSessionsAtTheDefaultIntervalIfNotPositive() {
+        environmentVariables.set("SESSION_METRICS_ENABLED", "true");
+        environmentVariables.set("SESSION_METRICS_INTERVAL_MS", "0");
+        final KeycloakSessionFactory factory = mock(KeycloakSessionFactory.class);
+        PrometheusExporter.instance().startSessionSampling(factory);
+        Assert.assertNotNull(PrometheusExporter.instance().sessionGauges);
+        PrometheusExporter.shutdown();
+    }
+
+    @Test
+    public void shouldRegisterAllHotspotCollectorsByDefault() {
+        PrometheusExporter.instance();
+        Assert.assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("jvm_threads_current"));
+        Assert.assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("jvm_memory_bytes_used", new String[]{"area"}, new String[]{"heap"}));
+        Assert.assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("process_cpu_seconds_total"));
+        Assert.assertNull(PrometheusExporter.instance().jfrCollectors);
+    }
+
+    @Test
+    public void shouldRegisterTheJvmCollectorsOnce() {
+        JvmCollectors.register(null);
+        // e.g. by a second exporter
+        JvmCollectors.register(JvmCollectors.ALL);
+        JvmCollectors.register("threads");
+        Assert.assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("jvm_threads_current"));
+    }
+
+    @Test
+    public void shouldRegisterOnlyTheChosenJvmCollectors() {
+        environmentVariables.set("METRICS_JVM_COLLECTORS", "threads, unknown");
+        PrometheusExporter.instance();
+        Assert.assertNotNull(CollectorRegistry.defaultRegistry.getSampleValue("jvm_threads_current"));
+        Assert.assertNull(CollectorRegistry.defaultRegistry.getSampleValue("jvm_memory_bytes_used", new String[]{"area"}, new String[]{"heap"}));
+        Assert.assertNull(CollectorRegistry.defaultRegistry.getSampleValue("process_cpu_seconds_total"));
+        Assert.assertNull(PrometheusExporter.instance().jfrCollectors);
+    }
+
+    @Test
+    public void shouldRegisterNoJvmCollector() {
+        environmentVariables.set("METRICS_JVM_COLLECTORS", "none");
+        PrometheusExporter.instance();
+        final List<String> names = Collections.list(CollectorRegistry.defaultRegistry.metricFamilySamples()).stream()
+            .map(family -> family.name)
+            .filter(name -> name.startsWith("jvm_") || name.startsWith("process_"))
+            .collect(Collectors.toList());
+        Assert.assertEquals(Collections.emptyList(), names);
+    }
+
+    @Test
+    public void shouldExportExemplarsInOpenMetrics() throws IOException {
+        environmentVariables.set("METRICS_EXEMPLARS_SAMPLE_RATE", "1");
+        final String traceId = "4bf92f3577b34da6a3ce929d0e0e4736";
+        final Event login = createEvent(EventType.LOGIN);
+        login.setId("THE_EVENT_ID");
+        PrometheusExporter.instance().recordEvent(login, realmProvider, null);
+        final String[] exemplar = PrometheusExporter.instance().exemplar(Map.of("traceparent", "00-" + traceId + "-00f067aa0ba902b7-01")::get);
+        PrometheusExporter.instance().recordRequestDurationWithExemplar(200, 3.25, "GET", "admin,admin/serverinfo", exemplar);
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream, TextFormat.CONTENT_TYPE_OPENMETRICS_100, false);
+            final String result = stream.toString(StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(result, containsString("keycloak_logins_total{realm=\"myrealm\",provider=\"keycloak\",client_id=\"THE_CLIENT_ID\"} 1.0 # {event_id=\"THE_EVENT_ID\"} 1.0 "));
+            MatcherAssert.assertThat(result, containsString("keycloak_request_duration_bucket{code=\"200\",method=\"GET\",resource=\"admin,admin/serverinfo\",le=\"50.0\"} 1.0 # {trace_id=\"" + traceId + "\"} 3.25 "));
+        }
+    }
+
+    @Test
+    public void shouldExportTheExemplarsOfTheCountersOfSingleRealm() throws IOException {
+        environmentVariables.set("METRICS_EXEMPLARS_SAMPLE_RATE", "1");
+        final Event login = createEvent(EventType.LOGIN);
+        login.setId("THE_EVENT_ID");
+        PrometheusExporter.instance().recordEvent(login, realmProvider, null);
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream, TextFormat.CONTENT_TYPE_OPENMETRICS_100, false, DEFAULT_REALM_NAME);
+            MatcherAssert.assertThat(stream.toString(StandardCharsets.UTF_8), containsString(
+                "keycloak_logins_total{realm=\"myrealm\",provider=\"keycloak\",client_id=\"THE_CLIENT_ID\"} 1.0 # {event_id=\"THE_EVENT_ID\"} 1.0 "));
+        }
+    }
+
+    @Test
+    public void shouldNotSampleExemplarsByDefault() {
+        Assert.assertNull(PrometheusExporter.instance().exemplar(Map.of("traceparent", "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01")::get));
+    }
+
+    @Test
+    public void shouldExportMetricsOfSingleRealm() throws IOException {
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN), realmProvider);
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN, "OTHER_REALM_ID", "THE_CLIENT_ID"), realmProvider);
+        PrometheusExporter.instance().recordGenericEvent(createEvent(EventType.UPDATE_EMAIL), realmProvider);
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin,admin/serverinfo");
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream, TextFormat.CONTENT_TYPE_004, false, DEFAULT_REALM_NAME);
+            final String result = stream.toString(StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(result, containsString("# TYPE keycloak_logins_total counter"));
+            MatcherAssert.assertThat(result, containsString("keycloak_logins_total{realm=\"myrealm\",provider=\"keycloak\",client_id=\"THE_CLIENT_ID\",} 1.0"));
+            MatcherAssert.assertThat(result, containsString("keycloak_user_event_UPDATE_EMAIL_total{realm=\"myrealm\",} 1.0"));
+            MatcherAssert.assertThat(result, not(containsString("OTHER_REALM")));
+            MatcherAssert.assertThat(result, not(containsString("keycloak_response")));
+            MatcherAssert.assertThat(result, not(containsString("jvm_")));
+        }
+    }
+
+    @Test
+    public void shouldExportTheSessionsOfSingleRealm() throws IOException {
+        final SessionGauges gauges = new SessionGauges(() -> List.of(
+            new SessionGauges.Count(DEFAULT_REALM_NAME, "app", 3, 1),
+            new SessionGauges.Count("other", "app", 5, 2)));
+        gauges.sample();
+        PrometheusExporter.instance().sessionGauges = gauges;
+        try (ByteArrayOutputStream text = new ByteArrayOutputStream(); ByteArrayOutputStream openMetrics = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(text, TextFormat.CONTENT_TYPE_004, false, DEFAULT_REALM_NAME);
+            PrometheusExporter.instance().export(openMetrics, TextFormat.CONTENT_TYPE_OPENMETRICS_100, false, DEFAULT_REALM_NAME);
+            final String result = text.toString(StandardCharsets.UTF_8);
+            MatcherAssert.assertThat(result, containsString("keycloak_active_sessions{realm=\"myrealm\",client_id=\"app\",} 3.0"));
+            MatcherAssert.assertThat(result, containsString("keycloak_offline_sessions{realm=\"myrealm\",client_id=\"app\",} 1.0"));
+            MatcherAssert.assertThat(result, not(containsString("other")));
+            MatcherAssert.assertThat(openMetrics.toString(StandardCharsets.UTF_8),
+                containsString("keycloak_active_sessions{realm=\"myrealm\",client_id=\"app\"} 3.0"));
+            MatcherAssert.assertThat(openMetrics.toString(StandardCharsets.UTF_8), not(containsString("other")));
+        }
+    }
+
+    @Test
+    public void shouldExportTheSameTextAsTheClientLibrary() throws IOException {
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN), realmProvider);
+        PrometheusExporter.instance().recordLoginError(createEvent(EventType.LOGIN_ERROR, DEFAULT_REALM_ID, "a \"quoted\"\\client\nnäme \uD83D\uDE00", "user_not_found"), realmProvider);
+        PrometheusExporter.instance().recordGenericEvent(createEvent(EventType.UPDATE_EMAIL), realmProvider);
+        PrometheusExporter.instance().recordResponseTotal(200, "GET", "admin,admin/serverinfo");
+        PrometheusExporter.instance().recordRequestDuration(200, 3.25, "GET", "admin,admin/serverinfo");
+        PrometheusExporter.instance().recordRequestDuration(200, 120_000_000, "GET", "admin,admin/serverinfo");
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream);
+            final StringWriter expected = new StringWriter();
+            TextFormat.write004(expected, CollectorRegistry.defaultRegistry.metricFamilySamples());
+            // families come in registry order and series in map order, so compare them sorted
+            Assert.assertEquals(keycloakFamilies(expected.toString()), keycloakFamilies(stream.toString(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    public void shouldExportProtobuf() throws IOException {
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN), realmProvider);
+        PrometheusExporter.instance().recordRequestDuration(200, 3.25, "GET", "admin,admin/serverinfo");
+        try (ByteArrayOutputStream protobuf = new ByteArrayOutputStream(); ByteArrayOutputStream text = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(protobuf, ProtobufFormat.CONTENT_TYPE, false);
+            PrometheusExporter.instance().export(text, TextFormat.CONTENT_TYPE_004, false);
+            final List<String> decoded = keycloakSamples(ProtobufFormatTest.decode(protobuf.toByteArray()));
+            MatcherAssert.assertThat(decoded, hasItem("keycloak_logins_total{realm=\"myrealm\",provider=\"keycloak\",client_id=\"THE_CLIENT_ID\",} 1.0"));
+            Assert.assertEquals(keycloakSamples(ProtobufFormatTest.samples(text.toString(StandardCharsets.UTF_8))), decoded);
+        }
+    }
+
+    @Test
+    public void shouldExportClusterTotals() throws IOException {
+        environmentVariables.set("METRICS_CLUSTER_TRANSPORT", LocalClusterTransport.class.getName());
+        environmentVariables.set("METRICS_CLUSTER_NODE", "first");
+        environmentVariables.set("METRICS_CLUSTER_PUBLISH_INTERVAL_MS", "0");
+        final ClusterView otherNode = new ClusterView("second", new LocalClusterTransport(), () -> Collections.singletonList(
+            new Collector.MetricFamilySamples("keycloak_logins", Collector.Type.COUNTER, "Total successful logins", Collections.singletonList(
+                new Collector.MetricFamilySamples.Sample("keycloak_logins_total", Arrays.asList("realm", "provider", "client_id"),
+                    Arrays.asList(DEFAULT_REALM_NAME, "keycloak", "THE_CLIENT_ID"), 2)))), 0, 1, 60000);
+        try {
+            Assert.assertTrue(PrometheusExporter.instance().isClusterViewEnabled());
+            PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN), realmProvider);
+            otherNode.publish();
+            try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+                PrometheusExporter.instance().exportCluster(stream, TextFormat.CONTENT_TYPE_004, false);
+                final String result = stream.toString(StandardCharsets.UTF_8);
+                MatcherAssert.assertThat(result, containsString("keycloak_logins_total{realm=\"myrealm\",provider=\"keycloak\",client_id=\"THE_CLIENT_ID\",} 3.0"));
+                MatcherAssert.assertThat(result, not(containsString("jvm_")));
+            }
+            try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+                PrometheusExporter.instance().exportCluster(stream, TextFormat.CONTENT_TYPE_004, false, "OTHER_REALM");
+                MatcherAssert.assertThat(stream.toString(StandardCharsets.UTF_8), not(containsString("realm=\"myrealm\"")));
+            }
+            try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+                PrometheusExporter.instance().exportCluster(stream, TextFormat.CONTENT_TYPE_004, false, DEFAULT_REALM_NAME);
+                MatcherAssert.assertThat(stream.toString(StandardCharsets.UTF_8),
+                    containsString("keycloak_logins_total{realm=\"myrealm\",provider=\"keycloak\",client_id=\"THE_CLIENT_ID\",} 3.0"));
+            }
+        } finally {
+            otherNode.shutdown();
+            PrometheusExporter.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldExportTheDistinctUsersOfTheCluster() throws IOException {
+        environmentVariables.set("METRICS_CLUSTER_TRANSPORT", LocalClusterTransport.class.getName());
+        environmentVariables.set("METRICS_CLUSTER_NODE", "first");
+        environmentVariables.set("METRICS_CLUSTER_PUBLISH_INTERVAL_MS", "0");
+        environmentVariables.set("DISTINCT_USERS_ENABLED", "true");
+        final DistinctUsers otherUsers = new DistinctUsers(14, 10, 0, 3_600_000);
+        final ClusterView otherNode = new ClusterView("second", new LocalClusterTransport(), Collections::emptyList,
+            otherUsers::sketches, 0, 1, 60000);
+        try {
+            final Event login = createEvent(EventType.LOGIN);
+            login.setUserId("alice");
+            PrometheusExporter.instance().recordEvent(login, realmProvider);
+            otherUsers.record(DEFAULT_REALM_NAME, "THE_CLIENT_ID", "alice");
+            otherUsers.record(DEFAULT_REALM_NAME, "THE_CLIENT_ID", "bob");
+            otherNode.publish();
+            try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+                PrometheusExporter.instance().exportCluster(stream, TextFormat.CONTENT_TYPE_004, false);
+                MatcherAssert.assertThat(stream.toString(StandardCharsets.UTF_8),
+                    containsString("keycloak_distinct_users{realm=\"myrealm\",window=\"current\",} 2.0"));
+            }
+            assertGenericMetric("keycloak_distinct_users", 1, tuple("realm", DEFAULT_REALM_NAME), tuple("window", "current"));
+        } finally {
+            otherNode.shutdown();
+            PrometheusExporter.shutdown();
+        }
+    }
+
+    private static List<String> keycloakSamples(List<String> samples) {
+        return samples.stream().filter(sample -> sample.startsWith("keycloak_")).collect(Collectors.toList());
+    }
+
+    private static Set<List<String>> keycloakFamilies(String exposition) {
+        final Set<List<String>> families = new HashSet<>();
+        for (String family : exposition.split("(?=# HELP )")) {
+            final List<String> lines = new ArrayList<>(Arrays.asList(family.split("\n")));
+            // families without samples are left out of the export
+            if (family.startsWith("# HELP keycloak_") && lines.size() > 2) {
+                Collections.sort(lines);
+                families.add(lines);
+            }
+        }
+        return families;
+    }
+
+    @Test
+    public void shouldExportGzipCompressed() throws IOException {
+        PrometheusExporter.instance().recordLogin(createEvent(EventType.LOGIN), realmProvider);
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+            PrometheusExporter.instance().export(stream, TextFormat.CONTENT_TYPE_004, true);
+            try (GZIPInputStream uncompressed = new GZIPInputStream(new ByteArrayInputStream(stream.toByteArray()))) {
+                final String result = new String(uncompressed.readAllBytes(), StandardCharsets.UTF_8);
+                MatcherAssert.assertThat(result, containsString("keycloak_logins_total{realm=\"myrealm\",provider=\"keycloak\",client_id=\"THE_CLIENT_ID\",} 1.0"));
+            }
+        }
+    }
+
     @Test
     public void shouldBuildPushgateway() {
         final String envVar = "PROMETHEUS_PUSHGATEWAY_ADDRESS";
@@ -424,6 +1205,14 @@ public class PrometheusExporterTest {
         return createEvent(type, DEFAULT_REALM_ID, "THE_CLIENT_ID",(String) null);
     }
 
+    private AdminEvent createAdminEvent(OperationType type, ResourceType resourceType) {
+        final AdminEvent event = new AdminEvent();
+        event.setOperationType(type);
+        event.setResourceType(resourceType);
+        event.setRealmId(DEFAULT_REALM_ID);
+        return event;
+    }
+
     private static <L, R> Tuple<L, R> tuple(L left, R right) {
         return new Tuple<>(left, right);
     }
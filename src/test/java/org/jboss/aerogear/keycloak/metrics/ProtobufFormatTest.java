@@ -0,0 +1,278 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Summary;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProtobufFormatTest {
+
+    private final CollectorRegistry registry = new CollectorRegistry();
+
+    @Test
+    public void shouldRoundTripTheTextFormat() throws IOException {
+        final Counter counter = Counter.build().name("logins").help("Total logins").labelNames("realm", "client_id").register(registry);
+        counter.labels("myrealm", "a \"quoted\"\\client\nnäme").inc(3);
+        counter.labels("other", "").inc();
+        Gauge.build().name("sessions").help("Active sessions").register(registry).set(-2.5);
+        final Histogram histogram = Histogram.build().name("duration").help("Duration").labelNames("code").buckets(1, 10).register(registry);
+        histogram.labels("200").observe(0.5);
+        histogram.labels("200").observe(42);
+        final Summary summary = Summary.build().name("latency").help("Latency").quantile(0.5, 0.05).quantile(0.99, 0.001).register(registry);
+        summary.observe(7);
+        final LatencyHistogram latency = LatencyHistogram.build().name("request").help("Request").labelNames("code")
+            .exponentialBuckets(0, 1, 8).register(registry);
+        latency.labels("404").observe(3);
+
+        final ByteArrayOutputStream protobuf = new ByteArrayOutputStream();
+        ProtobufFormat.write(protobuf, registry.metricFamilySamples());
+        final StringWriter text = new StringWriter();
+        TextFormat.write004(text, registry.metricFamilySamples());
+
+        assertEquals(samples(text.toString()), decode(protobuf.toByteArray()));
+    }
+
+    @Test
+    public void shouldAcceptTheDelimitedFormatOnly() {
+        assertTrue(ProtobufFormat.accepted("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3"));
+        assertTrue(ProtobufFormat.accepted(ProtobufFormat.CONTENT_TYPE));
+        assertFalse(ProtobufFormat.accepted("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text"));
+        assertFalse(ProtobufFormat.accepted("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0"));
+        assertFalse(ProtobufFormat.accepted("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.0"));
+        assertFalse(ProtobufFormat.accepted("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.000"));
+        assertFalse(ProtobufFormat.accepted("text/plain;version=0.0.4"));
+        assertFalse(ProtobufFormat.accepted(null));
+    }
+
+    /**
+     * Sample lines of the text format, sorted
+     */
+    static List<String> samples(String text) {
+        return Arrays.stream(text.split("\n"))
+            .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Decode delimited metric families into the sample lines of the text format, sorted
+     */
+    static List<String> decode(byte[] bytes) {
+        final List<String> lines = new ArrayList<>();
+        final Reader in = new Reader(bytes, 0, bytes.length);
+        while (in.more()) {
+            final Reader family = in.embedded(in.varint());
+            String name = null;
+            long type = 0;
+            final List<Reader> metrics = new ArrayList<>();
+            while (family.more()) {
+                final int tag = (int) family.varint();
+                switch (tag >>> 3) {
+                    case 1:
+                        name = family.string();
+                        break;
+                    case 3:
+                        type = family.varint();
+                        break;
+                    case 4:
+                        metrics.add(family.embedded(family.varint()));
+                        break;
+                    default:
+                        family.skip(tag);
+                }
+            }
+            for (Reader metric : metrics) {
+                decodeMetric(name, type, metric, lines);
+            }
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static void decodeMetric(String name, long type, Reader metric, List<String> lines) {
+        final List<String> labels = new ArrayList<>();
+        Reader value = null;
+        while (metric.more()) {
+            final int tag = (int) metric.varint();
+            if (tag >>> 3 == 1) {
+                final Reader pair = metric.embedded(metric.varint());
+                pair.varint();
+                final String labelName = pair.string();
+                pair.varint();
+                labels.add(labelName + "=\"" + escape(pair.string()) + "\",");
+            } else if ((tag & 7) == 2) {
+                value = metric.embedded(metric.varint());
+            } else {
+                metric.skip(tag);
+            }
+        }
+        final String base = type == 0 ? name.substring(0, name.length() - "_total".length()) : name;
+        long count = 0;
+        double sum = 0;
+        while (value.more()) {
+            final int tag = (int) value.varint();
+            final int field = tag >>> 3;
+            if (type == 0 || type == 1 || type == 3) {
+                if (field == 1) {
+                    lines.add(line(name, labels, null, value.fixed64()));
+                } else if (field == 3) {
+                    lines.add(line(base + "_created", labels, null, value.timestamp()));
+                } else {
+                    value.skip(tag);
+                }
+            } else if (type == 2) {
+                if (field == 1) {
+                    count = value.varint();
+                } else if (field == 2) {
+                    sum = value.fixed64();
+                } else if (field == 3) {
+                    final Reader quantile = value.embedded(value.varint());
+                    quantile.varint();
+                    final double q = quantile.fixed64();
+                    quantile.varint();
+                    lines.add(line(name, labels, "quantile=\"" + Collector.doubleToGoString(q) + "\",", quantile.fixed64()));
+                } else if (field == 4) {
+                    lines.add(line(name + "_created", labels, null, value.timestamp()));
+                } else {
+                    value.skip(tag);
+                }
+            } else {
+                if (field == 1) {
+                    count = value.varint();
+                } else if (field == 2) {
+                    sum = value.fixed64();
+                } else if (field == 3) {
+                    final Reader bucket = value.embedded(value.varint());
+                    bucket.varint();
+                    final long cumulative = bucket.varint();
+                    bucket.varint();
+                    final double upperBound = bucket.fixed64();
+                    lines.add(line(name + "_bucket", labels, "le=\"" + Collector.doubleToGoString(upperBound) + "\",", cumulative));
+                } else if (field == 15) {
+                    lines.add(line(name + "_created", labels, null, value.timestamp()));
+                } else {
+                    value.skip(tag);
+                }
+            }
+        }
+        if (type == 2 || type == 4) {
+            lines.add(line(name + "_count", labels, null, count));
+            lines.add(line(name + "_sum", labels, null, sum));
+        }
+    }
+
+    private static String line(String name, List<String> labels, String extraLabel, double value) {
+        final StringBuilder line = new StringBuilder(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            line.append('{');
+            labels.forEach(line::append);
+            if (extraLabel != null) {
+                line.append(extraLabel);
+            }
+            line.append('}');
+        }
+        return line.append(' ').append(Collector.doubleToGoString(value)).toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        private Reader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        private boolean more() {
+            return position < end;
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = bytes[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private double fixed64() {
+            final double value = ByteBuffer.wrap(bytes, position, 8).order(ByteOrder.LITTLE_ENDIAN).getDouble();
+            position += 8;
+            return value;
+        }
+
+        private String string() {
+            final int length = (int) varint();
+            final String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private Reader embedded(long length) {
+            final Reader reader = new Reader(bytes, position, position + (int) length);
+            position += (int) length;
+            return reader;
+        }
+
+        /**
+         * Read a google.protobuf.Timestamp as seconds
+         */
+        private double timestamp() {
+            final Reader timestamp = embedded(varint());
+            timestamp.varint();
+            final long seconds = timestamp.varint();
+            long nanos = 0;
+            if (timestamp.more()) {
+                timestamp.varint();
+                nanos = timestamp.varint();
+            }
+            return seconds + nanos / 1e9;
+        }
+
+        private void skip(int tag) {
+            switch (tag & 7) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    position += 8;
+                    break;
+                case 2:
+                    final int length = (int) varint();
+                    position += length;
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected wire type " + (tag & 7));
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PushSchedulerTest {
+
+    private final AtomicInteger pushes = new AtomicInteger();
+
+    @Test
+    public void shouldCoalesceTheChangesOfAnInterval() throws InterruptedException {
+        final PushScheduler scheduler = new PushScheduler(pushes::incrementAndGet, 200);
+        for (int i = 0; i < 1000; i++) {
+            scheduler.markDirty();
+        }
+        Thread.sleep(300);
+        Assert.assertEquals(1, pushes.get());
+
+        // nothing changed since
+        Thread.sleep(200);
+        Assert.assertEquals(1, pushes.get());
+        scheduler.shutdown();
+        Assert.assertEquals(1, pushes.get());
+    }
+
+    @Test
+    public void shouldPushAtMostOncePerInterval() throws InterruptedException {
+        final PushScheduler scheduler = new PushScheduler(pushes::incrementAndGet, 100);
+        final long start = System.nanoTime();
+        while (System.nanoTime() - start < 550_000_000L) {
+            scheduler.markDirty();
+        }
+        final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        final int pushed = pushes.get();
+        Assert.assertTrue("pushed " + pushed + " times in " + elapsedMillis + " ms", pushed >= 1 && pushed <= elapsedMillis / 100);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void shouldFlushOnceOnShutdownIfDirty() {
+        final PushScheduler scheduler = new PushScheduler(pushes::incrementAndGet, 60000);
+        scheduler.markDirty();
+        scheduler.markDirty();
+        scheduler.shutdown();
+        Assert.assertEquals(1, pushes.get());
+    }
+
+    @Test
+    public void shouldNotFlushOnShutdownIfClean() {
+        new PushScheduler(pushes::incrementAndGet, 60000).shutdown();
+        Assert.assertEquals(0, pushes.get());
+    }
+
+    @Test
+    public void shouldKeepPushingAfterAFailedPush() throws InterruptedException {
+        final PushScheduler scheduler = new PushScheduler(() -> {
+            if (pushes.incrementAndGet() == 1) {
+                throw new IllegalStateException("unavailable");
+            }
+        }, 100);
+        scheduler.markDirty();
+        Thread.sleep(250);
+        scheduler.markDirty();
+        scheduler.shutdown();
+        Assert.assertEquals(2, pushes.get());
+    }
+}
@@ -0,0 +1,88 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserSessionProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SessionGaugesTest {
+
+    @Test
+    public void shouldOnlyCountWhenSampling() {
+        final AtomicInteger samples = new AtomicInteger();
+        final SessionGauges gauges = new SessionGauges(() -> List.of(
+            new SessionGauges.Count("myrealm", "app" + samples.incrementAndGet(), 3, 1)));
+        assertEquals(0, gauges.collect().get(0).samples.size());
+
+        gauges.sample();
+        gauges.collect();
+        final List<MetricFamilySamples> families = gauges.collect();
+        assertEquals(1, samples.get());
+        assertEquals("keycloak_active_sessions", families.get(0).name);
+        assertEquals(List.of("myrealm", "app1"), families.get(0).samples.get(0).labelValues);
+        assertEquals(3, families.get(0).samples.get(0).value, 0);
+        assertEquals("keycloak_offline_sessions", families.get(1).name);
+        assertEquals(1, families.get(1).samples.get(0).value, 0);
+    }
+
+    @Test
+    public void shouldKeepTheLastSampleIfCountingFails() throws InterruptedException {
+        final List<SessionGauges.Count> counts = new ArrayList<>(List.of(new SessionGauges.Count("myrealm", "app", 3, 1)));
+        final SessionGauges gauges = new SessionGauges(() -> {
+            if (counts.isEmpty()) {
+                throw new IllegalStateException("unavailable");
+            }
+            return List.of(counts.remove(0));
+        });
+        gauges.start(10);
+        Thread.sleep(100);
+        gauges.shutdown();
+        assertEquals(3, gauges.collect().get(0).samples.get(0).value, 0);
+    }
+
+    @Test
+    public void shouldCountTheSessionsOfTheAllowedRealms() {
+        final KeycloakSessionFactory factory = mock(KeycloakSessionFactory.class);
+        final KeycloakSession session = mock(KeycloakSession.class);
+        final RealmProvider realms = mock(RealmProvider.class);
+        final UserSessionProvider sessions = mock(UserSessionProvider.class);
+        final RealmModel realm = mock(RealmModel.class);
+        final ClientModel client = mock(ClientModel.class);
+        when(factory.create()).thenReturn(session);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        when(session.realms()).thenReturn(realms);
+        when(session.sessions()).thenReturn(sessions);
+        when(realms.getRealmByName("myrealm")).thenReturn(realm);
+        when(realm.getName()).thenReturn("myrealm");
+        when(realm.getClientById("uuid")).thenReturn(client);
+        when(client.getClientId()).thenReturn("app");
+        when(sessions.getActiveClientSessionStats(realm, false)).thenReturn(Map.of("uuid", 5L));
+        when(sessions.getActiveClientSessionStats(realm, true)).thenReturn(Map.of("uuid", 2L, "removed", 1L));
+
+        final List<SessionGauges.Count> counts = SessionGauges.count(factory, Set.of("myrealm", "unknown"));
+
+        assertEquals(1, counts.size());
+        assertEquals("myrealm", counts.get(0).realm);
+        assertEquals("app", counts.get(0).clientId);
+        assertEquals(5, counts.get(0).active);
+        assertEquals(2, counts.get(0).offline);
+        verify(realms, never()).getRealmsStream();
+    }
+}
@@ -0,0 +1,25 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import uk.org.webcompere.systemstubs.rules.EnvironmentVariablesRule;
+
+public class SettingsTest {
+
+    @Rule
+    public final EnvironmentVariablesRule environmentVariables = new EnvironmentVariablesRule();
+
+    @Test
+    public void shouldReadFlagsAsTheClientLibrary() {
+        for (String value : new String[]{"true", "TRUE", "1", "t", "T", " true "}) {
+            environmentVariables.set("METRICS_TEST_FLAG", value);
+            Assert.assertTrue(value, Settings.getBoolean("METRICS_TEST_FLAG"));
+        }
+        for (String value : new String[]{"false", "0", "f", "yes", ""}) {
+            environmentVariables.set("METRICS_TEST_FLAG", value);
+            Assert.assertFalse(value, Settings.getBoolean("METRICS_TEST_FLAG"));
+        }
+        Assert.assertFalse(Settings.getBoolean("METRICS_UNSET_FLAG"));
+    }
+}
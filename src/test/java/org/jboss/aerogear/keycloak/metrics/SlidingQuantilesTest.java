@@ -0,0 +1,105 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SlidingQuantilesTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    private SlidingQuantiles quantiles(long windowMillis, int slices) {
+        return SlidingQuantiles.build()
+            .name("test_duration_quantiles")
+            .help("Test")
+            .labelNames("resource")
+            .quantiles(0.5, 0.9, 0.99)
+            .window(windowMillis, slices)
+            .clock(clock::get)
+            .create();
+    }
+
+    @Test
+    public void shouldEstimateQuantilesWithinTheRelativeError() {
+        final SlidingQuantiles.Child child = quantiles(60000, 6).labels("token");
+        for (int i = 1; i <= 10000; i++) {
+            child.observe(i / 10.0);
+        }
+        final double[] values = child.quantiles(0.5, 0.9, 0.99, 0, 1);
+        assertEquals(500, values[0], 500 * 0.02);
+        assertEquals(900, values[1], 900 * 0.02);
+        assertEquals(990, values[2], 990 * 0.02);
+        assertEquals(0.1, values[3], 0.1 * 0.02);
+        assertEquals(1000, values[4], 1000 * 0.02);
+        assertEquals(10000, child.count());
+    }
+
+    @Test
+    public void shouldForgetObservationsOutsideOfTheWindow() {
+        final SlidingQuantiles.Child child = quantiles(6000, 6).labels("token");
+        child.observe(1000);
+        clock.addAndGet(3000);
+        child.observe(10);
+        assertEquals(10, child.quantiles(0)[0], 10 * 0.02);
+        assertEquals(1000, child.quantiles(1)[0], 1000 * 0.02);
+
+        // the sub-window of the first observation left the window
+        clock.addAndGet(3500);
+        assertEquals(10, child.quantiles(1)[0], 10 * 0.02);
+
+        clock.addAndGet(6000);
+        assertTrue(Double.isNaN(child.quantiles(0.5)[0]));
+        // the count and sum are cumulative
+        assertEquals(2, child.count());
+        assertEquals(1010, child.sum(), 0);
+    }
+
+    @Test
+    public void shouldReuseTheSlotsOfTheRing() {
+        final SlidingQuantiles.Child child = quantiles(3000, 3).labels("token");
+        for (int i = 0; i < 10; i++) {
+            child.observe(100 * (i + 1));
+            clock.addAndGet(1000);
+        }
+        // the window is made of the current sub-window, still empty, and the two before
+        assertEquals(900, child.quantiles(0)[0], 900 * 0.02);
+        assertEquals(1000, child.quantiles(1)[0], 1000 * 0.02);
+    }
+
+    @Test
+    public void shouldCountConcurrentObservations() throws InterruptedException {
+        final SlidingQuantiles.Child child = quantiles(60000, 6).labels("token");
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    child.observe(42);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, child.count());
+        assertEquals(42, child.quantiles(0.5)[0], 42 * 0.02);
+    }
+
+    @Test
+    public void shouldCollectASummary() {
+        final SlidingQuantiles quantiles = quantiles(60000, 6);
+        quantiles.labels("token").observe(5);
+        final MetricFamilySamples family = quantiles.collect().get(0);
+        assertEquals(Collector.Type.SUMMARY, family.type);
+        assertEquals("test_duration_quantiles", family.samples.get(0).name);
+        assertEquals("0.99", family.samples.get(2).labelValues.get(1));
+        assertEquals(5, family.samples.get(2).value, 5 * 0.02);
+        assertEquals("test_duration_quantiles_count", family.samples.get(3).name);
+        assertEquals(1, family.samples.get(3).value, 0);
+    }
+}
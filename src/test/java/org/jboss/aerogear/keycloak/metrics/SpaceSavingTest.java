@@ -0,0 +1,69 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+public class SpaceSavingTest {
+
+    @Test
+    public void shouldCountExactlyBelowTheCapacity() {
+        final SpaceSaving summary = new SpaceSaving(4);
+        for (int i = 0; i < 5; i++) {
+            summary.offer("alice");
+        }
+        summary.offer("bob");
+        summary.offer("bob");
+        summary.offer("carol");
+
+        final List<SpaceSaving.Entry> top = summary.top(2);
+        Assert.assertEquals(2, top.size());
+        Assert.assertEquals("alice", top.get(0).value);
+        Assert.assertEquals(5, top.get(0).count);
+        Assert.assertEquals(0, top.get(0).error);
+        Assert.assertEquals("bob", top.get(1).value);
+        Assert.assertEquals(2, top.get(1).count);
+    }
+
+    @Test
+    public void shouldFindTheHeavyHittersInALongTail() {
+        final SpaceSaving summary = new SpaceSaving(50);
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            if (i % 10 == 0) {
+                summary.offer("attacker");
+            } else if (i % 25 == 0) {
+                summary.offer("10.0.0.1");
+            } else {
+                summary.offer("user" + random.nextInt(100_000));
+            }
+        }
+
+        final List<SpaceSaving.Entry> top = summary.top(2);
+        Assert.assertEquals("attacker", top.get(0).value);
+        Assert.assertEquals("10.0.0.1", top.get(1).value);
+        for (SpaceSaving.Entry entry : top) {
+            // never underestimated, overestimated by at most the number of values over the capacity
+            final long actual = entry.value.equals("attacker") ? 10_000 : 2_000;
+            Assert.assertTrue(entry.count >= actual);
+            Assert.assertTrue(entry.count - entry.error <= actual);
+            Assert.assertTrue(entry.error <= 100_000 / 50);
+        }
+    }
+
+    @Test
+    public void shouldForgetAllValuesWhenCleared() {
+        final SpaceSaving summary = new SpaceSaving(2);
+        summary.offer("alice");
+        summary.offer("bob");
+        summary.offer("carol");
+        summary.clear();
+        Assert.assertTrue(summary.top(2).isEmpty());
+
+        summary.offer("dave");
+        Assert.assertEquals(1, summary.top(2).size());
+        Assert.assertEquals(1, summary.top(2).get(0).count);
+    }
+}
@@ -0,0 +1,92 @@
+package org.jboss.aerogear.keycloak.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class UriTemplatesTest {
+
+  private static final String USER_ID = "171753bc-8184-4989-929b-288fdc661b90";
+
+  private final UriTemplates consolidated = new UriTemplates(false, false, 100);
+  private final UriTemplates uuidHidden = new UriTemplates(true, true, 100);
+
+  @Test
+  public void shouldConsolidateRealm() {
+    assertEquals("realms/{realm}/protocol/openid-connect/token",
+      consolidated.template("realms/master/protocol/openid-connect/token"));
+    assertEquals("realms/{realm}", consolidated.template("realms/master"));
+    assertEquals("admin/realms/{realm}/client-scopes", consolidated.template("admin/realms/master/client-scopes"));
+  }
+
+  @Test
+  public void shouldConsolidateClientAndUserIds() {
+    assertEquals("admin/realms/{realm}/users/{id}/groups",
+      consolidated.template("admin/realms/master/users/" + USER_ID + "/groups"));
+    assertEquals("admin/realms/{realm}/clients/{id}", consolidated.template("admin/realms/master/clients/my-client"));
+  }
+
+  @Test
+  public void shouldOnlyReplaceRealmSegment() {
+    // the realm name occurring in other segments is not part of the template
+    assertEquals("realms/{realm}/protocol/openid-connect/auth",
+      consolidated.template("realms/openid/protocol/openid-connect/auth"));
+    assertEquals("admin/realms/{realm}/users/{id}",
+      consolidated.template("admin/realms/users/users/users"));
+  }
+
+  @Test
+  public void shouldKeepUnknownUris() {
+    final String uri = "admin/master/console/whoami";
+    assertSame(uri, consolidated.template(uri));
+    assertSame("realms", consolidated.template("realms"));
+    assertEquals("realms//account", consolidated.template("realms//account"));
+  }
+
+  @Test
+  public void shouldHideUuidsInDetailedUris() {
+    assertEquals("admin/realms/master/users/{id}", uuidHidden.template("admin/realms/master/users/" + USER_ID));
+    assertEquals("admin/realms/master/attack-detection/brute-force/users/{id}",
+      uuidHidden.template("admin/realms/master/attack-detection/brute-force/users/" + USER_ID));
+    assertEquals("{id}/{id}", uuidHidden.template(USER_ID + "/" + USER_ID));
+    assertEquals("admin/realms/master/users/171753bc-8184", uuidHidden.template("admin/realms/master/users/171753bc-8184"));
+  }
+
+  @Test
+  public void shouldHideUuidsLikeTheRegex() {
+    final String[] uris = {
+      "x" + USER_ID + "y",
+      USER_ID + USER_ID,
+      "a_b_c_d_-e_f_-g_h_-i_j_-k_l_m_n_o_p_",
+      "12345678-1234-1234-1234-1234567890123",
+      "1234567-1234-1234-1234-123456789012",
+    };
+    for (String uri : uris) {
+      assertEquals(uri.replaceAll("\\w{8}-\\w{4}-\\w{4}-\\w{4}-\\w{12}", "{id}"), UriTemplates.hideUuids(uri));
+    }
+  }
+
+  @Test
+  public void shouldKeepDetailedUris() {
+    final String uri = "admin/realms/master/users/" + USER_ID;
+    assertSame(uri, new UriTemplates(true, false, 100).template(uri));
+  }
+
+  @Test
+  public void shouldTemplateUrisBeyondCacheSize() {
+    final UriTemplates templates = new UriTemplates(false, false, 1);
+    assertEquals("realms/{realm}", templates.template("realms/first"));
+    assertEquals("realms/{realm}", templates.template("realms/second"));
+    assertEquals("realms/{realm}", templates.template("realms/second"));
+  }
+
+  @Test
+  public void shouldCacheNewUrisOnceFull() {
+    final UriTemplates templates = new UriTemplates(false, false, 1);
+    templates.template("realms/first");
+    // the template of the first URI is evicted
+    final String template = templates.template("realms/second");
+    assertSame(template, templates.template("realms/second"));
+  }
+}